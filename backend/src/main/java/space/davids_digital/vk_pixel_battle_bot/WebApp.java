@@ -2,10 +2,18 @@ package space.davids_digital.vk_pixel_battle_bot;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import space.davids_digital.vk_pixel_battle_bot.service.WarmupService;
+
+import java.util.concurrent.TimeUnit;
 
 @SpringBootApplication
 public class WebApp {
-    public static void main(String[] args) {
-        SpringApplication.run(WebConfig.class, args);
+    public static void main(String[] args) throws InterruptedException {
+        var context = SpringApplication.run(WebConfig.class, args);
+        // The appcds profile (see backend/pom.xml) starts the app once to record the classes a warmed-up backend loads
+        if (Boolean.getBoolean("appcds.training")) {
+            context.getBean(WarmupService.class).awaitReady(5, TimeUnit.MINUTES);
+            System.exit(SpringApplication.exit(context));
+        }
     }
 }
@@ -1,13 +1,15 @@
 package space.davids_digital.vk_pixel_battle_bot;
 
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringBootConfiguration;
 import org.springframework.boot.web.embedded.tomcat.TomcatServletWebServerFactory;
 import org.springframework.boot.web.servlet.server.ServletWebServerFactory;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
-import org.springframework.jdbc.datasource.DriverManagerDataSource;
 import org.springframework.web.servlet.config.annotation.EnableWebMvc;
+import space.davids_digital.vk_pixel_battle_bot.service.DataSourceStatsService;
 
 import javax.sql.DataSource;
 
@@ -25,6 +27,22 @@ public class WebConfig {
     String dbUsername;
     @Value("${DB_PASSWORD}")
     String dbPassword;
+    @Value("${DB_POOL_MAX_SIZE:10}")
+    int dbPoolMaxSize;
+    @Value("${DB_POOL_MIN_IDLE:2}")
+    int dbPoolMinIdle;
+    @Value("${DB_POOL_CONNECTION_TIMEOUT_MS:5000}")
+    long dbPoolConnectionTimeoutMs;
+    @Value("${DB_POOL_IDLE_TIMEOUT_MS:600000}")
+    long dbPoolIdleTimeoutMs;
+    @Value("${DB_POOL_MAX_LIFETIME_MS:1800000}")
+    long dbPoolMaxLifetimeMs;
+    @Value("${DB_PREPARE_THRESHOLD:1}")
+    int dbPrepareThreshold;
+    @Value("${DB_PREPARED_STATEMENT_CACHE_QUERIES:256}")
+    int dbPreparedStatementCacheQueries;
+    @Value("${DB_PREPARED_STATEMENT_CACHE_SIZE_MIB:5}")
+    int dbPreparedStatementCacheSizeMiB;
 
     @Bean
     public ServletWebServerFactory servletWebServerFactory() {
@@ -32,12 +50,23 @@ public class WebConfig {
     }
 
     @Bean
-    public DataSource dataSource() {
-        DriverManagerDataSource dataSource = new DriverManagerDataSource();
-        dataSource.setDriverClassName("org.postgresql.Driver");
-        dataSource.setUrl(String.format("jdbc:postgresql://%s:%d/%s", dbHost, dbPort, dbName));
-        dataSource.setUsername(dbUsername);
-        dataSource.setPassword(dbPassword);
-        return dataSource;
+    public DataSource dataSource(DataSourceStatsService dataSourceStatsService) {
+        var config = new HikariConfig();
+        config.setPoolName("vk-pixel-battle-db");
+        config.setDriverClassName("org.postgresql.Driver");
+        config.setJdbcUrl(String.format("jdbc:postgresql://%s:%d/%s", dbHost, dbPort, dbName));
+        config.setUsername(dbUsername);
+        config.setPassword(dbPassword);
+        config.setMaximumPoolSize(dbPoolMaxSize);
+        config.setMinimumIdle(dbPoolMinIdle);
+        config.setConnectionTimeout(dbPoolConnectionTimeoutMs);
+        config.setIdleTimeout(dbPoolIdleTimeoutMs);
+        config.setMaxLifetime(dbPoolMaxLifetimeMs);
+        // Statements are prepared on the server once per connection and then reused by pgjdbc
+        config.addDataSourceProperty("prepareThreshold", dbPrepareThreshold);
+        config.addDataSourceProperty("preparedStatementCacheQueries", dbPreparedStatementCacheQueries);
+        config.addDataSourceProperty("preparedStatementCacheSizeMiB", dbPreparedStatementCacheSizeMiB);
+        config.setMetricsTrackerFactory(dataSourceStatsService);
+        return new HikariDataSource(config);
     }
 }
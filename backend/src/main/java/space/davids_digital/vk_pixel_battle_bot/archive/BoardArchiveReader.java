@@ -0,0 +1,207 @@
+package space.davids_digital.vk_pixel_battle_bot.archive;
+
+import space.davids_digital.vk_pixel_battle_bot.orm.service.BoardDrawLogOrmService;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads a board archive written by {@link BoardArchiveWriter} through a read-only mapping of the file. Opening
+ * one only reads its footer; blocks are inflated one at a time while the draws are replayed.
+ */
+public class BoardArchiveReader {
+    private static final int TRAILER_BYTES = Long.BYTES + Integer.BYTES;
+    private static final int BLOCK_INFO_BYTES = Long.BYTES * 2 + Integer.BYTES * 4;
+
+    private final ByteBuffer data;
+    private final long peerId;
+    private final long startTime;
+    private final int width;
+    private final int height;
+    private final int draws;
+    private final int firstOrderId;
+    private final int lastOrderId;
+    private final long firstTime;
+    private final long lastTime;
+    private final int[] palette;
+    private final long[] users;
+    private final BoardArchiveWriter.BlockInfo[] blocks;
+
+    private BoardArchiveReader(ByteBuffer data) throws IOException {
+        this.data = data;
+        try {
+            if (data.capacity() < Integer.BYTES + TRAILER_BYTES
+                    || data.getInt(0) != BoardArchiveWriter.MAGIC
+                    || data.getInt(data.capacity() - Integer.BYTES) != BoardArchiveWriter.MAGIC) {
+                throw new IOException("Not a board archive");
+            }
+            var footer = data.duplicate().position((int) data.getLong(data.capacity() - TRAILER_BYTES));
+            peerId = footer.getLong();
+            startTime = footer.getLong();
+            width = footer.getInt();
+            height = footer.getInt();
+            draws = footer.getInt();
+            firstOrderId = footer.getInt();
+            lastOrderId = footer.getInt();
+            firstTime = footer.getLong();
+            lastTime = footer.getLong();
+            palette = new int[readCount(footer, Integer.BYTES)];
+            for (int i = 0; i < palette.length; i++) {
+                palette[i] = footer.getInt();
+            }
+            users = new long[readCount(footer, Long.BYTES)];
+            for (int i = 0; i < users.length; i++) {
+                users[i] = footer.getLong();
+            }
+            blocks = new BoardArchiveWriter.BlockInfo[readCount(footer, BLOCK_INFO_BYTES)];
+            for (int i = 0; i < blocks.length; i++) {
+                blocks[i] = new BoardArchiveWriter.BlockInfo(
+                        footer.getLong(),
+                        footer.getInt(),
+                        footer.getInt(),
+                        footer.getInt(),
+                        footer.getInt(),
+                        footer.getLong()
+                );
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Corrupt board archive", e);
+        }
+    }
+
+    /**
+     * The mapping stays valid after the file is closed, so the reader doesn't hold a file handle.
+     */
+    public static BoardArchiveReader open(Path path) throws IOException {
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Board archive " + path + " is too large to map");
+            }
+            return new BoardArchiveReader(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    public long getPeerId() {
+        return peerId;
+    }
+
+    /**
+     * Epoch millis of the battle's start, which tells the battles of a chat apart.
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getDraws() {
+        return draws;
+    }
+
+    public int getFirstOrderId() {
+        return firstOrderId;
+    }
+
+    public int getLastOrderId() {
+        return lastOrderId;
+    }
+
+    public long getFirstTime() {
+        return firstTime;
+    }
+
+    public long getLastTime() {
+        return lastTime;
+    }
+
+    public long getBytes() {
+        return data.capacity();
+    }
+
+    /**
+     * Passes every draw to the consumer in order_id order, like {@link BoardDrawLogOrmService#forEachDrawLog}.
+     */
+    public void forEachDraw(BoardDrawLogOrmService.DrawLogRowConsumer consumer) throws IOException {
+        var inflater = new Inflater();
+        var raw = new byte[0];
+        try {
+            for (var block : blocks) {
+                if (raw.length < block.rawLength()) {
+                    raw = new byte[block.rawLength()];
+                }
+                inflater.reset();
+                inflater.setInput(data.slice((int) block.offset(), block.compressedLength()));
+                var rawLength = 0;
+                while (rawLength < block.rawLength() && !inflater.finished()) {
+                    var inflated = inflater.inflate(raw, rawLength, block.rawLength() - rawLength);
+                    if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        throw new IOException("Truncated block in board archive");
+                    }
+                    rawLength += inflated;
+                }
+                replayBlock(block, ByteBuffer.wrap(raw, 0, rawLength), consumer);
+            }
+        } catch (DataFormatException | BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IOException("Corrupt board archive", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private void replayBlock(
+            BoardArchiveWriter.BlockInfo block,
+            ByteBuffer raw,
+            BoardDrawLogOrmService.DrawLogRowConsumer consumer
+    ) {
+        var orderId = block.firstOrderId();
+        var time = block.firstTime();
+        for (int i = 0; i < block.draws(); i++) {
+            orderId += (int) readVarint(raw);
+            time += unZigZag(readVarint(raw));
+            var x = unZigZag(readVarint(raw));
+            var y = unZigZag(readVarint(raw));
+            var color = palette[(int) readVarint(raw)];
+            var user = users[(int) readVarint(raw)];
+            consumer.accept(orderId, user, time, x, y, color);
+        }
+    }
+
+    /**
+     * Reads the length of a table in the footer, checking that the footer is long enough to hold it.
+     */
+    private static int readCount(ByteBuffer footer, int elementBytes) throws IOException {
+        var count = footer.getInt();
+        if (count < 0 || (long) count * elementBytes > footer.remaining()) {
+            throw new IOException("Corrupt board archive");
+        }
+        return count;
+    }
+
+    private static long readVarint(ByteBuffer raw) {
+        var value = 0L;
+        var shift = 0;
+        byte b;
+        do {
+            b = raw.get();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
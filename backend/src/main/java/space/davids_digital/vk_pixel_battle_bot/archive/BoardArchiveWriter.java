@@ -0,0 +1,206 @@
+package space.davids_digital.vk_pixel_battle_bot.archive;
+
+import space.davids_digital.vk_pixel_battle_bot.util.LongLongHashMap;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a battle's draws, in order_id order, as a board archive:
+ * <pre>
+ * "PBA1"
+ * blocks of up to {@link #BLOCK_DRAWS} draws, each deflated separately
+ * footer: chat, battle start, board size, draw count, first and last order_id and time,
+ *         palette of colors, table of user ids, directory of blocks
+ * footer offset (long), "PBA1"
+ * </pre>
+ * A draw in a block is the varint difference of its order_id from the previous one, the zig-zag varint
+ * difference of its time, its zig-zag varint coordinates and the varint indices of its color in the palette
+ * and of its user in the table. The first draw of a block is relative to the block's first order_id and time,
+ * which are in the directory, so blocks can be read on their own. Times are epoch millis.
+ */
+public class BoardArchiveWriter implements DrawLogWriter {
+    static final int MAGIC = 0x50424131;
+    static final int BLOCK_DRAWS = 4096;
+
+    private final DataOutputStream out;
+    private final long peerId;
+    private final long startTime;
+    private final int width;
+    private final int height;
+    private final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+    private final Map<Integer, Integer> paletteIndices = new HashMap<>();
+    private final List<Integer> palette = new ArrayList<>();
+    private final LongLongHashMap userIndices = new LongLongHashMap();
+    private long[] users = new long[64];
+    private final List<BlockInfo> blocks = new ArrayList<>();
+    private byte[] block = new byte[BLOCK_DRAWS * 8];
+    private byte[] compressed = new byte[block.length];
+    private int blockLength = 0;
+    private int blockDraws = 0;
+    private int blockFirstOrderId;
+    private long blockFirstTime;
+    private int previousOrderId;
+    private long previousTime;
+    private int draws = 0;
+    private int firstOrderId;
+    private long firstTime;
+    private long lastTime;
+    private long position;
+
+    public BoardArchiveWriter(OutputStream out, long peerId, long startTime, int width, int height) throws IOException {
+        this.out = new DataOutputStream(out);
+        this.peerId = peerId;
+        this.startTime = startTime;
+        this.width = width;
+        this.height = height;
+        this.out.writeInt(MAGIC);
+        position = Integer.BYTES;
+    }
+
+    public int getDraws() {
+        return draws;
+    }
+
+    @Override
+    public void add(int orderId, long userId, long time, long x, long y, int colorRgb) throws IOException {
+        if (blockDraws == BLOCK_DRAWS) {
+            writeBlock();
+        }
+        if (draws == 0) {
+            firstOrderId = orderId;
+            firstTime = time;
+        }
+        if (blockDraws == 0) {
+            blockFirstOrderId = orderId;
+            blockFirstTime = time;
+            previousOrderId = orderId;
+            previousTime = time;
+        }
+        // 6 varints of at most 10 bytes each
+        if (blockLength + 60 > block.length) {
+            block = Arrays.copyOf(block, block.length * 2);
+        }
+        putVarint(Integer.toUnsignedLong(orderId - previousOrderId));
+        putVarint(zigZag(time - previousTime));
+        putVarint(zigZag(x));
+        putVarint(zigZag(y));
+        putVarint(paletteIndex(colorRgb));
+        putVarint(userIndex(userId));
+        previousOrderId = orderId;
+        previousTime = time;
+        lastTime = time;
+        blockDraws++;
+        draws++;
+    }
+
+    /**
+     * Writes the last block and the footer.
+     */
+    @Override
+    public void finish() throws IOException {
+        if (blockDraws > 0) {
+            writeBlock();
+        }
+        deflater.end();
+        var footerOffset = position;
+        out.writeLong(peerId);
+        out.writeLong(startTime);
+        out.writeInt(width);
+        out.writeInt(height);
+        out.writeInt(draws);
+        out.writeInt(draws > 0 ? firstOrderId : 0);
+        out.writeInt(draws > 0 ? previousOrderId : 0);
+        out.writeLong(draws > 0 ? firstTime : 0);
+        out.writeLong(draws > 0 ? lastTime : 0);
+        out.writeInt(palette.size());
+        for (var color : palette) {
+            out.writeInt(color);
+        }
+        out.writeInt(userIndices.size());
+        for (int i = 0; i < userIndices.size(); i++) {
+            out.writeLong(users[i]);
+        }
+        out.writeInt(blocks.size());
+        for (var info : blocks) {
+            out.writeLong(info.offset());
+            out.writeInt(info.compressedLength());
+            out.writeInt(info.rawLength());
+            out.writeInt(info.draws());
+            out.writeInt(info.firstOrderId());
+            out.writeLong(info.firstTime());
+        }
+        out.writeLong(footerOffset);
+        out.writeInt(MAGIC);
+        out.flush();
+    }
+
+    private void writeBlock() throws IOException {
+        deflater.reset();
+        deflater.setInput(block, 0, blockLength);
+        deflater.finish();
+        var compressedLength = 0;
+        while (!deflater.finished()) {
+            if (compressedLength == compressed.length) {
+                compressed = Arrays.copyOf(compressed, compressed.length * 2);
+            }
+            compressedLength += deflater.deflate(compressed, compressedLength, compressed.length - compressedLength);
+        }
+        out.write(compressed, 0, compressedLength);
+        blocks.add(new BlockInfo(
+                position,
+                compressedLength,
+                blockLength,
+                blockDraws,
+                blockFirstOrderId,
+                blockFirstTime
+        ));
+        position += compressedLength;
+        blockLength = 0;
+        blockDraws = 0;
+    }
+
+    private int paletteIndex(int colorRgb) {
+        var index = paletteIndices.get(colorRgb);
+        if (index == null) {
+            index = palette.size();
+            paletteIndices.put(colorRgb, index);
+            palette.add(colorRgb);
+        }
+        return index;
+    }
+
+    private long userIndex(long userId) {
+        var index = userIndices.get(userId, -1);
+        if (index < 0) {
+            index = userIndices.size();
+            userIndices.put(userId, index);
+            if (index == users.length) {
+                users = Arrays.copyOf(users, users.length * 2);
+            }
+            users[(int) index] = userId;
+        }
+        return index;
+    }
+
+    private void putVarint(long value) {
+        while ((value & ~0x7FL) != 0) {
+            block[blockLength++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        block[blockLength++] = (byte) value;
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    record BlockInfo(long offset, int compressedLength, int rawLength, int draws, int firstOrderId, long firstTime) {}
+}
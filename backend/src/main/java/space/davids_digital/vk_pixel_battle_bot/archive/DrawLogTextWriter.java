@@ -0,0 +1,101 @@
+package space.davids_digital.vk_pixel_battle_bot.archive;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes draws as NDJSON, one {@code {"orderId":..,"userId":..,"time":..,"x":..,"y":..,"colorRgb":..}} object per
+ * line, or as CSV with an {@code order_id,user_id,time,x,y,color_rgb} header. Every field is a number, so rows are
+ * formatted straight into a byte buffer instead of going through strings or a JSON mapper.
+ */
+public class DrawLogTextWriter implements DrawLogWriter {
+    private static final int BUFFER_BYTES = 65536;
+    // 6 numbers of at most 20 characters each and the longest separators
+    private static final int MAX_ROW_BYTES = 6 * 20 + 64;
+
+    private final OutputStream out;
+    private final byte[][] separators;
+    private final byte[] buffer = new byte[BUFFER_BYTES];
+    private int length = 0;
+
+    private DrawLogTextWriter(OutputStream out, String header, String... separators) {
+        this.out = out;
+        this.separators = new byte[separators.length][];
+        for (int i = 0; i < separators.length; i++) {
+            this.separators[i] = separators[i].getBytes(StandardCharsets.US_ASCII);
+        }
+        putBytes(header.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    public static DrawLogTextWriter ndjson(OutputStream out) {
+        return new DrawLogTextWriter(
+                out,
+                "",
+                "{\"orderId\":",
+                ",\"userId\":",
+                ",\"time\":",
+                ",\"x\":",
+                ",\"y\":",
+                ",\"colorRgb\":",
+                "}\n"
+        );
+    }
+
+    public static DrawLogTextWriter csv(OutputStream out) {
+        return new DrawLogTextWriter(out, "order_id,user_id,time,x,y,color_rgb\n", "", ",", ",", ",", ",", ",", "\n");
+    }
+
+    @Override
+    public void add(int orderId, long userId, long time, long x, long y, int colorRgb) throws IOException {
+        if (length + MAX_ROW_BYTES > buffer.length) {
+            out.write(buffer, 0, length);
+            length = 0;
+        }
+        putBytes(separators[0]);
+        putLong(orderId);
+        putBytes(separators[1]);
+        putLong(userId);
+        putBytes(separators[2]);
+        putLong(time);
+        putBytes(separators[3]);
+        putLong(x);
+        putBytes(separators[4]);
+        putLong(y);
+        putBytes(separators[5]);
+        putLong(colorRgb);
+        putBytes(separators[6]);
+    }
+
+    @Override
+    public void finish() throws IOException {
+        out.write(buffer, 0, length);
+        length = 0;
+        out.flush();
+    }
+
+    private void putBytes(byte[] bytes) {
+        System.arraycopy(bytes, 0, buffer, length, bytes.length);
+        length += bytes.length;
+    }
+
+    private void putLong(long value) {
+        if (value == Long.MIN_VALUE) {
+            putBytes(Long.toString(value).getBytes(StandardCharsets.US_ASCII));
+            return;
+        }
+        if (value < 0) {
+            buffer[length++] = '-';
+            value = -value;
+        }
+        var digits = 1;
+        for (var rest = value / 10; rest != 0; rest /= 10) {
+            digits++;
+        }
+        length += digits;
+        for (int i = length - 1; i >= length - digits; i--) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+}
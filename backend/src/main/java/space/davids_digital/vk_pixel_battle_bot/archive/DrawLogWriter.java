@@ -0,0 +1,15 @@
+package space.davids_digital.vk_pixel_battle_bot.archive;
+
+import java.io.IOException;
+
+/**
+ * Writes a chat's draws, given in order_id order, in some file format. Times are epoch millis.
+ */
+public interface DrawLogWriter {
+    void add(int orderId, long userId, long time, long x, long y, int colorRgb) throws IOException;
+
+    /**
+     * Writes whatever the format needs after the last draw. The stream is flushed but not closed.
+     */
+    void finish() throws IOException;
+}
@@ -0,0 +1,18 @@
+package space.davids_digital.vk_pixel_battle_bot.model;
+
+/**
+ * An archived battle. Its {@code id} is the epoch millis of the battle's start, as are the draw times.
+ *
+ * @param bytes size of the archive file
+ */
+public record BoardArchiveModel(
+        long id,
+        int width,
+        int height,
+        int draws,
+        int firstOrderId,
+        int lastOrderId,
+        long firstDrawTime,
+        long lastDrawTime,
+        long bytes
+) {}
@@ -0,0 +1,8 @@
+package space.davids_digital.vk_pixel_battle_bot.model;
+
+/**
+ * The whole board as sent to event streams. {@code colors} is Base64 of the zlib-compressed cell colors,
+ * a big-endian int per cell row by row from the top-left corner, with {@link BoardStateModel#EMPTY}
+ * for cells nobody has painted.
+ */
+public record BoardEventSnapshotModel(int orderId, int width, int height, String colors) {}
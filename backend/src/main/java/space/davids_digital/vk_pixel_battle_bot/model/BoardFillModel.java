@@ -0,0 +1,3 @@
+package space.davids_digital.vk_pixel_battle_bot.model;
+
+public record BoardFillModel(int paintedCells, int totalCells, boolean filled) {}
@@ -0,0 +1,9 @@
+package space.davids_digital.vk_pixel_battle_bot.model;
+
+public record BoardImageKey(long peerId, int lastOrderId, int width, int height, BoardViewModel view) {
+    public String toETag() {
+        return "\"" + peerId + "-" + (view.grid() ? "g" : "n") + "-" + width + "x" + height + "-" + lastOrderId
+                + "-" + view.minX() + ".." + view.maxX() + "," + view.minY() + ".." + view.maxY()
+                + "@" + view.cellSize() + "\"";
+    }
+}
@@ -0,0 +1,16 @@
+package space.davids_digital.vk_pixel_battle_bot.model;
+
+import java.time.LocalDateTime;
+
+/**
+ * Compressed state of a board after every draw up to {@code orderId}. {@code startTime} is the battle start
+ * time of the chat when it was taken, so a snapshot of an earlier battle can be told apart.
+ */
+public record BoardSnapshotModel(
+        long peerId,
+        LocalDateTime startTime,
+        int width,
+        int height,
+        int orderId,
+        byte[] data
+) {}
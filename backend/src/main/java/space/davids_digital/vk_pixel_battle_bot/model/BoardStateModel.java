@@ -0,0 +1,73 @@
+package space.davids_digital.vk_pixel_battle_bot.model;
+
+import java.util.Arrays;
+
+/**
+ * Final color of every board cell, row by row from the top-left corner.
+ * Cells nobody has painted yet hold {@link #EMPTY}.
+ */
+public class BoardStateModel {
+    public static final int EMPTY = -1;
+
+    private final long peerId;
+    private final int width;
+    private final int height;
+    private final int lastOrderId;
+    private final int[] colors;
+
+    public BoardStateModel(long peerId, int width, int height, int lastOrderId, int[] colors) {
+        this.peerId = peerId;
+        this.width = width;
+        this.height = height;
+        this.lastOrderId = lastOrderId;
+        this.colors = colors;
+    }
+
+    public long getPeerId() {
+        return peerId;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getLastOrderId() {
+        return lastOrderId;
+    }
+
+    public int[] getColors() {
+        return colors;
+    }
+
+    public int getColor(int column, int row) {
+        return colors[row * width + column];
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        BoardStateModel that = (BoardStateModel) o;
+
+        if (peerId != that.peerId) return false;
+        if (width != that.width) return false;
+        if (height != that.height) return false;
+        if (lastOrderId != that.lastOrderId) return false;
+        return Arrays.equals(colors, that.colors);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = (int) (peerId ^ (peerId >>> 32));
+        result = 31 * result + width;
+        result = 31 * result + height;
+        result = 31 * result + lastOrderId;
+        result = 31 * result + Arrays.hashCode(colors);
+        return result;
+    }
+}
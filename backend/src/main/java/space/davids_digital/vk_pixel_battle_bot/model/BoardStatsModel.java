@@ -0,0 +1,9 @@
+package space.davids_digital.vk_pixel_battle_bot.model;
+
+import java.util.List;
+
+/**
+ * @param users everyone who has drawn, most draws first
+ * @param top the first users of {@code users}
+ */
+public record BoardStatsModel(long totalDraws, List<UserStatsModel> users, List<UserStatsModel> top) {}
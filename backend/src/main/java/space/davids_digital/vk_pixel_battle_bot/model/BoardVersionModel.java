@@ -0,0 +1,6 @@
+package space.davids_digital.vk_pixel_battle_bot.model;
+
+/**
+ * Everything a board image depends on besides its view, which is known without copying the board's cells.
+ */
+public record BoardVersionModel(long peerId, int lastOrderId, int width, int height) {}
@@ -0,0 +1,15 @@
+package space.davids_digital.vk_pixel_battle_bot.model;
+
+/**
+ * Part of a board to draw, in the bot's centered coordinates with inclusive bounds, and how many
+ * pixels a cell takes. Cell sizes below 1 downsample the board.
+ */
+public record BoardViewModel(int minX, int maxX, int minY, int maxY, double cellSize, boolean grid) {
+    public int columns() {
+        return maxX - minX + 1;
+    }
+
+    public int rows() {
+        return maxY - minY + 1;
+    }
+}
@@ -0,0 +1,14 @@
+package space.davids_digital.vk_pixel_battle_bot.model;
+
+/**
+ * Optional query parameters that select the part of a board to draw and its scale.
+ * Unset bounds default to the board's edges.
+ */
+public record BoardViewRequestModel(
+        Integer minX,
+        Integer maxX,
+        Integer minY,
+        Integer maxY,
+        Double cellSize,
+        Integer maxSize
+) {}
@@ -0,0 +1,6 @@
+package space.davids_digital.vk_pixel_battle_bot.model;
+
+/**
+ * {@code lastDrawTime} is in epoch millis and is null if the user hasn't drawn in the current battle.
+ */
+public record CooldownModel(long userId, Long lastDrawTime, int intervalSeconds, long secondsLeft) {}
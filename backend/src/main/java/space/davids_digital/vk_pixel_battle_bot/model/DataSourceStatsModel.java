@@ -0,0 +1,17 @@
+package space.davids_digital.vk_pixel_battle_bot.model;
+
+public record DataSourceStatsModel(
+        int totalConnections,
+        int activeConnections,
+        int idleConnections,
+        int waitingThreads,
+        int maxConnections,
+        int minConnections,
+        long acquiredCount,
+        double acquireAverageMillis,
+        double acquireMaxMillis,
+        long acquireTimeoutCount,
+        double usageAverageMillis,
+        long createdCount,
+        double createAverageMillis
+) {}
@@ -0,0 +1,92 @@
+package space.davids_digital.vk_pixel_battle_bot.model;
+
+import java.time.ZoneId;
+import java.util.Arrays;
+
+/**
+ * Rows of board_draw_log in parallel primitive arrays, one per column, so reading and applying thousands of rows
+ * takes a few array allocations instead of objects per row. Times are epoch millis.
+ */
+public class DrawLogBatch {
+    private int size = 0;
+    private int[] orderIds;
+    private long[] userIds;
+    private long[] times;
+    private long[] xs;
+    private long[] ys;
+    private int[] colors;
+
+    public DrawLogBatch(int capacity) {
+        capacity = Math.max(capacity, 1);
+        orderIds = new int[capacity];
+        userIds = new long[capacity];
+        times = new long[capacity];
+        xs = new long[capacity];
+        ys = new long[capacity];
+        colors = new int[capacity];
+    }
+
+    public static DrawLogBatch of(BoardDrawLogModel drawLog) {
+        var batch = new DrawLogBatch(1);
+        batch.add(
+                drawLog.getOrderId(),
+                drawLog.getUserId(),
+                drawLog.getTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli(),
+                drawLog.getX(),
+                drawLog.getY(),
+                drawLog.getColor().getRGB() & 0xFFFFFF
+        );
+        return batch;
+    }
+
+    public void add(int orderId, long userId, long time, long x, long y, int colorRgb) {
+        if (size == orderIds.length) {
+            var capacity = size * 2;
+            orderIds = Arrays.copyOf(orderIds, capacity);
+            userIds = Arrays.copyOf(userIds, capacity);
+            times = Arrays.copyOf(times, capacity);
+            xs = Arrays.copyOf(xs, capacity);
+            ys = Arrays.copyOf(ys, capacity);
+            colors = Arrays.copyOf(colors, capacity);
+        }
+        orderIds[size] = orderId;
+        userIds[size] = userId;
+        times[size] = time;
+        xs[size] = x;
+        ys[size] = y;
+        colors[size] = colorRgb;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int getOrderId(int i) {
+        return orderIds[i];
+    }
+
+    public long getUserId(int i) {
+        return userIds[i];
+    }
+
+    public long getTime(int i) {
+        return times[i];
+    }
+
+    public long getX(int i) {
+        return xs[i];
+    }
+
+    public long getY(int i) {
+        return ys[i];
+    }
+
+    public int getColorRgb(int i) {
+        return colors[i];
+    }
+}
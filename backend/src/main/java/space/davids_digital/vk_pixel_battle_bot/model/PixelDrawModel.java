@@ -0,0 +1,3 @@
+package space.davids_digital.vk_pixel_battle_bot.model;
+
+public record PixelDrawModel(long userId, long x, long y, int colorRgb) {}
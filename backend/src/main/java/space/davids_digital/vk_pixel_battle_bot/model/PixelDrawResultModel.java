@@ -0,0 +1,3 @@
+package space.davids_digital.vk_pixel_battle_bot.model;
+
+public record PixelDrawResultModel(int orderId, long x, long y, int colorRgb) {}
@@ -0,0 +1,3 @@
+package space.davids_digital.vk_pixel_battle_bot.model;
+
+public record UserStatsModel(long userId, long draws, long ownedCells) {}
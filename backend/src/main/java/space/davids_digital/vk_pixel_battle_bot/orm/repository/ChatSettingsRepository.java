@@ -3,4 +3,8 @@ package space.davids_digital.vk_pixel_battle_bot.orm.repository;
 import org.springframework.data.repository.CrudRepository;
 import space.davids_digital.vk_pixel_battle_bot.orm.entity.ChatSettingsEntity;
 
-public interface ChatSettingsRepository extends CrudRepository<ChatSettingsEntity, Long> {}
+import java.util.List;
+
+public interface ChatSettingsRepository extends CrudRepository<ChatSettingsEntity, Long> {
+    List<ChatSettingsEntity> findAllByPixelBattleStartedTrue();
+}
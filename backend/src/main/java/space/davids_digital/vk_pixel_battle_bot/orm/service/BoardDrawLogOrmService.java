@@ -1,26 +1,305 @@
 package space.davids_digital.vk_pixel_battle_bot.orm.service;
 
 import space.davids_digital.vk_pixel_battle_bot.model.BoardDrawLogModel;
-import space.davids_digital.vk_pixel_battle_bot.orm.entity.BoardDrawLogEntity;
-import space.davids_digital.vk_pixel_battle_bot.orm.repository.BoardDrawLogRepository;
+import space.davids_digital.vk_pixel_battle_bot.model.DrawLogBatch;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Isolation;
+import org.springframework.transaction.annotation.Transactional;
 
 import java.awt.*;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.ZoneId;
 import java.util.List;
 
 @Service
 public class BoardDrawLogOrmService {
-    private final BoardDrawLogRepository boardDrawLogRepository;
+    /**
+     * The time is turned into epoch millis by the database, in the session's time zone, which the driver sets
+     * to the JVM's, so it means the same as {@code getTimestamp(...).getTime()} without a Timestamp per row.
+     */
+    private static final String BATCH_COLUMNS = "order_id, user_id, "
+            + "floor(extract(epoch from time::timestamptz) * 1000)::bigint, x, y, color_rgb";
 
-    public BoardDrawLogOrmService(BoardDrawLogRepository boardDrawLogRepository) {
-        this.boardDrawLogRepository = boardDrawLogRepository;
+    private final JdbcTemplate jdbcTemplate;
+
+    public BoardDrawLogOrmService(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * Reads the chat's rows newer than {@code orderId}, in order_id order, straight from the result set.
+     */
+    public DrawLogBatch getDrawLogBatchByPeerIdAfterOrderId(long peerId, int orderId) {
+        var batch = new DrawLogBatch(64);
+        jdbcTemplate.query(
+                "select " + BATCH_COLUMNS + " from board_draw_log where peer_id = ? and order_id > ? order by order_id",
+                rs -> {
+                    addToBatch(rs, batch);
+                },
+                peerId,
+                orderId
+        );
+        return batch;
+    }
+
+    /**
+     * Reads at most {@code limit} of the chat's rows newer than {@code orderId}, in order_id order.
+     */
+    public DrawLogBatch getDrawLogBatchByPeerIdAfterOrderId(long peerId, int orderId, int limit) {
+        var batch = new DrawLogBatch(limit);
+        jdbcTemplate.query(
+                "select " + BATCH_COLUMNS + " from board_draw_log where peer_id = ? and order_id > ? "
+                        + "order by order_id limit ?",
+                rs -> {
+                    addToBatch(rs, batch);
+                },
+                peerId,
+                orderId,
+                limit
+        );
+        return batch;
+    }
+
+    /**
+     * Reads the last draw of every cell, backed by the board_draw_log__peer_id_x_y_order_id_idx index. The rows
+     * come in no particular order.
+     */
+    public DrawLogBatch getLatestPixelBatchByPeerId(long peerId) {
+        var batch = new DrawLogBatch(1024);
+        jdbcTemplate.query(
+                "select distinct on (x, y) " + BATCH_COLUMNS + " from board_draw_log "
+                        + "where peer_id = ? order by x, y, order_id desc",
+                rs -> {
+                    addToBatch(rs, batch);
+                },
+                peerId
+        );
+        return batch;
+    }
+
+    /**
+     * Reads the last draw of every cell like {@link #getLatestPixelBatchByPeerId} and reports how much every user
+     * has drawn like {@link #forEachUserDrawSummary}. Both queries see the same snapshot of the log, so a row
+     * committed in between is neither counted for its user without its pixel nor the other way round.
+     */
+    @Transactional(readOnly = true, isolation = Isolation.REPEATABLE_READ)
+    public DrawLogBatch getLatestPixelBatchAndUserSummaries(long peerId, UserDrawSummaryConsumer consumer) {
+        var pixels = getLatestPixelBatchByPeerId(peerId);
+        forEachUserDrawSummary(peerId, consumer);
+        return pixels;
+    }
+
+    /**
+     * Inserts a draw log with an order_id assigned by the database and returns the stored row.
+     */
+    public BoardDrawLogModel addDrawLog(long peerId, long userId, long x, long y, int colorRgb) {
+        return jdbcTemplate.queryForObject("""
+                insert into board_draw_log (peer_id, user_id, time, x, y, color_rgb)
+                values (?, ?, now(), ?, ?, ?)
+                returning order_id, time
+                """,
+                (rs, rowNum) -> new BoardDrawLogModel(
+                        peerId,
+                        userId,
+                        rs.getInt("order_id"),
+                        rs.getTimestamp("time").toLocalDateTime(),
+                        x,
+                        y,
+                        new Color(colorRgb)
+                ),
+                peerId, userId, x, y, colorRgb
+        );
+    }
+
+    /**
+     * Inserts draw logs that already have their order_id, in one JDBC batch.
+     */
+    public void addDrawLogs(List<BoardDrawLogModel> drawLogs) {
+        jdbcTemplate.batchUpdate("""
+                insert into board_draw_log (peer_id, user_id, order_id, time, x, y, color_rgb)
+                values (?, ?, ?, ?, ?, ?, ?)
+                """,
+                drawLogs,
+                drawLogs.size(),
+                (statement, drawLog) -> {
+                    statement.setLong(1, drawLog.getPeerId());
+                    statement.setLong(2, drawLog.getUserId());
+                    statement.setInt(3, drawLog.getOrderId());
+                    statement.setTimestamp(4, Timestamp.valueOf(drawLog.getTime()));
+                    statement.setLong(5, drawLog.getX());
+                    statement.setLong(6, drawLog.getY());
+                    statement.setLong(7, drawLog.getColor().getRGB() & 0xFFFFFF);
+                }
+        );
+    }
+
+    /**
+     * Deletes the chat's draw log and its board snapshots, like the bot does when a battle restarts.
+     */
+    @Transactional
+    public void clearDrawLog(long peerId) {
+        jdbcTemplate.update("delete from board_draw_log where peer_id = ?", peerId);
+        jdbcTemplate.update("delete from board_snapshot where peer_id = ?", peerId);
+    }
+
+    /**
+     * Takes the next {@code count} values of the order_id sequence, so rows can be numbered before they're inserted.
+     */
+    public int[] reserveOrderIds(int count) {
+        return jdbcTemplate.queryForList(
+                "select nextval(pg_get_serial_sequence('board_draw_log', 'order_id')) from generate_series(1, ?)",
+                Integer.class,
+                count
+        ).stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * Reports how many times every user has drawn in the chat and the epoch millis of their last draw.
+     */
+    public void forEachUserDrawSummary(long peerId, UserDrawSummaryConsumer consumer) {
+        jdbcTemplate.query("""
+                select user_id, count(*) as draw_count, max(time) as last_time
+                from board_draw_log
+                where peer_id = ?
+                group by user_id
+                """,
+                rs -> {
+                    var lastTime = rs.getTimestamp("last_time").toLocalDateTime();
+                    consumer.accept(
+                            rs.getLong("user_id"),
+                            rs.getLong("draw_count"),
+                            lastTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli()
+                    );
+                },
+                peerId
+        );
+    }
+
+    /**
+     * Passes every row of the chat's log to the consumer in order_id order. Rows are read through a cursor
+     * {@code fetchSize} at a time instead of being loaded at once, which is why the query runs in a
+     * read-only transaction: the driver only uses a cursor when autocommit is off.
+     */
+    @Transactional(readOnly = true)
+    public void forEachDrawLog(long peerId, int fetchSize, DrawLogRowConsumer consumer) {
+        jdbcTemplate.query(
+                connection -> {
+                    var statement = connection.prepareStatement(
+                            "select order_id, user_id, time, x, y, color_rgb from board_draw_log "
+                                    + "where peer_id = ? order by order_id",
+                            ResultSet.TYPE_FORWARD_ONLY,
+                            ResultSet.CONCUR_READ_ONLY
+                    );
+                    statement.setFetchSize(fetchSize);
+                    statement.setLong(1, peerId);
+                    return statement;
+                },
+                rs -> {
+                    consumer.accept(
+                            rs.getInt("order_id"),
+                            rs.getLong("user_id"),
+                            rs.getTimestamp("time").getTime(),
+                            rs.getLong("x"),
+                            rs.getLong("y"),
+                            (int) rs.getLong("color_rgb")
+                    );
+                }
+        );
+    }
+
+    /**
+     * Passes every row of the chat's log to the consumer in order_id order, like {@link #forEachDrawLog}, but
+     * reads {@code batchSize} rows per query, each after the last order_id of the one before. The connection
+     * goes back to the pool before a batch is passed on, so a consumer that blocks, like one writing to a slow
+     * client, holds none. Rows committed meanwhile are passed on if their order_id comes after the last one read.
+     */
+    public void forEachDrawLogInBatches(long peerId, int batchSize, DrawLogRowConsumer consumer) {
+        var lastOrderId = Integer.MIN_VALUE;
+        DrawLogBatch batch;
+        do {
+            batch = getDrawLogBatchByPeerIdAfterOrderId(peerId, lastOrderId, batchSize);
+            for (int i = 0; i < batch.size(); i++) {
+                consumer.accept(
+                        batch.getOrderId(i),
+                        batch.getUserId(i),
+                        batch.getTime(i),
+                        batch.getX(i),
+                        batch.getY(i),
+                        batch.getColorRgb(i)
+                );
+            }
+            if (!batch.isEmpty()) {
+                lastOrderId = batch.getOrderId(batch.size() - 1);
+            }
+        } while (batch.size() == batchSize);
+    }
+
+    /**
+     * Reports the latest order_id of each of the chats and the epoch millis of that draw. Chats without rows
+     * are skipped. Each chat costs one lookup in the (peer_id, order_id) index.
+     */
+    public void forEachLatestDrawLog(long[] peerIds, LatestDrawLogConsumer consumer) {
+        jdbcTemplate.query("""
+                select p.peer_id, l.order_id, l.time
+                from unnest(?::bigint[]) as p(peer_id)
+                cross join lateral (
+                    select order_id, time
+                    from board_draw_log
+                    where peer_id = p.peer_id
+                    order by order_id desc
+                    limit 1
+                ) as l
+                """,
+                rs -> {
+                    consumer.accept(rs.getLong("peer_id"), rs.getInt("order_id"), rs.getTimestamp("time").getTime());
+                },
+                (Object) peerIds
+        );
+    }
+
+    /**
+     * Whether the bot has installed the trigger that notifies the board_draw_log channel about new rows.
+     */
+    public boolean isNotifyTriggerInstalled() {
+        return Boolean.TRUE.equals(jdbcTemplate.queryForObject("""
+                select exists (
+                    select 1 from pg_trigger
+                    where tgname = 'board_draw_log_notify' and tgrelid = to_regclass('board_draw_log')
+                )
+                """,
+                Boolean.class
+        ));
+    }
+
+    /**
+     * Reads a row of {@link #BATCH_COLUMNS} by index. The driver parses numbers from the row's bytes, so no
+     * objects are created for it.
+     */
+    private static void addToBatch(ResultSet rs, DrawLogBatch batch) throws SQLException {
+        batch.add(rs.getInt(1), rs.getLong(2), rs.getLong(3), rs.getLong(4), rs.getLong(5), (int) rs.getLong(6));
+    }
+
+    @FunctionalInterface
+    public interface DrawLogRowConsumer {
+        /**
+         * @param time epoch millis
+         */
+        void accept(int orderId, long userId, long time, long x, long y, int colorRgb);
     }
 
-    public List<BoardDrawLogModel> getDrawLogsByPeerId(long peerId) {
-        return boardDrawLogRepository.findAllByPeerIdOrderByOrderId(peerId).stream().map(this::toModel).toList();
+    @FunctionalInterface
+    public interface LatestDrawLogConsumer {
+        /**
+         * @param time epoch millis
+         */
+        void accept(long peerId, int orderId, long time);
     }
 
-    private BoardDrawLogModel toModel(BoardDrawLogEntity e) {
-        return new BoardDrawLogModel(e.peerId, e.userId, e.orderId, e.time, e.x, e.y, new Color((int) e.colorRgb));
+    @FunctionalInterface
+    public interface UserDrawSummaryConsumer {
+        void accept(long userId, long drawCount, long lastDrawTime);
     }
 }
@@ -0,0 +1,72 @@
+package space.davids_digital.vk_pixel_battle_bot.orm.service;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import space.davids_digital.vk_pixel_battle_bot.model.BoardSnapshotModel;
+
+import java.sql.Timestamp;
+
+/**
+ * Keeps the latest snapshot of every chat's board in board_snapshot. The table is created by the bot,
+ * which also deletes a chat's snapshot together with its draw log.
+ */
+@Service
+public class BoardSnapshotOrmService {
+    private final JdbcTemplate jdbcTemplate;
+
+    public BoardSnapshotOrmService(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    public BoardSnapshotModel getSnapshot(long peerId) {
+        return jdbcTemplate.query("""
+                select peer_id, start_time, width, height, order_id, data
+                from board_snapshot
+                where peer_id = ?
+                """,
+                rs -> {
+                    if (!rs.next()) {
+                        return null;
+                    }
+                    var startTime = rs.getTimestamp("start_time");
+                    return new BoardSnapshotModel(
+                            rs.getLong("peer_id"),
+                            startTime != null ? startTime.toLocalDateTime() : null,
+                            rs.getInt("width"),
+                            rs.getInt("height"),
+                            rs.getInt("order_id"),
+                            rs.getBytes("data")
+                    );
+                },
+                peerId
+        );
+    }
+
+    /**
+     * Replaces the chat's snapshot unless the stored one is of the same battle and covers more of the log.
+     */
+    public void saveSnapshot(BoardSnapshotModel snapshot) {
+        jdbcTemplate.update("""
+                insert into board_snapshot (peer_id, start_time, width, height, order_id, time, data)
+                values (?, ?, ?, ?, ?, now(), ?)
+                on conflict (peer_id) do update
+                set start_time = excluded.start_time,
+                    width = excluded.width,
+                    height = excluded.height,
+                    order_id = excluded.order_id,
+                    time = excluded.time,
+                    data = excluded.data
+                where board_snapshot.start_time is distinct from excluded.start_time
+                    or board_snapshot.width <> excluded.width
+                    or board_snapshot.height <> excluded.height
+                    or board_snapshot.order_id <= excluded.order_id
+                """,
+                snapshot.peerId(),
+                snapshot.startTime() != null ? Timestamp.valueOf(snapshot.startTime()) : null,
+                snapshot.width(),
+                snapshot.height(),
+                snapshot.orderId(),
+                snapshot.data()
+        );
+    }
+}
@@ -5,6 +5,8 @@ import space.davids_digital.vk_pixel_battle_bot.model.ChatSettingsModel;
 import space.davids_digital.vk_pixel_battle_bot.orm.entity.ChatSettingsEntity;
 import space.davids_digital.vk_pixel_battle_bot.orm.repository.ChatSettingsRepository;
 
+import java.util.List;
+
 @Service
 public class ChatSettingsOrmService {
     private final ChatSettingsRepository chatSettingsRepository;
@@ -17,6 +19,10 @@ public class ChatSettingsOrmService {
         return chatSettingsRepository.findById(peerId).map(this::toModel).orElse(null);
     }
 
+    public List<ChatSettingsModel> getStartedChatSettings() {
+        return chatSettingsRepository.findAllByPixelBattleStartedTrue().stream().map(this::toModel).toList();
+    }
+
     private ChatSettingsModel toModel(ChatSettingsEntity entity) {
         return new ChatSettingsModel(
                 entity.peerId,
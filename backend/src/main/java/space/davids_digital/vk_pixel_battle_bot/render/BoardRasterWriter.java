@@ -0,0 +1,124 @@
+package space.davids_digital.vk_pixel_battle_bot.render;
+
+import space.davids_digital.vk_pixel_battle_bot.model.BoardStateModel;
+
+import java.util.Arrays;
+
+/**
+ * Writes a rectangle of board cells straight into the pixel array of a {@code TYPE_INT_RGB} image.
+ * Empty cells leave whatever is underneath (the grid layer or background) untouched.
+ */
+public final class BoardRasterWriter {
+    private BoardRasterWriter() {}
+
+    /**
+     * Draws cells as square blocks of a whole number of pixels. Only the first pixel row of every run
+     * of painted cells is filled, the rest of the block is copied from it.
+     */
+    public static void writeCells(
+            int[] cells,
+            int boardWidth,
+            int columnFrom,
+            int rowFrom,
+            int columns,
+            int rows,
+            int[] pixels,
+            int imageWidth,
+            int offsetX,
+            int offsetY,
+            int cellSize
+    ) {
+        for (int row = 0; row < rows; row++) {
+            var rowStart = (offsetY + row * cellSize) * imageWidth + offsetX;
+            var cellIndex = (rowFrom + row) * boardWidth + columnFrom;
+            var column = 0;
+            while (column < columns) {
+                if (cells[cellIndex + column] == BoardStateModel.EMPTY) {
+                    column++;
+                    continue;
+                }
+                var runStart = column;
+                while (column < columns && cells[cellIndex + column] != BoardStateModel.EMPTY) {
+                    var spanStart = rowStart + column * cellSize;
+                    Arrays.fill(pixels, spanStart, spanStart + cellSize, cells[cellIndex + column]);
+                    column++;
+                }
+                var runOffset = rowStart + runStart * cellSize;
+                var runLength = (column - runStart) * cellSize;
+                for (int line = 1; line < cellSize; line++) {
+                    System.arraycopy(pixels, runOffset, pixels, runOffset + line * imageWidth, runLength);
+                }
+            }
+        }
+    }
+
+    /**
+     * Draws cells of any positive size, taking for every pixel the cell under its top left corner, so a size
+     * below 1 downsamples the board. The cell of every pixel column is looked up once, and pixel rows that
+     * fall on the same cell row are copied from the first one, so the background must be plain.
+     */
+    public static void sampleCells(
+            int[] cells,
+            int boardWidth,
+            int columnFrom,
+            int rowFrom,
+            int columns,
+            int rows,
+            int[] pixels,
+            int imageWidth,
+            int offsetX,
+            int offsetY,
+            int drawWidth,
+            int drawHeight,
+            double cellSize
+    ) {
+        var cellColumns = mapCellColumns(columnFrom, columns, drawWidth, cellSize);
+        var previousRow = -1;
+        for (int y = 0; y < drawHeight; y++) {
+            var row = rowFrom + Math.min(rows - 1, (int) (y / cellSize));
+            var pixelRowStart = (offsetY + y) * imageWidth + offsetX;
+            if (row == previousRow) {
+                System.arraycopy(pixels, pixelRowStart - imageWidth, pixels, pixelRowStart, drawWidth);
+                continue;
+            }
+            sampleCellRow(cells, row * boardWidth, cellColumns, pixels, pixelRowStart);
+            previousRow = row;
+        }
+    }
+
+    /**
+     * Draws one pixel row of a row of cells, each cell {@code cellSize} pixels wide.
+     */
+    public static void writeCellRow(int[] cells, int cellOffset, int columns, int[] pixels, int pixelOffset, int cellSize) {
+        for (int column = 0; column < columns; column++) {
+            var rgb = cells[cellOffset + column];
+            if (rgb != BoardStateModel.EMPTY) {
+                var spanStart = pixelOffset + column * cellSize;
+                Arrays.fill(pixels, spanStart, spanStart + cellSize, rgb);
+            }
+        }
+    }
+
+    /**
+     * Draws one pixel row taking every pixel from the cell that {@code cellColumns} maps its column to.
+     */
+    public static void sampleCellRow(int[] cells, int cellRowOffset, int[] cellColumns, int[] pixels, int pixelOffset) {
+        for (int x = 0; x < cellColumns.length; x++) {
+            var rgb = cells[cellRowOffset + cellColumns[x]];
+            if (rgb != BoardStateModel.EMPTY) {
+                pixels[pixelOffset + x] = rgb;
+            }
+        }
+    }
+
+    /**
+     * Maps every pixel column of a row {@code drawWidth} pixels wide to the board column under it.
+     */
+    public static int[] mapCellColumns(int columnFrom, int columns, int drawWidth, double cellSize) {
+        var cellColumns = new int[drawWidth];
+        for (int x = 0; x < drawWidth; x++) {
+            cellColumns[x] = columnFrom + Math.min(columns - 1, (int) (x / cellSize));
+        }
+        return cellColumns;
+    }
+}
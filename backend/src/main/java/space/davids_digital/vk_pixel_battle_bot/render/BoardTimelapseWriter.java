@@ -0,0 +1,231 @@
+package space.davids_digital.vk_pixel_battle_bot.render;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.BitSet;
+
+/**
+ * Turns a sequence of cell changes into an animated GIF of the board. The first frame is the background
+ * (grid layer or blank image), every later frame covers only the bounding box of the cells changed since
+ * the previous one, with unchanged pixels left transparent. Only the current cell colors and a bitmap of
+ * changed cells are kept, so memory doesn't depend on how many changes are written.
+ */
+public class BoardTimelapseWriter {
+    private static final int MAX_FRAME_COLORS = GifWriter.MAX_PALETTE_SIZE - 1;
+    private static final int[] CUBE_PALETTE = createCubePalette();
+    private static final int CUBE_TRANSPARENT_INDEX = CUBE_PALETTE.length;
+
+    private final GifWriter gifWriter;
+    private final int boardWidth;
+    private final int boardHeight;
+    private final int offsetX;
+    private final int offsetY;
+    private final int cellSize;
+    private final int[] cells;
+    private final BitSet changedCells;
+    private final byte[] rowIndices;
+    private int minColumn;
+    private int maxColumn;
+    private int minRow;
+    private int maxRow;
+
+    private BoardTimelapseWriter(
+            GifWriter gifWriter,
+            int boardWidth,
+            int boardHeight,
+            int imageWidth,
+            int offsetX,
+            int offsetY,
+            int cellSize
+    ) {
+        this.gifWriter = gifWriter;
+        this.boardWidth = boardWidth;
+        this.boardHeight = boardHeight;
+        this.offsetX = offsetX;
+        this.offsetY = offsetY;
+        this.cellSize = cellSize;
+        this.cells = new int[boardWidth * boardHeight];
+        this.changedCells = new BitSet(boardWidth * boardHeight);
+        this.rowIndices = new byte[imageWidth];
+        resetChangedArea();
+    }
+
+    /**
+     * Writes the GIF header and the background as the first frame. Cells are placed {@code cellSize} pixels
+     * apart starting at the offset, over the background.
+     */
+    public static BoardTimelapseWriter start(
+            OutputStream out,
+            int[] background,
+            int imageWidth,
+            int imageHeight,
+            int boardWidth,
+            int boardHeight,
+            int offsetX,
+            int offsetY,
+            int cellSize,
+            int delayCentis
+    ) throws IOException {
+        var gifWriter = GifWriter.start(out, imageWidth, imageHeight);
+        var writer = new BoardTimelapseWriter(gifWriter, boardWidth, boardHeight, imageWidth, offsetX, offsetY, cellSize);
+        writer.writeBackground(background, imageWidth, imageHeight, delayCentis);
+        return writer;
+    }
+
+    public void setCell(int index, int rgb) {
+        cells[index] = rgb & 0xFFFFFF;
+        changedCells.set(index);
+        var row = index / boardWidth;
+        var column = index - row * boardWidth;
+        minColumn = Math.min(minColumn, column);
+        maxColumn = Math.max(maxColumn, column);
+        minRow = Math.min(minRow, row);
+        maxRow = Math.max(maxRow, row);
+    }
+
+    public boolean hasChanges() {
+        return maxRow >= 0;
+    }
+
+    /**
+     * Writes the cells changed since the previous frame as a new frame. Does nothing if there are none.
+     */
+    public void writeFrame(int delayCentis) throws IOException {
+        if (!hasChanges()) {
+            return;
+        }
+        var colors = new RgbIndexMap(MAX_FRAME_COLORS);
+        var palette = new int[MAX_FRAME_COLORS];
+        var exact = true;
+        for (int row = minRow; row <= maxRow && exact; row++) {
+            var rowStart = row * boardWidth;
+            for (int i = changedCells.nextSetBit(rowStart + minColumn);
+                 i >= 0 && i <= rowStart + maxColumn;
+                 i = changedCells.nextSetBit(i + 1)) {
+                var sizeBefore = colors.size();
+                var index = colors.add(cells[i]);
+                if (index < 0 || index >= MAX_FRAME_COLORS) {
+                    exact = false;
+                    break;
+                }
+                if (index == sizeBefore) {
+                    palette[index] = cells[i];
+                }
+            }
+        }
+        int[] framePalette;
+        int transparentIndex;
+        if (exact) {
+            framePalette = new int[colors.size() + 1];
+            System.arraycopy(palette, 0, framePalette, 0, colors.size());
+            transparentIndex = colors.size();
+        } else {
+            framePalette = new int[CUBE_PALETTE.length + 1];
+            System.arraycopy(CUBE_PALETTE, 0, framePalette, 0, CUBE_PALETTE.length);
+            transparentIndex = CUBE_TRANSPARENT_INDEX;
+        }
+
+        var frameWidth = (maxColumn - minColumn + 1) * cellSize;
+        gifWriter.startFrame(
+                offsetX + minColumn * cellSize,
+                offsetY + minRow * cellSize,
+                frameWidth,
+                (maxRow - minRow + 1) * cellSize,
+                framePalette,
+                transparentIndex,
+                delayCentis
+        );
+        for (int row = minRow; row <= maxRow; row++) {
+            var rowStart = row * boardWidth;
+            for (int column = minColumn; column <= maxColumn; column++) {
+                var cellIndex = rowStart + column;
+                int paletteIndex;
+                if (!changedCells.get(cellIndex)) {
+                    paletteIndex = transparentIndex;
+                } else if (exact) {
+                    paletteIndex = colors.get(cells[cellIndex]);
+                } else {
+                    paletteIndex = cubeIndex(cells[cellIndex]);
+                }
+                var spanStart = (column - minColumn) * cellSize;
+                for (int x = spanStart; x < spanStart + cellSize; x++) {
+                    rowIndices[x] = (byte) paletteIndex;
+                }
+            }
+            for (int line = 0; line < cellSize; line++) {
+                gifWriter.writeRow(rowIndices, 0);
+            }
+        }
+        gifWriter.finishFrame();
+
+        for (int row = minRow; row <= maxRow; row++) {
+            changedCells.clear(row * boardWidth + minColumn, row * boardWidth + maxColumn + 1);
+        }
+        resetChangedArea();
+    }
+
+    /**
+     * Writes the pending changes as the last frame, shown for {@code delayCentis} before the animation loops,
+     * and completes the GIF.
+     */
+    public void finish(int delayCentis) throws IOException {
+        if (hasChanges()) {
+            writeFrame(delayCentis);
+        } else {
+            gifWriter.startFrame(0, 0, 1, 1, new int[] {0}, 0, delayCentis);
+            gifWriter.writeRow(new byte[1], 0);
+            gifWriter.finishFrame();
+        }
+        gifWriter.finish();
+    }
+
+    private void writeBackground(int[] background, int imageWidth, int imageHeight, int delayCentis) throws IOException {
+        var palette = PngEncoder.collectPalette(background, 0, imageWidth * imageHeight);
+        RgbIndexMap colors = null;
+        if (palette != null) {
+            colors = new RgbIndexMap(palette.length);
+            for (var rgb : palette) {
+                colors.add(rgb);
+            }
+        }
+        gifWriter.startFrame(0, 0, imageWidth, imageHeight, palette != null ? palette : CUBE_PALETTE, -1, delayCentis);
+        for (int y = 0; y < imageHeight; y++) {
+            var rowStart = y * imageWidth;
+            for (int x = 0; x < imageWidth; x++) {
+                var rgb = background[rowStart + x] & 0xFFFFFF;
+                rowIndices[x] = (byte) (colors != null ? colors.get(rgb) : cubeIndex(rgb));
+            }
+            gifWriter.writeRow(rowIndices, 0);
+        }
+        gifWriter.finishFrame();
+    }
+
+    private void resetChangedArea() {
+        minColumn = Integer.MAX_VALUE;
+        maxColumn = -1;
+        minRow = Integer.MAX_VALUE;
+        maxRow = -1;
+    }
+
+    /**
+     * Frames with more colors than a GIF color table holds fall back to a fixed 6x7x6 color cube.
+     */
+    private static int cubeIndex(int rgb) {
+        var red = (((rgb >> 16) & 0xFF) * 5 + 127) / 255;
+        var green = (((rgb >> 8) & 0xFF) * 6 + 127) / 255;
+        var blue = ((rgb & 0xFF) * 5 + 127) / 255;
+        return (red * 7 + green) * 6 + blue;
+    }
+
+    private static int[] createCubePalette() {
+        var palette = new int[6 * 7 * 6];
+        for (int red = 0; red < 6; red++) {
+            for (int green = 0; green < 7; green++) {
+                for (int blue = 0; blue < 6; blue++) {
+                    palette[(red * 7 + green) * 6 + blue] = (red * 255 / 5) << 16 | (green * 255 / 6) << 8 | blue * 255 / 5;
+                }
+            }
+        }
+        return palette;
+    }
+}
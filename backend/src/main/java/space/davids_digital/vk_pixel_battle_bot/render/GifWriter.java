@@ -0,0 +1,234 @@
+package space.davids_digital.vk_pixel_battle_bot.render;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Writes an endlessly looping animated GIF frame by frame and row by row straight into an output stream.
+ * Every frame covers a rectangle of the canvas with its own color table of up to 256 colors and is drawn
+ * over the previous frames, so a frame only has to contain what changed. Pixels are LZW-compressed as
+ * they arrive, so nothing but the current row is buffered.
+ */
+public class GifWriter {
+    public static final int MAX_PALETTE_SIZE = 256;
+    public static final int MAX_DIMENSION = 0xFFFF;
+
+    private static final int MAX_CODE_BITS = 12;
+    private static final int MAX_CODE_COUNT = 1 << MAX_CODE_BITS;
+    private static final int HASH_TABLE_SIZE = 8192;
+    private static final int DISPOSAL_NONE = 1;
+
+    private final OutputStream out;
+    private final int width;
+    private final int height;
+    private final byte[] block = new byte[256];
+    private final int[] hashKeys = new int[HASH_TABLE_SIZE];
+    private final int[] hashCodes = new int[HASH_TABLE_SIZE];
+    private int blockSize = 0;
+    private int bitBuffer = 0;
+    private int bitCount = 0;
+    private int initialCodeBits;
+    private int clearCode;
+    private int codeBits;
+    private int maxCode;
+    private int nextCode;
+    private int prefix;
+    private boolean frameStarted = false;
+    private int frameWidth;
+    private int frameHeight;
+    private int frameRowsWritten;
+
+    private GifWriter(OutputStream out, int width, int height) throws IOException {
+        this.out = out;
+        this.width = width;
+        this.height = height;
+
+        out.write(new byte[] {'G', 'I', 'F', '8', '9', 'a'});
+        writeShort(width);
+        writeShort(height);
+        out.write(new byte[] {0, 0, 0});
+        // NETSCAPE2.0 application extension, loop forever
+        out.write(new byte[] {0x21, (byte) 0xFF, 0x0B, 'N', 'E', 'T', 'S', 'C', 'A', 'P', 'E', '2', '.', '0', 3, 1, 0, 0, 0});
+    }
+
+    public static GifWriter start(OutputStream out, int width, int height) throws IOException {
+        if (width < 1 || height < 1 || width > MAX_DIMENSION || height > MAX_DIMENSION) {
+            throw new IllegalArgumentException("GIF size must be from 1x1 to " + MAX_DIMENSION + "x" + MAX_DIMENSION);
+        }
+        return new GifWriter(out, width, height);
+    }
+
+    /**
+     * Starts a frame covering the given rectangle. Rows written next are indices into {@code palette};
+     * pixels with {@code transparentIndex} (or none if it's -1) keep what the previous frames show.
+     */
+    public void startFrame(
+            int x,
+            int y,
+            int frameWidth,
+            int frameHeight,
+            int[] palette,
+            int transparentIndex,
+            int delayCentis
+    ) throws IOException {
+        if (frameStarted) {
+            throw new IllegalStateException("The previous frame isn't finished");
+        }
+        if (x < 0 || y < 0 || frameWidth < 1 || frameHeight < 1 || x + frameWidth > width || y + frameHeight > height) {
+            throw new IllegalArgumentException("Frame is outside the canvas");
+        }
+        if (palette.length == 0 || palette.length > MAX_PALETTE_SIZE) {
+            throw new IllegalArgumentException("Palette must have 1 to " + MAX_PALETTE_SIZE + " colors");
+        }
+        var tableBits = 1;
+        while ((1 << tableBits) < palette.length) {
+            tableBits++;
+        }
+
+        out.write(new byte[] {
+                0x21, (byte) 0xF9, 4,
+                (byte) ((DISPOSAL_NONE << 2) | (transparentIndex >= 0 ? 1 : 0)),
+                (byte) delayCentis, (byte) (delayCentis >> 8),
+                (byte) Math.max(transparentIndex, 0),
+                0
+        });
+        out.write(0x2C);
+        writeShort(x);
+        writeShort(y);
+        writeShort(frameWidth);
+        writeShort(frameHeight);
+        out.write(0x80 | (tableBits - 1));
+        var table = new byte[3 << tableBits];
+        for (int i = 0; i < palette.length; i++) {
+            table[i * 3] = (byte) (palette[i] >> 16);
+            table[i * 3 + 1] = (byte) (palette[i] >> 8);
+            table[i * 3 + 2] = (byte) palette[i];
+        }
+        out.write(table);
+
+        initialCodeBits = Math.max(tableBits, 2) + 1;
+        clearCode = 1 << (initialCodeBits - 1);
+        out.write(initialCodeBits - 1);
+        resetDictionary();
+        codeBits = initialCodeBits;
+        maxCode = (1 << codeBits) - 1;
+        prefix = -1;
+        writeCode(clearCode);
+
+        this.frameWidth = frameWidth;
+        this.frameHeight = frameHeight;
+        frameRowsWritten = 0;
+        frameStarted = true;
+    }
+
+    public void writeRow(byte[] indices, int offset) throws IOException {
+        if (!frameStarted) {
+            throw new IllegalStateException("No frame is started");
+        }
+        if (frameRowsWritten == frameHeight) {
+            throw new IllegalStateException("All " + frameHeight + " rows of the frame are already written");
+        }
+        for (int i = offset; i < offset + frameWidth; i++) {
+            compress(indices[i] & 0xFF);
+        }
+        frameRowsWritten++;
+    }
+
+    public void finishFrame() throws IOException {
+        if (!frameStarted || frameRowsWritten != frameHeight) {
+            throw new IllegalStateException("Only " + frameRowsWritten + " of " + frameHeight + " rows are written");
+        }
+        writeCode(prefix);
+        writeCode(clearCode + 1);
+        if (bitCount > 0) {
+            writeByte(bitBuffer & 0xFF);
+            bitBuffer = 0;
+            bitCount = 0;
+        }
+        flushBlock();
+        out.write(0);
+        frameStarted = false;
+    }
+
+    /**
+     * Completes the animation. The underlying stream is flushed but left open.
+     */
+    public void finish() throws IOException {
+        if (frameStarted) {
+            throw new IllegalStateException("The last frame isn't finished");
+        }
+        out.write(0x3B);
+        out.flush();
+    }
+
+    private void compress(int index) throws IOException {
+        if (prefix < 0) {
+            prefix = index;
+            return;
+        }
+        var key = (prefix << 8) | index;
+        var slot = (key * 0x9E3779B9) >>> 19;
+        while (hashKeys[slot] != -1) {
+            if (hashKeys[slot] == key) {
+                prefix = hashCodes[slot];
+                return;
+            }
+            slot = (slot + 1) & (HASH_TABLE_SIZE - 1);
+        }
+        writeCode(prefix);
+        prefix = index;
+        if (nextCode < MAX_CODE_COUNT) {
+            hashKeys[slot] = key;
+            hashCodes[slot] = nextCode++;
+        } else {
+            writeCode(clearCode);
+            resetDictionary();
+            codeBits = initialCodeBits;
+            maxCode = (1 << codeBits) - 1;
+        }
+    }
+
+    private void resetDictionary() {
+        Arrays.fill(hashKeys, -1);
+        nextCode = clearCode + 2;
+    }
+
+    /**
+     * The code width grows once the next free code no longer fits, which is one code later than the
+     * decoder adds that entry, so both switch widths at the same point of the stream.
+     */
+    private void writeCode(int code) throws IOException {
+        bitBuffer |= code << bitCount;
+        bitCount += codeBits;
+        while (bitCount >= 8) {
+            writeByte(bitBuffer & 0xFF);
+            bitBuffer >>>= 8;
+            bitCount -= 8;
+        }
+        if (nextCode > maxCode && codeBits < MAX_CODE_BITS) {
+            codeBits++;
+            maxCode = (1 << codeBits) - 1;
+        }
+    }
+
+    private void writeByte(int value) throws IOException {
+        block[++blockSize] = (byte) value;
+        if (blockSize == 255) {
+            flushBlock();
+        }
+    }
+
+    private void flushBlock() throws IOException {
+        if (blockSize > 0) {
+            block[0] = (byte) blockSize;
+            out.write(block, 0, blockSize + 1);
+            blockSize = 0;
+        }
+    }
+
+    private void writeShort(int value) throws IOException {
+        out.write(value & 0xFF);
+        out.write((value >> 8) & 0xFF);
+    }
+}
@@ -0,0 +1,104 @@
+package space.davids_digital.vk_pixel_battle_bot.render;
+
+import space.davids_digital.vk_pixel_battle_bot.model.BoardStateModel;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.io.IOException;
+import java.io.OutputStream;
+
+public final class PngEncoder {
+    private PngEncoder() {}
+
+    public static void encode(BufferedImage image, OutputStream out, int deflateLevel) throws IOException {
+        var width = image.getWidth();
+        var height = image.getHeight();
+        var pixels = getRgbPixels(image);
+        var palette = collectPalette(pixels, 0, width * height);
+        var writer = PngWriter.start(out, width, height, palette, deflateLevel);
+        for (int y = 0; y < height; y++) {
+            writer.writeRow(pixels, y * width);
+        }
+        writer.finish();
+    }
+
+    /**
+     * Returns the distinct colors of the given pixels, or null if there are more than a PNG palette can hold.
+     */
+    public static int[] collectPalette(int[] pixels, int from, int to) {
+        var colors = new RgbIndexMap(PngWriter.MAX_PALETTE_SIZE);
+        var palette = new int[PngWriter.MAX_PALETTE_SIZE];
+        var lastRgb = -1;
+        for (int i = from; i < to; i++) {
+            var rgb = pixels[i] & 0xFFFFFF;
+            if (rgb == lastRgb) {
+                continue;
+            }
+            lastRgb = rgb;
+            var sizeBefore = colors.size();
+            var index = colors.add(rgb);
+            if (index < 0) {
+                return null;
+            }
+            if (index == sizeBefore) {
+                palette[index] = rgb;
+            }
+        }
+        var result = new int[Math.max(colors.size(), 1)];
+        System.arraycopy(palette, 0, result, 0, colors.size());
+        return result;
+    }
+
+    /**
+     * Returns the background and the distinct colors of the painted cells in a rectangle of the board,
+     * or null if there are more than a PNG palette can hold.
+     */
+    public static int[] collectCellPalette(
+            int[] cells,
+            int boardWidth,
+            int columnFrom,
+            int rowFrom,
+            int columns,
+            int rows,
+            int backgroundRgb
+    ) {
+        var colors = new RgbIndexMap(PngWriter.MAX_PALETTE_SIZE);
+        var palette = new int[PngWriter.MAX_PALETTE_SIZE];
+        palette[colors.add(backgroundRgb & 0xFFFFFF)] = backgroundRgb & 0xFFFFFF;
+        var lastRgb = backgroundRgb & 0xFFFFFF;
+        for (int row = rowFrom; row < rowFrom + rows; row++) {
+            for (int i = row * boardWidth + columnFrom; i < row * boardWidth + columnFrom + columns; i++) {
+                var rgb = cells[i];
+                if (rgb == BoardStateModel.EMPTY || rgb == lastRgb) {
+                    continue;
+                }
+                lastRgb = rgb;
+                var sizeBefore = colors.size();
+                var index = colors.add(rgb);
+                if (index < 0) {
+                    return null;
+                }
+                if (index == sizeBefore) {
+                    palette[index] = rgb;
+                }
+            }
+        }
+        var result = new int[colors.size()];
+        System.arraycopy(palette, 0, result, 0, colors.size());
+        return result;
+    }
+
+    private static int[] getRgbPixels(BufferedImage image) {
+        var raster = image.getRaster();
+        if (image.getType() == BufferedImage.TYPE_INT_RGB
+                && raster.getDataBuffer() instanceof DataBufferInt dataBuffer
+                && raster.getSampleModel() instanceof SinglePixelPackedSampleModel sampleModel
+                && sampleModel.getScanlineStride() == image.getWidth()
+                && raster.getSampleModelTranslateX() == 0
+                && raster.getSampleModelTranslateY() == 0) {
+            return dataBuffer.getData();
+        }
+        return image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+    }
+}
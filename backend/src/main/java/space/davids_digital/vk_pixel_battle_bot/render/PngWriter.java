@@ -0,0 +1,282 @@
+package space.davids_digital.vk_pixel_battle_bot.render;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes a PNG row by row straight into an output stream. With a palette of up to 256 colors the image
+ * is stored as indexed color with the smallest bit depth that fits, otherwise as 8-bit truecolor.
+ * Every row gets the filter with the smallest sum of absolute differences.
+ */
+public class PngWriter {
+    public static final int MAX_PALETTE_SIZE = 256;
+
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    private static final int COLOR_TYPE_TRUECOLOR = 2;
+    private static final int COLOR_TYPE_INDEXED = 3;
+    private static final int FILTER_COUNT = 5;
+    private static final int IDAT_CHUNK_SIZE = 64 * 1024;
+
+    private final OutputStream out;
+    private final int width;
+    private final int height;
+    private final RgbIndexMap paletteIndex;
+    private final int bitDepth;
+    private final int filterStride;
+    private final Deflater deflater;
+    private final IdatOutputStream idatStream;
+    private final DeflaterOutputStream deflaterStream;
+    private final byte[][] filteredRows;
+    private byte[] currentRow;
+    private byte[] previousRow;
+    private int rowsWritten = 0;
+
+    private PngWriter(OutputStream out, int width, int height, int[] palette, int deflateLevel) throws IOException {
+        this.out = out;
+        this.width = width;
+        this.height = height;
+        if (palette != null) {
+            paletteIndex = new RgbIndexMap(palette.length);
+            for (var rgb : palette) {
+                paletteIndex.add(rgb & 0xFFFFFF);
+            }
+            bitDepth = palette.length <= 2 ? 1 : palette.length <= 4 ? 2 : palette.length <= 16 ? 4 : 8;
+            filterStride = 1;
+        } else {
+            paletteIndex = null;
+            bitDepth = 8;
+            filterStride = 3;
+        }
+        var rowBytes = palette != null ? (width * bitDepth + 7) / 8 : width * 3;
+        currentRow = new byte[rowBytes];
+        previousRow = new byte[rowBytes];
+        filteredRows = new byte[FILTER_COUNT][rowBytes + 1];
+        for (int filter = 0; filter < FILTER_COUNT; filter++) {
+            filteredRows[filter][0] = (byte) filter;
+        }
+
+        out.write(SIGNATURE);
+        var header = new byte[13];
+        writeInt(header, 0, width);
+        writeInt(header, 4, height);
+        header[8] = (byte) bitDepth;
+        header[9] = (byte) (palette != null ? COLOR_TYPE_INDEXED : COLOR_TYPE_TRUECOLOR);
+        writeChunk(out, "IHDR", header, header.length);
+        if (palette != null) {
+            var paletteBytes = new byte[palette.length * 3];
+            for (int i = 0; i < palette.length; i++) {
+                paletteBytes[i * 3] = (byte) (palette[i] >> 16);
+                paletteBytes[i * 3 + 1] = (byte) (palette[i] >> 8);
+                paletteBytes[i * 3 + 2] = (byte) palette[i];
+            }
+            writeChunk(out, "PLTE", paletteBytes, paletteBytes.length);
+        }
+        deflater = new Deflater(deflateLevel);
+        idatStream = new IdatOutputStream(out);
+        deflaterStream = new DeflaterOutputStream(idatStream, deflater, IDAT_CHUNK_SIZE);
+    }
+
+    /**
+     * Starts an indexed PNG if {@code palette} is not null, a truecolor one otherwise.
+     * Every pixel written later must be one of the palette colors.
+     */
+    public static PngWriter start(
+            OutputStream out,
+            int width,
+            int height,
+            int[] palette,
+            int deflateLevel
+    ) throws IOException {
+        if (palette != null && (palette.length == 0 || palette.length > MAX_PALETTE_SIZE)) {
+            throw new IllegalArgumentException("Palette must have 1 to " + MAX_PALETTE_SIZE + " colors");
+        }
+        return new PngWriter(out, width, height, palette, deflateLevel);
+    }
+
+    public void writeRow(int[] pixels, int offset) throws IOException {
+        if (rowsWritten == height) {
+            throw new IllegalStateException("All " + height + " rows are already written");
+        }
+        if (paletteIndex != null) {
+            packIndexedRow(pixels, offset);
+        } else {
+            packTruecolorRow(pixels, offset);
+        }
+        var filtered = filteredRows[selectFilter()];
+        deflaterStream.write(filtered, 0, filtered.length);
+        var swap = previousRow;
+        previousRow = currentRow;
+        currentRow = swap;
+        rowsWritten++;
+    }
+
+    /**
+     * Completes the image. The underlying stream is flushed but left open.
+     */
+    public void finish() throws IOException {
+        if (rowsWritten != height) {
+            throw new IllegalStateException("Only " + rowsWritten + " of " + height + " rows are written");
+        }
+        try {
+            deflaterStream.finish();
+            idatStream.flush();
+        } finally {
+            deflater.end();
+        }
+        writeChunk(out, "IEND", new byte[0], 0);
+        out.flush();
+    }
+
+    private void packIndexedRow(int[] pixels, int offset) {
+        var pixelsPerByte = 8 / bitDepth;
+        var lastRgb = -1;
+        var lastIndex = 0;
+        var packed = 0;
+        var byteIndex = 0;
+        for (int x = 0; x < width; x++) {
+            var rgb = pixels[offset + x] & 0xFFFFFF;
+            if (rgb != lastRgb) {
+                lastIndex = paletteIndex.get(rgb);
+                if (lastIndex < 0) {
+                    throw new IllegalArgumentException(String.format("Color #%06x is not in the palette", rgb));
+                }
+                lastRgb = rgb;
+            }
+            packed = (packed << bitDepth) | lastIndex;
+            if ((x + 1) % pixelsPerByte == 0) {
+                currentRow[byteIndex++] = (byte) packed;
+                packed = 0;
+            }
+        }
+        if (byteIndex < currentRow.length) {
+            currentRow[byteIndex] = (byte) (packed << (8 - (width % pixelsPerByte) * bitDepth));
+        }
+    }
+
+    private void packTruecolorRow(int[] pixels, int offset) {
+        for (int x = 0; x < width; x++) {
+            var rgb = pixels[offset + x];
+            currentRow[x * 3] = (byte) (rgb >> 16);
+            currentRow[x * 3 + 1] = (byte) (rgb >> 8);
+            currentRow[x * 3 + 2] = (byte) rgb;
+        }
+    }
+
+    private int selectFilter() {
+        var none = filteredRows[0];
+        var sub = filteredRows[1];
+        var up = filteredRows[2];
+        var average = filteredRows[3];
+        var paeth = filteredRows[4];
+        long noneSum = 0, subSum = 0, upSum = 0, averageSum = 0, paethSum = 0;
+        for (int i = 0; i < currentRow.length; i++) {
+            var raw = currentRow[i] & 0xFF;
+            var left = i >= filterStride ? currentRow[i - filterStride] & 0xFF : 0;
+            var above = previousRow[i] & 0xFF;
+            var aboveLeft = i >= filterStride ? previousRow[i - filterStride] & 0xFF : 0;
+            none[i + 1] = (byte) raw;
+            sub[i + 1] = (byte) (raw - left);
+            up[i + 1] = (byte) (raw - above);
+            average[i + 1] = (byte) (raw - ((left + above) >> 1));
+            paeth[i + 1] = (byte) (raw - paethPredictor(left, above, aboveLeft));
+            noneSum += Math.abs(none[i + 1]);
+            subSum += Math.abs(sub[i + 1]);
+            upSum += Math.abs(up[i + 1]);
+            averageSum += Math.abs(average[i + 1]);
+            paethSum += Math.abs(paeth[i + 1]);
+        }
+        var best = 0;
+        var bestSum = noneSum;
+        if (subSum < bestSum) { best = 1; bestSum = subSum; }
+        if (upSum < bestSum) { best = 2; bestSum = upSum; }
+        if (averageSum < bestSum) { best = 3; bestSum = averageSum; }
+        if (paethSum < bestSum) { best = 4; }
+        return best;
+    }
+
+    private static int paethPredictor(int left, int above, int aboveLeft) {
+        var estimate = left + above - aboveLeft;
+        var leftDistance = Math.abs(estimate - left);
+        var aboveDistance = Math.abs(estimate - above);
+        var aboveLeftDistance = Math.abs(estimate - aboveLeft);
+        if (leftDistance <= aboveDistance && leftDistance <= aboveLeftDistance) {
+            return left;
+        }
+        return aboveDistance <= aboveLeftDistance ? above : aboveLeft;
+    }
+
+    private static void writeChunk(OutputStream out, String type, byte[] data, int length) throws IOException {
+        var header = new byte[8];
+        writeInt(header, 0, length);
+        for (int i = 0; i < 4; i++) {
+            header[4 + i] = (byte) type.charAt(i);
+        }
+        var crc = new CRC32();
+        crc.update(header, 4, 4);
+        crc.update(data, 0, length);
+        var trailer = new byte[4];
+        writeInt(trailer, 0, (int) crc.getValue());
+        out.write(header);
+        out.write(data, 0, length);
+        out.write(trailer);
+    }
+
+    private static void writeInt(byte[] target, int offset, int value) {
+        target[offset] = (byte) (value >>> 24);
+        target[offset + 1] = (byte) (value >>> 16);
+        target[offset + 2] = (byte) (value >>> 8);
+        target[offset + 3] = (byte) value;
+    }
+
+    private static class IdatOutputStream extends OutputStream {
+        private final OutputStream out;
+        private final byte[] buffer = new byte[IDAT_CHUNK_SIZE];
+        private int size = 0;
+
+        IdatOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (size == buffer.length) {
+                flushChunk();
+            }
+            buffer[size++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (size == buffer.length) {
+                    flushChunk();
+                }
+                var count = Math.min(length, buffer.length - size);
+                System.arraycopy(data, offset, buffer, size, count);
+                size += count;
+                offset += count;
+                length -= count;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            flushChunk();
+        }
+
+        @Override
+        public void close() throws IOException {
+            flushChunk();
+        }
+
+        private void flushChunk() throws IOException {
+            if (size > 0) {
+                writeChunk(out, "IDAT", buffer, size);
+                size = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package space.davids_digital.vk_pixel_battle_bot.render;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing map from 24-bit RGB values to small palette indices.
+ */
+final class RgbIndexMap {
+    private static final int FREE = -1;
+
+    private final int[] keys;
+    private final int[] values;
+    private final int mask;
+    private int size = 0;
+
+    RgbIndexMap(int maxSize) {
+        var capacity = Integer.highestOneBit(Math.max(maxSize, 2) * 2 - 1) << 1;
+        this.keys = new int[capacity];
+        this.values = new int[capacity];
+        this.mask = capacity - 1;
+        Arrays.fill(keys, FREE);
+    }
+
+    int size() {
+        return size;
+    }
+
+    int get(int rgb) {
+        var slot = mix(rgb) & mask;
+        while (keys[slot] != FREE) {
+            if (keys[slot] == rgb) {
+                return values[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Adds the color with the next free index unless it's already present.
+     * Returns the index of the color, or -1 if the map is full.
+     */
+    int add(int rgb) {
+        var slot = mix(rgb) & mask;
+        while (keys[slot] != FREE) {
+            if (keys[slot] == rgb) {
+                return values[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (size * 2 >= keys.length) {
+            return -1;
+        }
+        keys[slot] = rgb;
+        values[slot] = size;
+        return size++;
+    }
+
+    private static int mix(int rgb) {
+        var hash = rgb * 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+}
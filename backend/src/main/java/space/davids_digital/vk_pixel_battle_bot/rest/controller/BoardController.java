@@ -1,31 +1,463 @@
 package space.davids_digital.vk_pixel_battle_bot.rest.controller;
 
+import jakarta.servlet.http.HttpServletResponse;
+import space.davids_digital.vk_pixel_battle_bot.archive.BoardArchiveReader;
+import space.davids_digital.vk_pixel_battle_bot.model.BoardArchiveModel;
+import space.davids_digital.vk_pixel_battle_bot.model.BoardDrawLogModel;
+import space.davids_digital.vk_pixel_battle_bot.model.BoardFillModel;
+import space.davids_digital.vk_pixel_battle_bot.model.BoardImageKey;
+import space.davids_digital.vk_pixel_battle_bot.model.BoardStateModel;
+import space.davids_digital.vk_pixel_battle_bot.model.BoardStatsModel;
+import space.davids_digital.vk_pixel_battle_bot.model.BoardVersionModel;
+import space.davids_digital.vk_pixel_battle_bot.model.BoardViewModel;
+import space.davids_digital.vk_pixel_battle_bot.model.BoardViewRequestModel;
+import space.davids_digital.vk_pixel_battle_bot.model.ChatSettingsModel;
+import space.davids_digital.vk_pixel_battle_bot.model.CooldownModel;
+import space.davids_digital.vk_pixel_battle_bot.model.PixelDrawModel;
+import space.davids_digital.vk_pixel_battle_bot.model.PixelDrawResultModel;
+import space.davids_digital.vk_pixel_battle_bot.orm.service.ChatSettingsOrmService;
+import space.davids_digital.vk_pixel_battle_bot.render.PngEncoder;
+import space.davids_digital.vk_pixel_battle_bot.service.BoardArchiveService;
+import space.davids_digital.vk_pixel_battle_bot.service.BoardEventService;
+import space.davids_digital.vk_pixel_battle_bot.service.BoardHeatmapService;
 import space.davids_digital.vk_pixel_battle_bot.service.BoardImageService;
+import space.davids_digital.vk_pixel_battle_bot.service.BoardLogExportService;
+import space.davids_digital.vk_pixel_battle_bot.service.BoardPixelService;
+import space.davids_digital.vk_pixel_battle_bot.service.BoardRenderService;
+import space.davids_digital.vk_pixel_battle_bot.service.BoardStateService;
+import space.davids_digital.vk_pixel_battle_bot.service.BoardTimelapseService;
+import space.davids_digital.vk_pixel_battle_bot.service.MetricsService;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.server.ResponseStatusException;
 
-import javax.imageio.ImageIO;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.file.NoSuchFileException;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
 
 @RestController
 @RequestMapping("/board")
 public class BoardController {
     private final BoardImageService boardImageService;
+    private final BoardRenderService boardRenderService;
+    private final BoardStateService boardStateService;
+    private final BoardPixelService boardPixelService;
+    private final BoardTimelapseService boardTimelapseService;
+    private final BoardEventService boardEventService;
+    private final BoardArchiveService boardArchiveService;
+    private final BoardLogExportService boardLogExportService;
+    private final BoardHeatmapService boardHeatmapService;
+    private final ChatSettingsOrmService chatSettingsOrmService;
+    private final MetricsService metricsService;
+    private final int pngDeflateLevel;
 
-    public BoardController(BoardImageService boardImageService) {
+    public BoardController(
+            BoardImageService boardImageService,
+            BoardRenderService boardRenderService,
+            BoardStateService boardStateService,
+            BoardPixelService boardPixelService,
+            BoardTimelapseService boardTimelapseService,
+            BoardEventService boardEventService,
+            BoardArchiveService boardArchiveService,
+            BoardLogExportService boardLogExportService,
+            BoardHeatmapService boardHeatmapService,
+            ChatSettingsOrmService chatSettingsOrmService,
+            MetricsService metricsService,
+            @Value("${PNG_DEFLATE_LEVEL:6}") int pngDeflateLevel
+    ) {
         this.boardImageService = boardImageService;
+        this.boardRenderService = boardRenderService;
+        this.boardStateService = boardStateService;
+        this.boardPixelService = boardPixelService;
+        this.boardTimelapseService = boardTimelapseService;
+        this.boardEventService = boardEventService;
+        this.boardArchiveService = boardArchiveService;
+        this.boardLogExportService = boardLogExportService;
+        this.boardHeatmapService = boardHeatmapService;
+        this.chatSettingsOrmService = chatSettingsOrmService;
+        this.metricsService = metricsService;
+        this.pngDeflateLevel = pngDeflateLevel;
     }
 
-    @ResponseBody
     @GetMapping(value = "{peerId}", produces = MediaType.IMAGE_PNG_VALUE)
-    public byte[] lineAggregate(
+    public void lineAggregate(
             @PathVariable long peerId,
-            @RequestParam(value = "grid", defaultValue = "true") boolean grid
+            @RequestParam(value = "grid", defaultValue = "true") boolean grid,
+            BoardViewRequestModel viewRequest,
+            WebRequest request,
+            HttpServletResponse response
     ) throws IOException {
-        var image = boardImageService.getBoardImage(peerId, grid);
-        var stream = new ByteArrayOutputStream();
-        ImageIO.write(image, "png", stream);
-        return stream.toByteArray();
+        var startNanos = System.nanoTime();
+        var chatSettings = chatSettingsOrmService.getChatSettingsByPeerId(peerId);
+        metricsService.record(MetricsService.Stage.SETTINGS, startNanos);
+        var settingsError = boardImageService.getSettingsError(chatSettings);
+        if (settingsError != null) {
+            response.setContentType(MediaType.IMAGE_PNG_VALUE);
+            var image = boardImageService.createErrorMessageImage(settingsError);
+            PngEncoder.encode(image, response.getOutputStream(), pngDeflateLevel);
+            return;
+        }
+        var version = boardStateService.getBoardVersion(chatSettings);
+        var view = resolveView(version, grid, viewRequest);
+        var key = getImageKey(version, view);
+        if (request.checkNotModified(key.toETag())) {
+            metricsService.record(MetricsService.Stage.IMAGE_REQUEST, peerId, startNanos);
+            return;
+        }
+        writeBoardPng(() -> boardStateService.getBoardState(chatSettings), view, key, response);
+        metricsService.record(MetricsService.Stage.IMAGE_REQUEST, peerId, startNanos);
+    }
+
+    /**
+     * Draws a pixel and returns either the stored draw or, with {@code image=true}, the updated board image.
+     */
+    @PostMapping(value = "{peerId}/pixels", consumes = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<?> drawPixel(
+            @PathVariable long peerId,
+            @RequestBody PixelDrawModel pixel,
+            @RequestParam(value = "image", defaultValue = "false") boolean image,
+            @RequestParam(value = "grid", defaultValue = "true") boolean grid,
+            BoardViewRequestModel viewRequest
+    ) {
+        var chatSettings = requireChatSettings(peerId);
+        BoardDrawLogModel drawLog;
+        try {
+            drawLog = boardPixelService.drawPixel(chatSettings, pixel.userId(), pixel.x(), pixel.y(), pixel.colorRgb());
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage());
+        } catch (IllegalStateException e) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, e.getMessage());
+        }
+        if (!image) {
+            return ResponseEntity.ok(new PixelDrawResultModel(
+                    drawLog.getOrderId(),
+                    drawLog.getX(),
+                    drawLog.getY(),
+                    drawLog.getColor().getRGB() & 0xFFFFFF
+            ));
+        }
+        var version = boardStateService.getBoardVersion(chatSettings);
+        var view = resolveView(version, grid, viewRequest);
+        var key = getImageKey(version, view);
+        var png = getBoardPng(() -> boardStateService.getBoardState(chatSettings), view, key);
+        return ResponseEntity.ok().contentType(MediaType.IMAGE_PNG).eTag(key.toETag()).body(png);
+    }
+
+    @GetMapping("{peerId}/cooldown/{userId}")
+    public CooldownModel cooldown(@PathVariable long peerId, @PathVariable long userId) {
+        return boardStateService.getCooldown(requireChatSettings(peerId), userId);
+    }
+
+    @GetMapping("{peerId}/fill")
+    public BoardFillModel fill(@PathVariable long peerId) {
+        return boardStateService.getFill(requireChatSettings(peerId));
+    }
+
+    @GetMapping("{peerId}/stats")
+    public BoardStatsModel stats(@PathVariable long peerId, @RequestParam(value = "top", defaultValue = "10") int top) {
+        if (top < 0) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "top must not be negative");
+        }
+        return boardStateService.getStats(requireChatSettings(peerId), top);
+    }
+
+    /**
+     * Streams the battle as an animated GIF, with a frame every {@code draws} draws and/or {@code seconds}
+     * seconds of battle time (0 turns either off) shown for {@code delay} milliseconds.
+     */
+    @GetMapping(value = "{peerId}/timelapse", produces = MediaType.IMAGE_GIF_VALUE)
+    public void timelapse(
+            @PathVariable long peerId,
+            @RequestParam(value = "grid", defaultValue = "true") boolean grid,
+            @RequestParam(value = "draws", defaultValue = "100") int frameDraws,
+            @RequestParam(value = "seconds", defaultValue = "0") int frameSeconds,
+            @RequestParam(value = "delay", defaultValue = "100") int frameDelayMs,
+            HttpServletResponse response
+    ) throws IOException {
+        var chatSettings = requireChatSettings(peerId);
+        response.setContentType(MediaType.IMAGE_GIF_VALUE);
+        try {
+            boardTimelapseService.writeTimelapse(
+                    chatSettings,
+                    grid,
+                    frameDraws,
+                    frameSeconds,
+                    frameDelayMs,
+                    response.getOutputStream()
+            );
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage());
+        } catch (RejectedExecutionException e) {
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, e.getMessage());
+        }
+    }
+
+    /**
+     * Shows which cells were fought over, with the same view parameters as the board: by how many times they
+     * were drawn ({@code overwrites}), by how many users ({@code users}) or by when they last changed
+     * ({@code recency}).
+     */
+    @GetMapping(value = "{peerId}/heatmap", produces = MediaType.IMAGE_PNG_VALUE)
+    public void heatmap(
+            @PathVariable long peerId,
+            @RequestParam(value = "metric", defaultValue = "overwrites") String metricName,
+            @RequestParam(value = "grid", defaultValue = "true") boolean grid,
+            BoardViewRequestModel viewRequest,
+            WebRequest request,
+            HttpServletResponse response
+    ) throws IOException {
+        BoardHeatmapService.Metric metric;
+        try {
+            metric = BoardHeatmapService.Metric.valueOf(metricName.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "[!] Unknown heatmap metric");
+        }
+        var chatSettings = requireChatSettings(peerId);
+        var version = boardStateService.getBoardVersion(chatSettings);
+        var view = resolveView(version, grid, viewRequest);
+        // The board's ETag with the metric in front, so a heatmap changes exactly when its board does
+        var eTag = "\"" + metric.name().toLowerCase(Locale.ROOT) + "-"
+                + getImageKey(version, view).toETag().substring(1);
+        if (request.checkNotModified(eTag)) {
+            return;
+        }
+        BoardStateModel heatmap;
+        try {
+            heatmap = boardHeatmapService.getHeatmap(chatSettings, version.lastOrderId(), metric);
+        } catch (RejectedExecutionException e) {
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, e.getMessage());
+        }
+        response.setContentType(MediaType.IMAGE_PNG_VALUE);
+        boardImageService.writeBoardPng(heatmap, view, response.getOutputStream(), pngDeflateLevel);
+    }
+
+    /**
+     * Streams the chat's whole draw log as {@code ndjson}, {@code csv} or {@code binary} (a board archive).
+     */
+    @GetMapping("{peerId}/log")
+    public void log(
+            @PathVariable long peerId,
+            @RequestParam(value = "format", defaultValue = "ndjson") String formatName,
+            HttpServletResponse response
+    ) throws IOException {
+        BoardLogExportService.Format format;
+        try {
+            format = BoardLogExportService.Format.valueOf(formatName.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "[!] Unknown log format");
+        }
+        var chatSettings = requireChatSettings(peerId);
+        try {
+            boardLogExportService.writeLog(chatSettings, format, () -> {
+                response.setContentType(format.getContentType());
+                response.setHeader(
+                        HttpHeaders.CONTENT_DISPOSITION,
+                        ContentDisposition.attachment()
+                                .filename("board-" + peerId + "-log." + format.getExtension())
+                                .build()
+                                .toString()
+                );
+                return response.getOutputStream();
+            });
+        } catch (RejectedExecutionException e) {
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, e.getMessage());
+        }
+    }
+
+    /**
+     * Streams the board as server-sent events: a {@code snapshot} of the whole board, then {@code draw} events
+     * with arrays of new draws. Event ids are order_ids; a client that passes the last one it got as
+     * {@code Last-Event-ID} (or {@code after}) continues from there instead of getting a new snapshot.
+     */
+    @GetMapping(value = "{peerId}/events", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter events(
+            @PathVariable long peerId,
+            @RequestHeader(value = "Last-Event-ID", required = false) String lastEventId,
+            @RequestParam(value = "after", required = false) Integer after
+    ) {
+        var chatSettings = requireChatSettings(peerId);
+        var lastOrderId = after;
+        if (lastEventId != null) {
+            try {
+                lastOrderId = Integer.parseInt(lastEventId.trim());
+            } catch (NumberFormatException e) {
+                lastOrderId = null;
+            }
+        }
+        return boardEventService.subscribe(chatSettings, lastOrderId);
+    }
+
+    /**
+     * Archives the chat's current battle, leaving its draw log. Answers 204 if there's nothing to archive or
+     * archiving is off.
+     */
+    @PostMapping("{peerId}/archives")
+    public ResponseEntity<BoardArchiveModel> archive(@PathVariable long peerId) throws IOException {
+        var archive = boardArchiveService.archive(requireChatSettings(peerId));
+        return archive != null ? ResponseEntity.ok(archive) : ResponseEntity.noContent().build();
+    }
+
+    /**
+     * Archives the chat's current battle and deletes its draw log, for the bot to start a new battle. Answers
+     * 204 if there's nothing to archive or archiving is off, after the log is deleted all the same.
+     */
+    @DeleteMapping("{peerId}/log")
+    public ResponseEntity<BoardArchiveModel> clearLog(@PathVariable long peerId) throws IOException {
+        var archive = boardArchiveService.archiveAndClear(requireChatSettings(peerId));
+        return archive != null ? ResponseEntity.ok(archive) : ResponseEntity.noContent().build();
+    }
+
+    @GetMapping("{peerId}/archives")
+    public List<BoardArchiveModel> archives(@PathVariable long peerId) throws IOException {
+        return boardArchiveService.getArchives(peerId);
+    }
+
+    /**
+     * The final board of an archived battle, with the same parameters as the current board. The ETag comes from
+     * the archive's footer, and the draws are only replayed when the image isn't cached.
+     */
+    @GetMapping(value = "{peerId}/archives/{archiveId}", produces = MediaType.IMAGE_PNG_VALUE)
+    public void archivedBoard(
+            @PathVariable long peerId,
+            @PathVariable long archiveId,
+            @RequestParam(value = "grid", defaultValue = "true") boolean grid,
+            BoardViewRequestModel viewRequest,
+            WebRequest request,
+            HttpServletResponse response
+    ) throws IOException {
+        var archive = requireArchive(peerId, archiveId);
+        var version = new BoardVersionModel(
+                archive.getPeerId(),
+                archive.getLastOrderId(),
+                archive.getWidth(),
+                archive.getHeight()
+        );
+        var view = resolveView(version, grid, viewRequest);
+        var key = getImageKey(version, view);
+        if (request.checkNotModified(key.toETag())) {
+            return;
+        }
+        writeBoardPng(
+                () -> {
+                    try {
+                        return boardArchiveService.getBoardState(archive);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                },
+                view,
+                key,
+                response
+        );
+    }
+
+    @GetMapping(value = "{peerId}/archives/{archiveId}/timelapse", produces = MediaType.IMAGE_GIF_VALUE)
+    public void archivedTimelapse(
+            @PathVariable long peerId,
+            @PathVariable long archiveId,
+            @RequestParam(value = "grid", defaultValue = "true") boolean grid,
+            @RequestParam(value = "draws", defaultValue = "100") int frameDraws,
+            @RequestParam(value = "seconds", defaultValue = "0") int frameSeconds,
+            @RequestParam(value = "delay", defaultValue = "100") int frameDelayMs,
+            HttpServletResponse response
+    ) throws IOException {
+        var archive = requireArchive(peerId, archiveId);
+        response.setContentType(MediaType.IMAGE_GIF_VALUE);
+        try {
+            boardTimelapseService.writeTimelapse(
+                    archive,
+                    grid,
+                    frameDraws,
+                    frameSeconds,
+                    frameDelayMs,
+                    response.getOutputStream()
+            );
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage());
+        } catch (RejectedExecutionException e) {
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, e.getMessage());
+        }
+    }
+
+    private ChatSettingsModel requireChatSettings(long peerId) {
+        var chatSettings = chatSettingsOrmService.getChatSettingsByPeerId(peerId);
+        var settingsError = boardImageService.getSettingsError(chatSettings);
+        if (settingsError != null) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, settingsError);
+        }
+        return chatSettings;
+    }
+
+    private BoardArchiveReader requireArchive(long peerId, long archiveId) throws IOException {
+        try {
+            return boardArchiveService.openArchive(peerId, archiveId);
+        } catch (NoSuchFileException e) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "[!] Archive not found");
+        }
+    }
+
+    private BoardViewModel resolveView(BoardVersionModel version, boolean grid, BoardViewRequestModel viewRequest) {
+        try {
+            return boardImageService.resolveView(
+                    version.width(),
+                    version.height(),
+                    viewRequest.minX(),
+                    viewRequest.maxX(),
+                    viewRequest.minY(),
+                    viewRequest.maxY(),
+                    viewRequest.cellSize(),
+                    grid,
+                    viewRequest.maxSize()
+            );
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage());
+        }
+    }
+
+    private byte[] getBoardPng(Supplier<BoardStateModel> boardState, BoardViewModel view, BoardImageKey key) {
+        try {
+            return boardRenderService.getBoardPng(boardState, view, key, pngDeflateLevel);
+        } catch (RejectedExecutionException e) {
+            throw tooManyRenders();
+        }
+    }
+
+    private void writeBoardPng(
+            Supplier<BoardStateModel> boardState,
+            BoardViewModel view,
+            BoardImageKey key,
+            HttpServletResponse response
+    ) throws IOException {
+        try {
+            boardRenderService.writeBoardPng(boardState, view, key, pngDeflateLevel, length -> {
+                response.setContentType(MediaType.IMAGE_PNG_VALUE);
+                if (length >= 0) {
+                    response.setContentLength(length);
+                }
+                return Channels.newChannel(response.getOutputStream());
+            });
+        } catch (RejectedExecutionException e) {
+            throw tooManyRenders();
+        }
+    }
+
+    private static ResponseStatusException tooManyRenders() {
+        return new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Too many board images are being rendered");
+    }
+
+    private BoardImageKey getImageKey(BoardVersionModel version, BoardViewModel view) {
+        return new BoardImageKey(version.peerId(), version.lastOrderId(), version.width(), version.height(), view);
     }
 }
@@ -0,0 +1,21 @@
+package space.davids_digital.vk_pixel_battle_bot.rest.controller;
+
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+import space.davids_digital.vk_pixel_battle_bot.service.MetricsService;
+
+@RestController
+public class MetricsController {
+    private static final String PROMETHEUS_TEXT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final MetricsService metricsService;
+
+    public MetricsController(MetricsService metricsService) {
+        this.metricsService = metricsService;
+    }
+
+    @GetMapping(value = "/metrics", produces = PROMETHEUS_TEXT_TYPE)
+    public String metrics() {
+        return metricsService.toPrometheusText();
+    }
+}
@@ -1,12 +1,33 @@
 package space.davids_digital.vk_pixel_battle_bot.rest.controller;
 
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RestController;
+import space.davids_digital.vk_pixel_battle_bot.service.WarmupService;
 
 @RestController
 public class PingController {
+    private final WarmupService warmupService;
+
+    public PingController(WarmupService warmupService) {
+        this.warmupService = warmupService;
+    }
+
     @GetMapping("/ping")
     public String ping() {
         return "pong";
     }
+
+    /**
+     * Answers 503 until the boards of started battles are preloaded, so a deploy can wait for it before
+     * sending traffic over.
+     */
+    @GetMapping("/ping/ready")
+    public ResponseEntity<String> ready() {
+        if (!warmupService.isReady()) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body("warming up");
+        }
+        return ResponseEntity.ok("ready");
+    }
 }
@@ -0,0 +1,22 @@
+package space.davids_digital.vk_pixel_battle_bot.rest.controller;
+
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+import space.davids_digital.vk_pixel_battle_bot.model.DataSourceStatsModel;
+import space.davids_digital.vk_pixel_battle_bot.service.DataSourceStatsService;
+
+@RestController
+@RequestMapping("/stats")
+public class StatsController {
+    private final DataSourceStatsService dataSourceStatsService;
+
+    public StatsController(DataSourceStatsService dataSourceStatsService) {
+        this.dataSourceStatsService = dataSourceStatsService;
+    }
+
+    @GetMapping("datasource")
+    public DataSourceStatsModel dataSource() {
+        return dataSourceStatsService.getStats();
+    }
+}
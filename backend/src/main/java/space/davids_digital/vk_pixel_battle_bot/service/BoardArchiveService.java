@@ -0,0 +1,219 @@
+package space.davids_digital.vk_pixel_battle_bot.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import space.davids_digital.vk_pixel_battle_bot.archive.BoardArchiveReader;
+import space.davids_digital.vk_pixel_battle_bot.archive.BoardArchiveWriter;
+import space.davids_digital.vk_pixel_battle_bot.model.BoardArchiveModel;
+import space.davids_digital.vk_pixel_battle_bot.model.BoardStateModel;
+import space.davids_digital.vk_pixel_battle_bot.model.ChatSettingsModel;
+import space.davids_digital.vk_pixel_battle_bot.orm.service.BoardDrawLogOrmService;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Keeps finished battles as board archives under {@code BOARD_ARCHIVE_DIR}, one file per battle at
+ * {@code <peer_id>/<start epoch millis>.pba}, so they can be viewed after the bot deletes their draw logs.
+ * The bot has the backend archive the battle and delete its log in one call, see {@link #archiveAndClear}.
+ * Without a directory nothing is archived.
+ */
+@Service
+public class BoardArchiveService {
+    private static final Logger log = LoggerFactory.getLogger(BoardArchiveService.class);
+    private static final String EXTENSION = ".pba";
+
+    private final BoardDrawLogOrmService boardDrawLogOrmService;
+    private final BoardPixelService boardPixelService;
+    private final BoardStateService boardStateService;
+    private final Path directory;
+    private final int fetchSize;
+
+    public BoardArchiveService(
+            BoardDrawLogOrmService boardDrawLogOrmService,
+            BoardPixelService boardPixelService,
+            BoardStateService boardStateService,
+            @Value("${BOARD_ARCHIVE_DIR:}") String directory,
+            @Value("${BOARD_ARCHIVE_FETCH_SIZE:4096}") int fetchSize
+    ) {
+        this.boardDrawLogOrmService = boardDrawLogOrmService;
+        this.boardPixelService = boardPixelService;
+        this.boardStateService = boardStateService;
+        this.directory = directory.isBlank() ? null : Path.of(directory);
+        this.fetchSize = fetchSize;
+    }
+
+    /**
+     * Archives the chat's current battle and deletes its draw log and snapshots, so the bot can start a new one.
+     * The board's lock is held throughout: pixels buffered in {@code write_behind} mode are flushed before the
+     * log is read, and no pixel is accepted between the flush and the delete, so none is lost from the archive
+     * or inserted after the delete. Nothing is deleted if archiving fails.
+     *
+     * @return the archive, or null if archiving is off or nobody has drawn
+     */
+    public BoardArchiveModel archiveAndClear(ChatSettingsModel chatSettings) throws IOException {
+        try {
+            return boardStateService.withLock(chatSettings, () -> {
+                try {
+                    var archive = archive(chatSettings);
+                    boardDrawLogOrmService.clearDrawLog(chatSettings.getPeerId());
+                    return archive;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Archives the chat's current battle, replacing an earlier archive of it. Pixels buffered in
+     * {@code write_behind} mode are flushed first. The log is read through a cursor and written block by
+     * block, so memory doesn't depend on the battle's length.
+     *
+     * @return the archive, or null if archiving is off or nobody has drawn
+     */
+    public BoardArchiveModel archive(ChatSettingsModel chatSettings) throws IOException {
+        boardPixelService.flush(chatSettings.getPeerId());
+        if (directory == null) {
+            return null;
+        }
+        var startNanos = System.nanoTime();
+        var peerId = chatSettings.getPeerId();
+        var startTime = chatSettings.getLastStartTime() == null ? 0 : chatSettings.getLastStartTime()
+                .atZone(ZoneId.systemDefault())
+                .toInstant()
+                .toEpochMilli();
+        var chatDirectory = directory.resolve(Long.toString(peerId));
+        Files.createDirectories(chatDirectory);
+        var path = chatDirectory.resolve(startTime + EXTENSION);
+        var tmpPath = chatDirectory.resolve(startTime + EXTENSION + ".tmp");
+        int draws;
+        try (var channel = FileChannel.open(
+                tmpPath,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING
+        )) {
+            var out = new BufferedOutputStream(Channels.newOutputStream(channel), 65536);
+            var writer = new BoardArchiveWriter(
+                    out,
+                    peerId,
+                    startTime,
+                    chatSettings.getBoardWidth(),
+                    chatSettings.getBoardHeight()
+            );
+            try {
+                boardDrawLogOrmService.forEachDrawLog(peerId, fetchSize, (orderId, userId, time, x, y, colorRgb) -> {
+                    try {
+                        writer.add(orderId, userId, time, x, y, colorRgb);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            writer.finish();
+            channel.force(true);
+            draws = writer.getDraws();
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tmpPath);
+            throw e;
+        }
+        if (draws == 0) {
+            Files.delete(tmpPath);
+            return null;
+        }
+        Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        var archive = toModel(BoardArchiveReader.open(path));
+        log.info(
+                "Archived {} draws of chat {} into {} bytes in {} ms",
+                draws,
+                peerId,
+                archive.bytes(),
+                (System.nanoTime() - startNanos) / 1_000_000
+        );
+        return archive;
+    }
+
+    /**
+     * Lists the chat's archived battles, oldest first. Archives that can't be read are left out.
+     */
+    public List<BoardArchiveModel> getArchives(long peerId) throws IOException {
+        if (directory == null) {
+            return List.of();
+        }
+        var archives = new ArrayList<BoardArchiveModel>();
+        try (var paths = Files.newDirectoryStream(directory.resolve(Long.toString(peerId)), "*" + EXTENSION)) {
+            for (var path : paths) {
+                try {
+                    archives.add(toModel(BoardArchiveReader.open(path)));
+                } catch (IOException e) {
+                    log.warn("Can't read the board archive {}", path, e);
+                }
+            }
+        } catch (NoSuchFileException e) {
+            return List.of();
+        }
+        archives.sort(Comparator.comparingLong(BoardArchiveModel::id));
+        return archives;
+    }
+
+    /**
+     * @throws NoSuchFileException if the battle isn't archived
+     */
+    public BoardArchiveReader openArchive(long peerId, long archiveId) throws IOException {
+        if (directory == null) {
+            throw new NoSuchFileException("Archiving is off");
+        }
+        return BoardArchiveReader.open(directory.resolve(Long.toString(peerId)).resolve(archiveId + EXTENSION));
+    }
+
+    /**
+     * Replays the archive into the board as it was when the battle ended.
+     */
+    public BoardStateModel getBoardState(BoardArchiveReader archive) throws IOException {
+        var width = archive.getWidth();
+        var height = archive.getHeight();
+        var colors = new int[width * height];
+        Arrays.fill(colors, BoardStateModel.EMPTY);
+        archive.forEachDraw((orderId, userId, time, x, y, colorRgb) -> {
+            var index = BoardState.cellIndex(width, height, x, y);
+            if (index >= 0) {
+                colors[index] = colorRgb & 0xFFFFFF;
+            }
+        });
+        return new BoardStateModel(archive.getPeerId(), width, height, archive.getLastOrderId(), colors);
+    }
+
+    private static BoardArchiveModel toModel(BoardArchiveReader archive) {
+        return new BoardArchiveModel(
+                archive.getStartTime(),
+                archive.getWidth(),
+                archive.getHeight(),
+                archive.getDraws(),
+                archive.getFirstOrderId(),
+                archive.getLastOrderId(),
+                archive.getFirstTime(),
+                archive.getLastTime(),
+                archive.getBytes()
+        );
+    }
+}
@@ -0,0 +1,312 @@
+package space.davids_digital.vk_pixel_battle_bot.service;
+
+import com.zaxxer.hikari.HikariDataSource;
+import jakarta.annotation.PreDestroy;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import space.davids_digital.vk_pixel_battle_bot.orm.service.BoardDrawLogOrmService;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finds out which boards got rows in board_draw_log that the in-memory boards haven't seen, so a board is
+ * only read from the log again when it changed. {@code BOARD_CHANGE_FEED} selects how:
+ * <ul>
+ *     <li>{@code listen} (default): LISTEN on the board_draw_log channel, which the trigger the bot installs
+ *     on the table notifies after every insert. While the trigger is missing or the connection is down, the
+ *     feed polls instead and tries to listen again every {@code BOARD_CHANGE_RECONNECT_MS}.</li>
+ *     <li>{@code poll}: every {@code BOARD_CHANGE_POLL_MS}, read the latest order_id of every board in memory.</li>
+ *     <li>{@code off}: boards are read from the log on every request.</li>
+ * </ul>
+ * However quiet the feed is, a board isn't trusted for more than {@code BOARD_CHANGE_MAX_STALENESS_MS} after
+ * it was last checked against the log. The time from a row's insert to the feed announcing it is recorded as
+ * the {@code change_feed_lag} stage.
+ */
+@Service
+public class BoardChangeFeedService {
+    private static final Logger log = LoggerFactory.getLogger(BoardChangeFeedService.class);
+    private static final String CHANNEL = "board_draw_log";
+    private static final long PING_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private final DataSource dataSource;
+    private final BoardDrawLogOrmService boardDrawLogOrmService;
+    private final MetricsService metricsService;
+    private final Mode mode;
+    private final long pollMs;
+    private final long reconnectNanos;
+    private final long maxStalenessNanos;
+    private final Set<Long> watchedPeers = ConcurrentHashMap.newKeySet();
+    private final Map<Long, Integer> latestOrderIds = new ConcurrentHashMap<>();
+    private final List<BoardChangeListener> listeners = new CopyOnWriteArrayList<>();
+    private final Thread thread;
+    private volatile boolean running = true;
+    private volatile boolean healthy = false;
+    private volatile long healthySinceNanos;
+    private volatile Connection listenConnection;
+    private long lastPingNanos;
+
+    public BoardChangeFeedService(
+            DataSource dataSource,
+            BoardDrawLogOrmService boardDrawLogOrmService,
+            MetricsService metricsService,
+            @Value("${BOARD_CHANGE_FEED:listen}") String mode,
+            @Value("${BOARD_CHANGE_POLL_MS:1000}") long pollMs,
+            @Value("${BOARD_CHANGE_RECONNECT_MS:30000}") long reconnectMs,
+            @Value("${BOARD_CHANGE_MAX_STALENESS_MS:30000}") long maxStalenessMs
+    ) {
+        this.dataSource = dataSource;
+        this.boardDrawLogOrmService = boardDrawLogOrmService;
+        this.metricsService = metricsService;
+        this.mode = switch (mode) {
+            case "listen" -> Mode.LISTEN;
+            case "poll" -> Mode.POLL;
+            case "off" -> Mode.OFF;
+            default -> throw new IllegalArgumentException("Unknown BOARD_CHANGE_FEED: " + mode);
+        };
+        this.pollMs = pollMs;
+        this.reconnectNanos = TimeUnit.MILLISECONDS.toNanos(reconnectMs);
+        this.maxStalenessNanos = TimeUnit.MILLISECONDS.toNanos(maxStalenessMs);
+        metricsService.registerGauge("board_change_feed_healthy", "1 while the change feed sees every new row", () ->
+                healthy ? 1 : 0
+        );
+        metricsService.registerGauge("board_change_feed_listening", "1 while the change feed is notified", () ->
+                listenConnection != null ? 1 : 0
+        );
+        if (this.mode != Mode.OFF) {
+            thread = new Thread(this::run, "board-change-feed");
+            thread.setDaemon(true);
+            thread.start();
+        } else {
+            thread = null;
+        }
+    }
+
+    /**
+     * Starts following a board's chat. Must be called before the board is first checked against the log.
+     */
+    public void watch(long peerId) {
+        watchedPeers.add(peerId);
+    }
+
+    /**
+     * The listener is called on the feed's thread when a watched chat gets rows newer than any announced
+     * before, so it must not block.
+     */
+    public void addListener(BoardChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Whether a board that had every row up to {@code orderId} when it was checked against the log at
+     * {@code checkedNanos} is still current: the feed has seen every row since then, hasn't announced a newer
+     * one, and the check isn't older than {@code BOARD_CHANGE_MAX_STALENESS_MS}.
+     */
+    public boolean isUpToDate(long peerId, int orderId, long checkedNanos) {
+        if (mode == Mode.OFF || !healthy || healthySinceNanos - checkedNanos > 0) {
+            return false;
+        }
+        if (System.nanoTime() - checkedNanos > maxStalenessNanos) {
+            return false;
+        }
+        var latest = latestOrderIds.get(peerId);
+        return latest == null || latest <= orderId;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    private void run() {
+        var nextListenNanos = System.nanoTime();
+        while (running) {
+            if (mode == Mode.LISTEN && listenConnection == null && System.nanoTime() - nextListenNanos >= 0) {
+                if (!startListening()) {
+                    nextListenNanos = System.nanoTime() + reconnectNanos;
+                }
+            }
+            if (listenConnection != null) {
+                if (!receiveNotifications()) {
+                    nextListenNanos = System.nanoTime() + reconnectNanos;
+                }
+                continue;
+            }
+            poll();
+            try {
+                Thread.sleep(pollMs);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        closeListenConnection();
+    }
+
+    /**
+     * Rows inserted before LISTEN took effect aren't notified, so the boards are polled once right after it.
+     */
+    private boolean startListening() {
+        try {
+            if (!boardDrawLogOrmService.isNotifyTriggerInstalled()) {
+                log.warn("The board_draw_log_notify trigger isn't installed, polling for new draws instead");
+                return false;
+            }
+            listenConnection = openConnection();
+            try (var statement = listenConnection.createStatement()) {
+                statement.execute("listen " + CHANNEL);
+            }
+            lastPingNanos = System.nanoTime();
+            if (!poll()) {
+                closeListenConnection();
+                return false;
+            }
+            log.info("Listening for new draws on the {} channel", CHANNEL);
+            return true;
+        } catch (SQLException | RuntimeException e) {
+            log.warn("Can't listen for new draws, polling instead", e);
+            closeListenConnection();
+            return false;
+        }
+    }
+
+    /**
+     * Waits for notifications up to {@code BOARD_CHANGE_POLL_MS}. A lost connection may have lost
+     * notifications too, so the feed can't vouch for any board until it has polled again.
+     */
+    private boolean receiveNotifications() {
+        try {
+            var pgConnection = listenConnection.unwrap(PGConnection.class);
+            var notifications = pgConnection.getNotifications((int) pollMs);
+            if (notifications != null) {
+                for (var notification : notifications) {
+                    handle(notification);
+                }
+            }
+            if (System.nanoTime() - lastPingNanos >= PING_INTERVAL_NANOS) {
+                try (var statement = listenConnection.createStatement()) {
+                    statement.execute("select 1");
+                }
+                lastPingNanos = System.nanoTime();
+            }
+            return true;
+        } catch (SQLException e) {
+            log.warn("Lost the {} listener connection, polling until it's back", CHANNEL, e);
+            markUnhealthy();
+            closeListenConnection();
+            return false;
+        }
+    }
+
+    private void handle(PGNotification notification) {
+        var parts = notification.getParameter().split(":");
+        try {
+            announce(Long.parseLong(parts[0]), Integer.parseInt(parts[1]), Long.parseLong(parts[2]));
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            log.warn("Unexpected {} notification: {}", CHANNEL, notification.getParameter());
+        }
+    }
+
+    private boolean poll() {
+        if (watchedPeers.isEmpty()) {
+            markHealthy(System.nanoTime());
+            return true;
+        }
+        var startNanos = System.nanoTime();
+        var peerIds = watchedPeers.stream().mapToLong(Long::longValue).toArray();
+        try {
+            boardDrawLogOrmService.forEachLatestDrawLog(peerIds, this::announce);
+            markHealthy(startNanos);
+            return true;
+        } catch (RuntimeException e) {
+            log.warn("Can't poll for new draws", e);
+            markUnhealthy();
+            return false;
+        }
+    }
+
+    private void announce(long peerId, int orderId, long time) {
+        if (!watchedPeers.contains(peerId)) {
+            return;
+        }
+        var newer = new boolean[1];
+        latestOrderIds.compute(peerId, (id, latest) -> {
+            if (latest != null && latest >= orderId) {
+                return latest;
+            }
+            newer[0] = true;
+            return orderId;
+        });
+        if (!newer[0]) {
+            return;
+        }
+        var lagMillis = Math.max(0, System.currentTimeMillis() - time);
+        metricsService.recordNanos(MetricsService.Stage.CHANGE_FEED_LAG, peerId, lagMillis * 1_000_000);
+        for (var listener : listeners) {
+            try {
+                listener.onNewRows(peerId, orderId);
+            } catch (RuntimeException e) {
+                log.error("Board change listener failed for chat {}", peerId, e);
+            }
+        }
+    }
+
+    private void markHealthy(long sinceNanos) {
+        if (!healthy) {
+            healthySinceNanos = sinceNanos;
+            healthy = true;
+        }
+    }
+
+    private void markUnhealthy() {
+        healthy = false;
+    }
+
+    /**
+     * The connection is kept open for as long as the feed listens, so it's opened outside the pool.
+     */
+    private Connection openConnection() throws SQLException {
+        if (dataSource instanceof HikariDataSource hikari) {
+            return DriverManager.getConnection(hikari.getJdbcUrl(), hikari.getUsername(), hikari.getPassword());
+        }
+        return dataSource.getConnection();
+    }
+
+    private void closeListenConnection() {
+        if (listenConnection == null) {
+            return;
+        }
+        try {
+            listenConnection.close();
+        } catch (SQLException e) {
+            log.debug("Can't close the {} listener connection", CHANNEL, e);
+        }
+        listenConnection = null;
+    }
+
+    private enum Mode {
+        LISTEN, POLL, OFF
+    }
+
+    @FunctionalInterface
+    public interface BoardChangeListener {
+        /**
+         * @param orderId the latest order_id of the chat's rows
+         */
+        void onNewRows(long peerId, int orderId);
+    }
+}
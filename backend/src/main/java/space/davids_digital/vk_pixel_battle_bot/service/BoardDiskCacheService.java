@@ -0,0 +1,151 @@
+package space.davids_digital.vk_pixel_battle_bot.service;
+
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import space.davids_digital.vk_pixel_battle_bot.model.BoardImageKey;
+import space.davids_digital.vk_pixel_battle_bot.util.MappedFileCache;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps board PNGs and grid layers in a {@link MappedFileCache} under {@code BOARD_DISK_CACHE_DIR}, so a restarted
+ * backend serves the boards it had rendered before without rendering them again. PNGs are stored by their
+ * {@link BoardImageKey}, which covers everything that goes into them, and grid layers by their geometry. The
+ * cache takes up to {@code BOARD_DISK_CACHE_MAX_BYTES} and its index is written every
+ * {@code BOARD_DISK_CACHE_FLUSH_MS} and on shutdown. Without a directory, or if it can't be opened, nothing is
+ * cached on disk.
+ */
+@Service
+public class BoardDiskCacheService {
+    /**
+     * Bump when boards or grid layers would be drawn differently, so images rendered by older backends are dropped.
+     */
+    private static final String RENDER_VERSION = "1";
+    private static final Logger log = LoggerFactory.getLogger(BoardDiskCacheService.class);
+
+    private final MetricsService metricsService;
+    private final MappedFileCache cache;
+    private final ScheduledExecutorService flushExecutor;
+
+    public BoardDiskCacheService(
+            MetricsService metricsService,
+            @Value("${BOARD_DISK_CACHE_DIR:}") String directory,
+            @Value("${BOARD_DISK_CACHE_MAX_BYTES:268435456}") long maxBytes,
+            @Value("${BOARD_DISK_CACHE_FLUSH_MS:10000}") long flushMs
+    ) {
+        this.metricsService = metricsService;
+        this.cache = open(directory, maxBytes);
+        if (cache == null) {
+            flushExecutor = null;
+            return;
+        }
+        flushExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            var thread = new Thread(runnable, "board-disk-cache-flush");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flushExecutor.scheduleWithFixedDelay(this::flush, flushMs, flushMs, TimeUnit.MILLISECONDS);
+        metricsService.registerGauge("board_disk_cache_entries", "Images and grid layers on disk", cache::size);
+        metricsService.registerGauge("board_disk_cache_bytes", "Bytes taken in the disk cache", cache::getUsedBytes);
+    }
+
+    /**
+     * Returns a lease on the cached PNG, which must be closed, or null if it isn't cached.
+     */
+    public MappedFileCache.Lease openBoardPng(BoardImageKey key) {
+        return open(getPngKey(key));
+    }
+
+    public void putBoardPng(BoardImageKey key, byte[] png) {
+        if (cache != null) {
+            cache.put(getPngKey(key), png.length, buffer -> buffer.put(png));
+        }
+    }
+
+    /**
+     * Copies the cached grid layer into {@code destination}, which has to be the layer's size.
+     *
+     * @return whether the layer was cached
+     */
+    public boolean readGridLayer(String layerKey, int[] destination) {
+        try (var lease = open("grid/" + layerKey)) {
+            if (lease == null || lease.size() != destination.length * Integer.BYTES) {
+                return false;
+            }
+            lease.buffer().asIntBuffer().get(destination);
+            return true;
+        }
+    }
+
+    public void putGridLayer(String layerKey, int[] layer) {
+        if (cache != null) {
+            cache.put("grid/" + layerKey, layer.length * Integer.BYTES, buffer -> buffer.asIntBuffer().put(layer));
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (cache == null) {
+            return;
+        }
+        flushExecutor.shutdownNow();
+        try {
+            cache.close();
+        } catch (IOException e) {
+            log.warn("Can't save the board disk cache", e);
+        }
+    }
+
+    private MappedFileCache.Lease open(String key) {
+        if (cache == null) {
+            return null;
+        }
+        var lease = cache.open(key);
+        metricsService.increment(lease != null
+                ? MetricsService.Counter.DISK_CACHE_HITS
+                : MetricsService.Counter.DISK_CACHE_MISSES
+        );
+        return lease;
+    }
+
+    private void flush() {
+        try {
+            cache.flush();
+        } catch (IOException e) {
+            log.warn("Can't save the board disk cache", e);
+        }
+    }
+
+    /**
+     * One mapping can't be larger than 2 GiB, so neither can the cache.
+     */
+    private static MappedFileCache open(String directory, long maxBytes) {
+        if (directory.isBlank() || maxBytes <= 0) {
+            return null;
+        }
+        try {
+            var cache = new MappedFileCache(
+                    Path.of(directory),
+                    "boards",
+                    (int) Math.min(maxBytes, Integer.MAX_VALUE),
+                    RENDER_VERSION
+            );
+            log.info("Opened the board disk cache in {} with {} cached images and layers", directory, cache.size());
+            return cache;
+        } catch (IOException | RuntimeException e) {
+            log.warn("Can't open the board disk cache in {}, boards are only cached in memory", directory, e);
+            return null;
+        }
+    }
+
+    private static String getPngKey(BoardImageKey key) {
+        return "png/" + key.toETag();
+    }
+}
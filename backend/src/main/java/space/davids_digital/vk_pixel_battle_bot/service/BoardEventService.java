@@ -0,0 +1,407 @@
+package space.davids_digital.vk_pixel_battle_bot.service;
+
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import space.davids_digital.vk_pixel_battle_bot.model.BoardEventSnapshotModel;
+import space.davids_digital.vk_pixel_battle_bot.model.BoardStateModel;
+import space.davids_digital.vk_pixel_battle_bot.model.ChatSettingsModel;
+import space.davids_digital.vk_pixel_battle_bot.model.DrawLogBatch;
+import space.davids_digital.vk_pixel_battle_bot.model.PixelDrawResultModel;
+import space.davids_digital.vk_pixel_battle_bot.orm.service.ChatSettingsOrmService;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Streams chats' boards as server-sent events: a {@code snapshot} event with the whole board, then {@code draw}
+ * events holding arrays of the draws applied to the in-memory board since. An event's id is the last order_id
+ * it covers, so a client reconnecting with {@code Last-Event-ID} is only sent the cells drawn after it.
+ * <p>
+ * Draws made through the backend are queued as they're applied. Those the bot writes to board_draw_log directly
+ * are picked up by refreshing the board as soon as {@link BoardChangeFeedService} announces them, and every
+ * streamed board is refreshed every {@code BOARD_EVENTS_POLL_MS} in case the feed can't vouch for it. Every
+ * stream has its own queue of at most {@code BOARD_EVENTS_QUEUE_SIZE} draws, drained by
+ * {@code BOARD_EVENTS_THREADS} sender threads. If a slow client lets the queue overflow, its draws are dropped
+ * and it's sent a new snapshot instead, so a stream never holds more than a board and a queue.
+ */
+@Service
+public class BoardEventService {
+    private static final Logger log = LoggerFactory.getLogger(BoardEventService.class);
+    private static final int MAX_BATCH_DRAWS = 256;
+    private static final long HEARTBEAT_NANOS = TimeUnit.SECONDS.toNanos(15);
+    private static final long RECONNECT_MILLIS = 1000;
+
+    private final ChatSettingsOrmService chatSettingsOrmService;
+    private final BoardStateService boardStateService;
+    private final BoardImageService boardImageService;
+    private final MetricsService metricsService;
+    private final int queueSize;
+    private final long timeoutMs;
+    private final ExecutorService senderExecutor;
+    private final ScheduledExecutorService pollExecutor;
+    private final Map<Long, Topic> topics = new ConcurrentHashMap<>();
+    private long lastHeartbeatNanos = System.nanoTime();
+
+    public BoardEventService(
+            ChatSettingsOrmService chatSettingsOrmService,
+            BoardStateService boardStateService,
+            BoardChangeFeedService boardChangeFeedService,
+            BoardImageService boardImageService,
+            MetricsService metricsService,
+            @Value("${BOARD_EVENTS_THREADS:4}") int threads,
+            @Value("${BOARD_EVENTS_QUEUE_SIZE:4096}") int queueSize,
+            @Value("${BOARD_EVENTS_POLL_MS:1000}") long pollMs,
+            @Value("${BOARD_EVENTS_TIMEOUT_MS:600000}") long timeoutMs
+    ) {
+        this.chatSettingsOrmService = chatSettingsOrmService;
+        this.boardStateService = boardStateService;
+        this.boardImageService = boardImageService;
+        this.metricsService = metricsService;
+        this.queueSize = queueSize;
+        this.timeoutMs = timeoutMs;
+        var threadNumber = new AtomicInteger();
+        senderExecutor = Executors.newFixedThreadPool(threads, runnable -> {
+            var thread = new Thread(runnable, "board-events-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        pollExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            var thread = new Thread(runnable, "board-events-poll");
+            thread.setDaemon(true);
+            return thread;
+        });
+        pollExecutor.scheduleWithFixedDelay(this::poll, pollMs, pollMs, TimeUnit.MILLISECONDS);
+        boardStateService.addDrawListener(this::onDraws);
+        boardChangeFeedService.addListener((peerId, orderId) -> {
+            var topic = topics.get(peerId);
+            if (topic != null) {
+                pollExecutor.execute(() -> refresh(peerId, topic));
+            }
+        });
+        metricsService.registerGauge("board_event_subscribers", "Open board event streams", () ->
+                topics.values().stream().mapToLong(topic -> topic.subscribers.size()).sum()
+        );
+    }
+
+    /**
+     * Opens a stream of the chat's board, starting after {@code lastOrderId} if the client has seen the board
+     * up to it, or with a snapshot if it's null.
+     */
+    public SseEmitter subscribe(ChatSettingsModel chatSettings, Integer lastOrderId) {
+        var subscriber = new Subscriber(chatSettings.getPeerId(), new SseEmitter(timeoutMs), queueSize);
+        subscriber.emitter.onCompletion(() -> unsubscribe(subscriber));
+        subscriber.emitter.onError(e -> unsubscribe(subscriber));
+        subscriber.emitter.onTimeout(subscriber.emitter::complete);
+        boardStateService.readState(chatSettings, state -> {
+            var topic = topics.compute(subscriber.peerId, (peerId, existing) -> {
+                var result = existing != null ? existing : new Topic();
+                result.subscribers.add(subscriber);
+                return result;
+            });
+            follow(topic, state);
+            if (lastOrderId == null || !queueDrawsAfter(subscriber, state, lastOrderId)) {
+                subscriber.resync = true;
+            }
+            return null;
+        });
+        schedule(subscriber);
+        return subscriber.emitter;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        pollExecutor.shutdownNow();
+        senderExecutor.shutdownNow();
+    }
+
+    /**
+     * Queues the cells drawn after {@code orderId}, oldest first so that event ids keep increasing. Returns false
+     * if a snapshot should be sent instead: when the board is empty, when no cell predates {@code orderId}
+     * (which is also the case if it's from an earlier battle), or when more cells changed than a queue holds.
+     */
+    private boolean queueDrawsAfter(Subscriber subscriber, BoardState state, int orderId) {
+        if (state.getPaintedCellCount() == 0) {
+            return false;
+        }
+        var draws = new ArrayList<PixelDrawResultModel>();
+        state.forEachCellDrawnAfter(orderId, (x, y, colorRgb, cellOrderId) ->
+                draws.add(new PixelDrawResultModel(cellOrderId, x, y, colorRgb))
+        );
+        if (draws.size() == state.getPaintedCellCount() || draws.size() > queueSize) {
+            return false;
+        }
+        draws.sort(Comparator.comparingInt(PixelDrawResultModel::orderId));
+        subscriber.pending.addAll(draws);
+        return true;
+    }
+
+    /**
+     * Called with the board's lock held, so it only queues.
+     */
+    private void onDraws(BoardState state, DrawLogBatch drawLogs) {
+        var topic = topics.get(state.getPeerId());
+        if (topic == null || !follow(topic, state)) {
+            return;
+        }
+        var draws = new ArrayList<PixelDrawResultModel>(drawLogs.size());
+        for (int i = 0; i < drawLogs.size(); i++) {
+            if (BoardState.cellIndex(state.getWidth(), state.getHeight(), drawLogs.getX(i), drawLogs.getY(i)) >= 0) {
+                draws.add(new PixelDrawResultModel(
+                        drawLogs.getOrderId(i),
+                        drawLogs.getX(i),
+                        drawLogs.getY(i),
+                        drawLogs.getColorRgb(i) & 0xFFFFFF
+                ));
+            }
+        }
+        for (var subscriber : topic.subscribers) {
+            if (!subscriber.resync) {
+                for (var draw : draws) {
+                    if (!subscriber.pending.offer(draw)) {
+                        subscriber.resync = true;
+                        subscriber.pending.clear();
+                        break;
+                    }
+                }
+            }
+            schedule(subscriber);
+        }
+    }
+
+    /**
+     * Boards are replaced when a battle restarts or the board is resized, and every stream of a replaced board
+     * starts over with a snapshot. Returns false in that case.
+     */
+    private boolean follow(Topic topic, BoardState state) {
+        var previous = topic.state;
+        if (previous == state) {
+            return true;
+        }
+        topic.state = state;
+        if (previous == null) {
+            return true;
+        }
+        for (var subscriber : topic.subscribers) {
+            subscriber.resync = true;
+            subscriber.pending.clear();
+            schedule(subscriber);
+        }
+        return false;
+    }
+
+    private void schedule(Subscriber subscriber) {
+        if (subscriber.closed || !subscriber.draining.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            senderExecutor.execute(() -> drain(subscriber));
+        } catch (RejectedExecutionException e) {
+            subscriber.draining.set(false);
+        }
+    }
+
+    /**
+     * Only one thread drains a subscriber at a time. Sends block while the client's socket buffer is full,
+     * which is what lets draws pile up in the queue of a slow client.
+     */
+    private void drain(Subscriber subscriber) {
+        try {
+            while (!subscriber.closed) {
+                if (subscriber.finish) {
+                    subscriber.emitter.complete();
+                    unsubscribe(subscriber);
+                } else if (subscriber.resync) {
+                    sendSnapshot(subscriber);
+                } else if (!sendDraws(subscriber)) {
+                    if (subscriber.heartbeat) {
+                        subscriber.heartbeat = false;
+                        subscriber.emitter.send(SseEmitter.event().comment("ping"));
+                    }
+                    break;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            log.debug("Closing the board event stream of chat {}", subscriber.peerId, e);
+            unsubscribe(subscriber);
+        } finally {
+            subscriber.draining.set(false);
+        }
+        if (!subscriber.pending.isEmpty() || subscriber.resync || subscriber.finish || subscriber.heartbeat) {
+            schedule(subscriber);
+        }
+    }
+
+    private boolean sendDraws(Subscriber subscriber) throws IOException {
+        var draws = new ArrayList<PixelDrawResultModel>(Math.min(MAX_BATCH_DRAWS, subscriber.pending.size()));
+        subscriber.pending.drainTo(draws, MAX_BATCH_DRAWS);
+        if (draws.isEmpty()) {
+            return false;
+        }
+        subscriber.emitter.send(SseEmitter.event()
+                .id(Integer.toString(draws.get(draws.size() - 1).orderId()))
+                .name("draw")
+                .data(draws, MediaType.APPLICATION_JSON));
+        metricsService.increment(MetricsService.Counter.BOARD_EVENT_DRAWS, subscriber.peerId, draws.size());
+        return true;
+    }
+
+    /**
+     * The board is copied, and the queue cleared, under the board's lock, so the draws queued afterwards are
+     * exactly those after the snapshot. Streams of the same board share the encoded snapshot until it changes.
+     */
+    private void sendSnapshot(Subscriber subscriber) throws IOException {
+        var chatSettings = chatSettingsOrmService.getChatSettingsByPeerId(subscriber.peerId);
+        if (boardImageService.getSettingsError(chatSettings) != null) {
+            subscriber.finish = true;
+            return;
+        }
+        var topic = topics.get(subscriber.peerId);
+        if (topic == null) {
+            subscriber.closed = true;
+            return;
+        }
+        var snapshot = boardStateService.readState(chatSettings, state -> {
+            follow(topic, state);
+            subscriber.pending.clear();
+            subscriber.resync = false;
+            var cached = topic.snapshot;
+            if (cached != null && cached.state() == state && cached.model().orderId() == state.getLastOrderId()) {
+                return cached;
+            }
+            return new TopicSnapshot(state, null, state.toModel());
+        });
+        if (snapshot.model() == null) {
+            var board = snapshot.board();
+            snapshot = new TopicSnapshot(snapshot.state(), new BoardEventSnapshotModel(
+                    board.getLastOrderId(),
+                    board.getWidth(),
+                    board.getHeight(),
+                    encodeColors(board.getColors())
+            ), null);
+            topic.snapshot = snapshot;
+        }
+        subscriber.emitter.send(SseEmitter.event()
+                .id(Integer.toString(snapshot.model().orderId()))
+                .name("snapshot")
+                .reconnectTime(RECONNECT_MILLIS)
+                .data(snapshot.model(), MediaType.APPLICATION_JSON));
+        metricsService.increment(MetricsService.Counter.BOARD_EVENT_SNAPSHOTS, subscriber.peerId, 1);
+    }
+
+    private static String encodeColors(int[] colors) {
+        var buffer = ByteBuffer.allocate(colors.length * 4);
+        buffer.asIntBuffer().put(colors);
+        var out = new ByteArrayOutputStream(colors.length / 8 + 64);
+        var deflater = new Deflater(Deflater.BEST_SPEED);
+        try (var deflaterOut = new DeflaterOutputStream(out, deflater)) {
+            deflaterOut.write(buffer.array());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            deflater.end();
+        }
+        return Base64.getEncoder().encodeToString(out.toByteArray());
+    }
+
+    /**
+     * Refreshes every streamed board, which also catches up with rows the change feed missed, ends the
+     * streams of chats whose settings are gone and sends heartbeats.
+     */
+    private void poll() {
+        var heartbeat = System.nanoTime() - lastHeartbeatNanos >= HEARTBEAT_NANOS;
+        if (heartbeat) {
+            lastHeartbeatNanos = System.nanoTime();
+        }
+        for (var entry : topics.entrySet()) {
+            refresh(entry.getKey(), entry.getValue());
+            if (heartbeat) {
+                for (var subscriber : entry.getValue().subscribers) {
+                    subscriber.heartbeat = true;
+                    schedule(subscriber);
+                }
+            }
+        }
+    }
+
+    /**
+     * Refreshing the board queues its new draws through the draw listener.
+     */
+    private void refresh(long peerId, Topic topic) {
+        try {
+            var chatSettings = chatSettingsOrmService.getChatSettingsByPeerId(peerId);
+            if (boardImageService.getSettingsError(chatSettings) != null) {
+                for (var subscriber : topic.subscribers) {
+                    subscriber.finish = true;
+                    schedule(subscriber);
+                }
+                return;
+            }
+            boardStateService.readState(chatSettings, state -> follow(topic, state));
+        } catch (RuntimeException e) {
+            log.warn("Can't refresh the streamed board of chat {}", peerId, e);
+        }
+    }
+
+    private void unsubscribe(Subscriber subscriber) {
+        subscriber.closed = true;
+        topics.computeIfPresent(subscriber.peerId, (peerId, topic) -> {
+            topic.subscribers.remove(subscriber);
+            return topic.subscribers.isEmpty() ? null : topic;
+        });
+    }
+
+    /**
+     * The streams of a chat and the board they follow.
+     */
+    private static class Topic {
+        private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+        private volatile BoardState state;
+        private volatile TopicSnapshot snapshot;
+    }
+
+    /**
+     * Either the copied board or the encoded snapshot made from it.
+     */
+    private record TopicSnapshot(BoardState state, BoardEventSnapshotModel model, BoardStateModel board) {}
+
+    private static class Subscriber {
+        private final long peerId;
+        private final SseEmitter emitter;
+        private final ArrayBlockingQueue<PixelDrawResultModel> pending;
+        private final AtomicBoolean draining = new AtomicBoolean();
+        private volatile boolean resync;
+        private volatile boolean heartbeat;
+        private volatile boolean finish;
+        private volatile boolean closed;
+
+        Subscriber(long peerId, SseEmitter emitter, int queueSize) {
+            this.peerId = peerId;
+            this.emitter = emitter;
+            this.pending = new ArrayBlockingQueue<>(queueSize);
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package space.davids_digital.vk_pixel_battle_bot.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Arc2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.LinkedHashMap;
+
+/**
+ * Renders the dotted grid and axis labels once per board geometry and keeps the result
+ * as a plain pixel array that is copied into every new board image. Layers are kept on disk too,
+ * so they aren't drawn again after a restart.
+ */
+@Service
+public class BoardGridLayerService {
+    private final BoardDiskCacheService boardDiskCacheService;
+    private final long maxBytes;
+    private final LinkedHashMap<GridLayerKey, int[]> layers = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes = 0;
+
+    public BoardGridLayerService(
+            BoardDiskCacheService boardDiskCacheService,
+            @Value("${BOARD_GRID_LAYER_CACHE_MAX_BYTES:67108864}") long maxBytes
+    ) {
+        this.boardDiskCacheService = boardDiskCacheService;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Copies the layer for the cells from minX..maxX and minY..maxY (inclusive, in the bot's coordinates)
+     * into an image of those cells at {@code pixelSize} with {@code padding} around them.
+     */
+    public void copyGridLayer(int minX, int maxX, int minY, int maxY, int pixelSize, int padding, int[] destination) {
+        var key = new GridLayerKey(minX, maxX + 1, minY, maxY + 1, pixelSize, padding);
+        var layer = getCachedLayer(key);
+        if (layer == null) {
+            layer = loadLayer(key);
+            putCachedLayer(key, layer);
+        }
+        System.arraycopy(layer, 0, destination, 0, layer.length);
+    }
+
+    private synchronized int[] getCachedLayer(GridLayerKey key) {
+        return layers.get(key);
+    }
+
+    private synchronized void putCachedLayer(GridLayerKey key, int[] layer) {
+        var layerBytes = (long) layer.length * Integer.BYTES;
+        if (layerBytes > maxBytes || layers.containsKey(key)) {
+            return;
+        }
+        layers.put(key, layer);
+        totalBytes += layerBytes;
+        var iterator = layers.values().iterator();
+        while (totalBytes > maxBytes && iterator.hasNext()) {
+            totalBytes -= (long) iterator.next().length * Integer.BYTES;
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Draws the rows of the same layer starting at {@code y} into {@code strip}, which is as wide as the layer,
+     * for images that are produced strip by strip. Strips aren't cached.
+     */
+    public void drawGridStrip(
+            int minX,
+            int maxX,
+            int minY,
+            int maxY,
+            int pixelSize,
+            int padding,
+            int y,
+            BufferedImage strip
+    ) {
+        drawLayer(new GridLayerKey(minX, maxX + 1, minY, maxY + 1, pixelSize, padding), y, strip);
+    }
+
+    private int[] loadLayer(GridLayerKey key) {
+        var layer = new int[key.width() * key.height()];
+        if (boardDiskCacheService.readGridLayer(key.toCacheKey(), layer)) {
+            return layer;
+        }
+        layer = renderLayer(key);
+        boardDiskCacheService.putGridLayer(key.toCacheKey(), layer);
+        return layer;
+    }
+
+    private int[] renderLayer(GridLayerKey key) {
+        var image = new BufferedImage(
+                key.width(),
+                key.height(),
+                BufferedImage.TYPE_INT_RGB
+        );
+        drawLayer(key, 0, image);
+        return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    }
+
+    /**
+     * Draws the part of the layer that starts at row {@code originY} of the layer into the image.
+     */
+    private void drawLayer(GridLayerKey key, int originY, BufferedImage image) {
+        var gridMinX = key.gridMinX();
+        var gridMaxX = key.gridMaxX();
+        var gridMinY = key.gridMinY();
+        var gridMaxY = key.gridMaxY();
+        var drawWidth = (gridMaxX - gridMinX) * key.pixelSize();
+        var drawHeight = (gridMaxY - gridMinY) * key.pixelSize();
+        var graphics = image.createGraphics();
+        graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        graphics.setColor(Color.WHITE);
+        graphics.fillRect(0, 0, image.getWidth(), image.getHeight());
+        drawFreePixelDots(
+                graphics,
+                originY,
+                image.getHeight(),
+                key.padding(),
+                key.padding(),
+                drawWidth,
+                drawHeight,
+                gridMinX,
+                gridMaxX,
+                gridMinY,
+                gridMaxY
+        );
+        drawAxisLabels(
+                graphics,
+                originY,
+                key.padding(),
+                key.padding(),
+                drawWidth,
+                drawHeight,
+                gridMinX,
+                gridMaxX,
+                gridMinY,
+                gridMaxY
+        );
+        graphics.dispose();
+    }
+
+    private void drawAxisLabels(
+            Graphics2D graphics,
+            int originY,
+            double drawX,
+            double drawY,
+            double drawWidth,
+            double drawHeight,
+            int gridMinX,
+            int gridMaxX,
+            int gridMinY,
+            int gridMaxY
+    ) {
+        if (gridMinX >= gridMaxX || gridMinY >= gridMaxY) {
+            return;
+        }
+        var gridWidth = gridMaxX - gridMinX;
+        var gridHeight = gridMaxY - gridMinY;
+        graphics.setTransform(AffineTransform.getTranslateInstance(0, -originY));
+
+        graphics.setFont(BoardImageService.LABEL_FONT);
+        var metrics = graphics.getFontMetrics();
+
+        graphics.setColor(new Color(0f, 0f, 0.5f, 0.2f));
+        for (int columnX = 0; columnX < gridWidth; columnX++) {
+            var x = gridMinX + columnX;
+            if (x % 5 != 0 || x == 0)
+                continue;
+            var text = String.valueOf(x);
+            if (x > 0)
+                text = "+" + text;
+            var textX = (float) (drawX + drawWidth * (columnX + 0.5)/gridWidth - metrics.stringWidth(text)/2.0);
+            var textY = (float) (drawY + drawHeight + metrics.getHeight() + 0.5);
+            graphics.drawString(text, textX, textY);
+        }
+        graphics.setColor(new Color(0.5f, 0f, 0f, 0.2f));
+        for (int rowY = 0; rowY < gridHeight; rowY++) {
+            var y = gridMinY + rowY;
+            if (y % 5 != 0 || y == 0)
+                continue;
+            var text = String.valueOf(y);
+            if (y > 0)
+                text = "+" + text;
+            var textX = (float) (drawX - metrics.stringWidth(text));
+            var textY = (float) (drawY + drawHeight - drawHeight * (rowY + 0.5)/gridHeight + metrics.getAscent()/2.5);
+            graphics.drawString(text, textX, textY);
+        }
+        // Axis names sit next to the zero row and column, so they are left out of views that don't show them
+        if (gridMinY <= 0 && gridMaxY > 0) {
+            graphics.setColor(new Color(0f, 0f, 0.6f, 0.4f));
+            var xTextY = (float) (drawY + drawHeight - drawHeight * (-gridMinY + 0.5)/gridHeight
+                    + metrics.getAscent()/2.5);
+            graphics.drawString(
+                    "-X",
+                    (float) (drawX - metrics.stringWidth("-X")),
+                    xTextY
+            );
+            graphics.drawString(
+                    "+X",
+                    (float) (drawX + drawWidth),
+                    xTextY
+            );
+        }
+        if (gridMinX <= 0 && gridMaxX > 0) {
+            graphics.setColor(new Color(0.6f, 0f, 0f, 0.4f));
+            double yTextXBase = drawX + drawWidth * (-gridMinX + 0.5) / gridWidth;
+            graphics.drawString(
+                    "-Y",
+                    (float) (yTextXBase - metrics.stringWidth("-Y")/2.0),
+                    (float) (drawY + drawHeight + metrics.getHeight())
+            );
+            graphics.drawString(
+                    "+Y",
+                    (float) (yTextXBase - metrics.stringWidth("+Y")/2.0),
+                    (float) drawY
+            );
+        }
+    }
+
+    private void drawFreePixelDots(
+            Graphics2D graphics,
+            int originY,
+            int imageHeight,
+            double drawX,
+            double drawY,
+            double drawWidth,
+            double drawHeight,
+            int gridMinX,
+            int gridMaxX,
+            int gridMinY,
+            int gridMaxY
+    ) {
+        if (gridMinX >= gridMaxX || gridMinY >= gridMaxY) {
+            return;
+        }
+        var gridWidth = gridMaxX - gridMinX;
+        var gridHeight = gridMaxY - gridMinY;
+        var transform = AffineTransform.getTranslateInstance(drawX, drawY - originY);
+        transform.scale(drawWidth/gridWidth, drawHeight/gridHeight);
+        graphics.setTransform(transform);
+
+        // Only the rows whose dots can touch the image, with a pixel of margin for antialiasing
+        var rowHeight = drawHeight/gridHeight;
+        var top = originY - 1 - drawY;
+        var bottom = originY + imageHeight + 1 - drawY;
+        var rowFrom = Math.max(0, (int) Math.floor(gridHeight - 0.6 - bottom/rowHeight));
+        var rowTo = Math.min(gridHeight - 1, (int) Math.ceil(gridHeight - 0.4 - top/rowHeight));
+        for (int columnX = 0; columnX < gridWidth; columnX++) {
+            var x = gridMinX + columnX;
+            for (int rowY = rowFrom; rowY <= rowTo; rowY++) {
+                var y = gridMinY + rowY;
+                graphics.setColor(new Color(0f, 0f, 0f, 0.05f));
+                if (x == 0 && y == 0) {
+                    graphics.setColor(new Color(0.5f, 0f, 0.5f, 0.25f));
+                } else if (x == 0) {
+                    graphics.setColor(new Color(0.5f, 0f, 0f, 0.25f));
+                } else if (y == 0) {
+                    graphics.setColor(new Color(0f, 0f, 0.5f, 0.25f));
+                } else if (x % 5 == 0 || y % 5 == 0) {
+                    graphics.setColor(new Color(0f, 0f, 0f, 0.25f));
+                }
+                graphics.fill(new Arc2D.Double(columnX + 0.4, gridHeight - rowY - 0.6, 0.2, 0.2, 0, 360, Arc2D.OPEN));
+            }
+        }
+    }
+
+    /**
+     * Grid bounds are exclusive at the max end.
+     */
+    private record GridLayerKey(int gridMinX, int gridMaxX, int gridMinY, int gridMaxY, int pixelSize, int padding) {
+        int width() {
+            return (gridMaxX - gridMinX) * pixelSize + padding * 2;
+        }
+
+        int height() {
+            return (gridMaxY - gridMinY) * pixelSize + padding * 2;
+        }
+
+        String toCacheKey() {
+            return gridMinX + ".." + gridMaxX + "," + gridMinY + ".." + gridMaxY + "@" + pixelSize + "+" + padding;
+        }
+    }
+}
@@ -0,0 +1,372 @@
+package space.davids_digital.vk_pixel_battle_bot.service;
+
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import space.davids_digital.vk_pixel_battle_bot.model.BoardStateModel;
+import space.davids_digital.vk_pixel_battle_bot.model.ChatSettingsModel;
+import space.davids_digital.vk_pixel_battle_bot.orm.service.BoardDrawLogOrmService;
+import space.davids_digital.vk_pixel_battle_bot.util.LongLongHashMap;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Turns a chat's draw log into heatmaps of how contested every cell was: how many times it was painted over,
+ * how many users painted it and how recently it last changed. The heatmaps are boards of ramp colors, so they
+ * are drawn like the board itself.
+ * <p>
+ * The log is read through a cursor {@code BOARD_HEATMAP_FETCH_SIZE} rows at a time into columns of cell
+ * indices, user indices and times. The rows are then grouped by cell with a counting sort on a fork/join pool
+ * of {@code BOARD_HEATMAP_THREADS} threads: every chunk of rows counts its cells into its own histogram, the
+ * histograms are merged into each chunk's offsets, the chunks scatter their rows, and ranges of cells are
+ * aggregated in parallel.
+ * <p>
+ * At most {@code BOARD_HEATMAP_MAX_CONCURRENT} heatmaps are built at once; more are rejected. Built heatmaps are
+ * kept by chat, order_id and metric in a cache of up to {@code BOARD_HEATMAP_CACHE_MAX_BYTES}, least recently
+ * used first out, so the log is only read again once the board changes.
+ */
+@Service
+public class BoardHeatmapService {
+    private static final int MIN_CHUNK_ROWS = 16384;
+    private static final int CELL_RANGE = 4096;
+    private static final int[] RAMP_STOPS = {
+            0x2C7BB6, 0x00A6CA, 0x00CCBC, 0x90EB9D, 0xFFFF8C, 0xF9D057, 0xF29E2E, 0xE76818, 0xD7191C
+    };
+    private static final int[] RAMP = createRamp(256);
+
+    private final BoardDrawLogOrmService boardDrawLogOrmService;
+    private final BoardPixelService boardPixelService;
+    private final MetricsService metricsService;
+    private final int fetchSize;
+    private final ForkJoinPool pool;
+    private final Semaphore heatmaps;
+    private final long cacheMaxBytes;
+    private final LinkedHashMap<HeatmapKey, BoardStateModel> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private long cacheBytes = 0;
+
+    public BoardHeatmapService(
+            BoardDrawLogOrmService boardDrawLogOrmService,
+            BoardPixelService boardPixelService,
+            MetricsService metricsService,
+            @Value("${BOARD_HEATMAP_FETCH_SIZE:1000}") int fetchSize,
+            @Value("${BOARD_HEATMAP_THREADS:0}") int threads,
+            @Value("${BOARD_HEATMAP_MAX_CONCURRENT:2}") int maxConcurrent,
+            @Value("${BOARD_HEATMAP_CACHE_MAX_BYTES:16777216}") long cacheMaxBytes
+    ) {
+        this.boardDrawLogOrmService = boardDrawLogOrmService;
+        this.boardPixelService = boardPixelService;
+        this.metricsService = metricsService;
+        this.fetchSize = fetchSize;
+        this.heatmaps = new Semaphore(maxConcurrent);
+        this.cacheMaxBytes = cacheMaxBytes;
+        this.pool = new ForkJoinPool(
+                threads > 0 ? threads : Runtime.getRuntime().availableProcessors(),
+                forkJoinPool -> {
+                    var thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(forkJoinPool);
+                    thread.setName("board-heatmap-" + thread.getPoolIndex());
+                    return thread;
+                },
+                null,
+                false
+        );
+    }
+
+    /**
+     * Colors every cell drawn up to {@code lastOrderId} by the metric, from blue for the least to red for the
+     * most. Cells nobody has drawn stay {@link BoardStateModel#EMPTY}. Pixels buffered in {@code write_behind}
+     * mode are flushed first, so the draws the board already shows are counted.
+     *
+     * @throws RejectedExecutionException if the heatmap isn't cached and too many are being built
+     */
+    public BoardStateModel getHeatmap(ChatSettingsModel chatSettings, int lastOrderId, Metric metric) {
+        var key = new HeatmapKey(
+                chatSettings.getPeerId(),
+                lastOrderId,
+                chatSettings.getBoardWidth(),
+                chatSettings.getBoardHeight(),
+                metric
+        );
+        var cached = getCached(key);
+        if (cached != null) {
+            return cached;
+        }
+        if (!heatmaps.tryAcquire()) {
+            throw new RejectedExecutionException("Too many heatmaps are being built");
+        }
+        try {
+            var heatmap = buildHeatmap(chatSettings, lastOrderId, metric);
+            putCached(key, heatmap);
+            return heatmap;
+        } finally {
+            heatmaps.release();
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+    private synchronized BoardStateModel getCached(HeatmapKey key) {
+        return cache.get(key);
+    }
+
+    private synchronized void putCached(HeatmapKey key, BoardStateModel heatmap) {
+        var bytes = cellBytes(heatmap);
+        if (bytes > cacheMaxBytes) {
+            return;
+        }
+        var previous = cache.put(key, heatmap);
+        if (previous != null) {
+            cacheBytes -= cellBytes(previous);
+        }
+        cacheBytes += bytes;
+        var iterator = cache.values().iterator();
+        while (cacheBytes > cacheMaxBytes && iterator.hasNext()) {
+            cacheBytes -= cellBytes(iterator.next());
+            iterator.remove();
+        }
+    }
+
+    private static long cellBytes(BoardStateModel heatmap) {
+        return (long) heatmap.getWidth() * heatmap.getHeight() * Integer.BYTES;
+    }
+
+    private BoardStateModel buildHeatmap(ChatSettingsModel chatSettings, int lastOrderId, Metric metric) {
+        var startNanos = System.nanoTime();
+        var activity = aggregate(chatSettings, lastOrderId);
+        var cellCount = activity.draws.length;
+        var colors = new int[cellCount];
+        Arrays.fill(colors, BoardStateModel.EMPTY);
+        switch (metric) {
+            case OVERWRITES -> colorCounts(activity.draws, colors);
+            case USERS -> colorCounts(activity.users, colors);
+            case RECENCY -> colorRecency(activity.draws, activity.lastTimes, colors);
+        }
+        metricsService.record(MetricsService.Stage.HEATMAP, chatSettings.getPeerId(), startNanos);
+        return new BoardStateModel(
+                chatSettings.getPeerId(),
+                chatSettings.getBoardWidth(),
+                chatSettings.getBoardHeight(),
+                lastOrderId,
+                colors
+        );
+    }
+
+    private CellActivity aggregate(ChatSettingsModel chatSettings, int lastOrderId) {
+        var peerId = chatSettings.getPeerId();
+        var width = chatSettings.getBoardWidth();
+        var height = chatSettings.getBoardHeight();
+        var rows = new LogColumns();
+        boardPixelService.flush(peerId);
+        boardDrawLogOrmService.forEachDrawLog(peerId, fetchSize, (orderId, userId, time, x, y, colorRgb) -> {
+            var cell = BoardState.cellIndex(width, height, x, y);
+            if (cell >= 0 && orderId <= lastOrderId) {
+                rows.add(cell, userId, time);
+            }
+        });
+        metricsService.increment(MetricsService.Counter.DRAW_LOG_ROWS, peerId, rows.size);
+        return aggregate(rows, width * height);
+    }
+
+    private CellActivity aggregate(LogColumns rows, int cellCount) {
+        var chunks = Math.max(1, Math.min(pool.getParallelism(), rows.size / MIN_CHUNK_ROWS));
+        var chunkRows = (rows.size + chunks - 1) / chunks;
+        var histograms = new int[chunks][];
+        // Each chunk counts its rows per cell
+        pool.invoke(new RangeTask(0, chunks, 1, (from, to) -> {
+            for (int chunk = from; chunk < to; chunk++) {
+                var histogram = new int[cellCount];
+                for (int row = chunk * chunkRows, end = Math.min(rows.size, row + chunkRows); row < end; row++) {
+                    histogram[rows.cells[row]]++;
+                }
+                histograms[chunk] = histogram;
+            }
+        }));
+        // The histograms are merged into draw counts, and each turns into its chunk's offsets within a cell
+        var draws = new int[cellCount];
+        pool.invoke(new RangeTask(0, cellCount, CELL_RANGE, (from, to) -> {
+            for (int cell = from; cell < to; cell++) {
+                var total = 0;
+                for (var histogram : histograms) {
+                    var count = histogram[cell];
+                    histogram[cell] = total;
+                    total += count;
+                }
+                draws[cell] = total;
+            }
+        }));
+        var cellStarts = new int[cellCount + 1];
+        for (int cell = 0; cell < cellCount; cell++) {
+            cellStarts[cell + 1] = cellStarts[cell] + draws[cell];
+        }
+        // Chunks scatter their rows, so the rows of a cell end up together and still in order_id order
+        var sortedRows = new int[rows.size];
+        pool.invoke(new RangeTask(0, chunks, 1, (from, to) -> {
+            for (int chunk = from; chunk < to; chunk++) {
+                var offsets = histograms[chunk];
+                for (int row = chunk * chunkRows, end = Math.min(rows.size, row + chunkRows); row < end; row++) {
+                    var cell = rows.cells[row];
+                    sortedRows[cellStarts[cell] + offsets[cell]++] = row;
+                }
+            }
+        }));
+        var users = new int[cellCount];
+        var lastTimes = new long[cellCount];
+        pool.invoke(new RangeTask(0, cellCount, CELL_RANGE, (from, to) -> {
+            // Holds the last cell (plus one) each user was counted in, so every cell can tell users apart
+            // without a set of its own
+            var seenInCell = new int[rows.userCount];
+            for (int cell = from; cell < to; cell++) {
+                var distinctUsers = 0;
+                var lastTime = Long.MIN_VALUE;
+                for (int i = cellStarts[cell]; i < cellStarts[cell + 1]; i++) {
+                    var row = sortedRows[i];
+                    var user = rows.users[row];
+                    if (seenInCell[user] != cell + 1) {
+                        seenInCell[user] = cell + 1;
+                        distinctUsers++;
+                    }
+                    lastTime = Math.max(lastTime, rows.times[row]);
+                }
+                users[cell] = distinctUsers;
+                lastTimes[cell] = lastTime;
+            }
+        }));
+        return new CellActivity(draws, users, lastTimes);
+    }
+
+    /**
+     * Counts are at least 1 in a drawn cell and grow on a log scale, so that a few cells painted over
+     * hundreds of times don't leave every other cell at the cold end.
+     */
+    private static void colorCounts(int[] counts, int[] colors) {
+        var max = 1;
+        for (var count : counts) {
+            max = Math.max(max, count);
+        }
+        var scale = max > 1 ? (RAMP.length - 1) / Math.log(max) : 0;
+        for (int cell = 0; cell < counts.length; cell++) {
+            if (counts[cell] > 0) {
+                colors[cell] = RAMP[(int) Math.round(Math.log(counts[cell]) * scale)];
+            }
+        }
+    }
+
+    private static void colorRecency(int[] draws, long[] lastTimes, int[] colors) {
+        var min = Long.MAX_VALUE;
+        var max = Long.MIN_VALUE;
+        for (int cell = 0; cell < draws.length; cell++) {
+            if (draws[cell] > 0) {
+                min = Math.min(min, lastTimes[cell]);
+                max = Math.max(max, lastTimes[cell]);
+            }
+        }
+        var scale = max > min ? (RAMP.length - 1) / (double) (max - min) : 0;
+        for (int cell = 0; cell < draws.length; cell++) {
+            if (draws[cell] > 0) {
+                colors[cell] = RAMP[(int) Math.round((lastTimes[cell] - min) * scale)];
+            }
+        }
+    }
+
+    private static int[] createRamp(int size) {
+        var ramp = new int[size];
+        for (int i = 0; i < size; i++) {
+            var position = i * (RAMP_STOPS.length - 1) / (double) (size - 1);
+            var stop = Math.min((int) position, RAMP_STOPS.length - 2);
+            var t = position - stop;
+            var from = RAMP_STOPS[stop];
+            var to = RAMP_STOPS[stop + 1];
+            var rgb = 0;
+            for (int shift = 16; shift >= 0; shift -= 8) {
+                var channel = (int) Math.round(((from >> shift) & 0xFF) * (1 - t) + ((to >> shift) & 0xFF) * t);
+                rgb |= channel << shift;
+            }
+            ramp[i] = rgb;
+        }
+        return ramp;
+    }
+
+    public enum Metric {
+        /** How many times a cell was drawn. */
+        OVERWRITES,
+        /** How many users drew a cell. */
+        USERS,
+        /** When a cell last changed, relative to the other cells. */
+        RECENCY
+    }
+
+    private record HeatmapKey(long peerId, int lastOrderId, int width, int height, Metric metric) {}
+
+    private record CellActivity(int[] draws, int[] users, long[] lastTimes) {}
+
+    /**
+     * The log rows inside the board, with users numbered in order of their first draw.
+     */
+    private static class LogColumns {
+        private final LongLongHashMap userIndices = new LongLongHashMap();
+        private int[] cells = new int[1024];
+        private int[] users = new int[1024];
+        private long[] times = new long[1024];
+        private int size = 0;
+        private int userCount = 0;
+
+        void add(int cell, long userId, long time) {
+            if (size == cells.length) {
+                cells = Arrays.copyOf(cells, size * 2);
+                users = Arrays.copyOf(users, size * 2);
+                times = Arrays.copyOf(times, size * 2);
+            }
+            var user = (int) userIndices.get(userId, -1);
+            if (user < 0) {
+                user = userCount++;
+                userIndices.put(userId, user);
+            }
+            cells[size] = cell;
+            users[size] = user;
+            times[size] = time;
+            size++;
+        }
+    }
+
+    @FunctionalInterface
+    private interface RangeAction {
+        void run(int from, int to);
+    }
+
+    /**
+     * Splits {@code [from, to)} in halves until a part is at most {@code grain} long and runs the action on the
+     * parts in parallel.
+     */
+    private static class RangeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+        private final int grain;
+        private final RangeAction action;
+
+        RangeTask(int from, int to, int grain, RangeAction action) {
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+            this.action = action;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= grain) {
+                action.run(from, to);
+                return;
+            }
+            var middle = (from + to) >>> 1;
+            invokeAll(new RangeTask(from, middle, grain, action), new RangeTask(middle, to, grain, action));
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package space.davids_digital.vk_pixel_battle_bot.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import space.davids_digital.vk_pixel_battle_bot.model.BoardImageKey;
+
+import java.util.LinkedHashMap;
+
+@Service
+public class BoardImageCacheService {
+    private final long maxBytes;
+    private final LinkedHashMap<BoardImageKey, byte[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes = 0;
+
+    public BoardImageCacheService(@Value("${BOARD_IMAGE_CACHE_MAX_BYTES:33554432}") long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized byte[] get(BoardImageKey key) {
+        return entries.get(key);
+    }
+
+    public synchronized void put(BoardImageKey key, byte[] png) {
+        if (png.length > maxBytes) {
+            return;
+        }
+        var previous = entries.put(key, png);
+        if (previous != null) {
+            totalBytes -= previous.length;
+        }
+        totalBytes += png.length;
+        var iterator = entries.values().iterator();
+        while (totalBytes > maxBytes && iterator.hasNext()) {
+            totalBytes -= iterator.next().length;
+            iterator.remove();
+        }
+    }
+}
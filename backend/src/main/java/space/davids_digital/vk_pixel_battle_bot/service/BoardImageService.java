@@ -1,210 +1,304 @@
 package space.davids_digital.vk_pixel_battle_bot.service;
 
-import space.davids_digital.vk_pixel_battle_bot.orm.service.BoardDrawLogOrmService;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
+import space.davids_digital.vk_pixel_battle_bot.model.BoardStateModel;
+import space.davids_digital.vk_pixel_battle_bot.model.BoardViewModel;
+import space.davids_digital.vk_pixel_battle_bot.model.ChatSettingsModel;
 import space.davids_digital.vk_pixel_battle_bot.orm.service.ChatSettingsOrmService;
+import space.davids_digital.vk_pixel_battle_bot.render.BoardRasterWriter;
+import space.davids_digital.vk_pixel_battle_bot.render.PngEncoder;
+import space.davids_digital.vk_pixel_battle_bot.render.PngWriter;
 
 import java.awt.*;
-import java.awt.geom.AffineTransform;
-import java.awt.geom.Arc2D;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
 
 @Service
 public class BoardImageService {
-    private static final Font LABEL_FONT = new Font("Arial", Font.PLAIN, 24);
-    private final BoardDrawLogOrmService boardDrawLogOrmService;
+    static final Font LABEL_FONT = new Font("Arial", Font.PLAIN, 24);
+    private final BoardStateService boardStateService;
+    private final BoardGridLayerService boardGridLayerService;
     private final ChatSettingsOrmService chatSettingsOrmService;
-    private static final int PADDING = 75;
-    private static final int PIXEL_SIZE = 25;
+    private final MetricsService metricsService;
+    static final int PADDING = 75;
+    static final int PIXEL_SIZE = 25;
+    static final int BACKGROUND_RGB = 0xFFFFFF;
+    /**
+     * Axis labels are placed every 5 cells, which needs at least this many pixels per cell to stay readable.
+     */
+    static final int MIN_GRID_CELL_SIZE = 10;
+    private static final int STRIP_ROWS = 64;
+    private final int maxDimension;
+    private final long streamingMinPixels;
 
     public BoardImageService(
-            BoardDrawLogOrmService boardDrawLogOrmService,
-            ChatSettingsOrmService chatSettingsOrmService
+            BoardStateService boardStateService,
+            BoardGridLayerService boardGridLayerService,
+            ChatSettingsOrmService chatSettingsOrmService,
+            MetricsService metricsService,
+            @Value("${BOARD_IMAGE_MAX_DIMENSION:4096}") int maxDimension,
+            @Value("${BOARD_IMAGE_STREAMING_MIN_PIXELS:4194304}") long streamingMinPixels
     ) {
-        this.boardDrawLogOrmService = boardDrawLogOrmService;
+        this.boardStateService = boardStateService;
+        this.boardGridLayerService = boardGridLayerService;
         this.chatSettingsOrmService = chatSettingsOrmService;
+        this.metricsService = metricsService;
+        this.maxDimension = maxDimension;
+        this.streamingMinPixels = streamingMinPixels;
     }
 
     public BufferedImage getBoardImage(long peerId, boolean grid) {
         var chatSettings = chatSettingsOrmService.getChatSettingsByPeerId(peerId);
+        var settingsError = getSettingsError(chatSettings);
+        if (settingsError != null) {
+            return createErrorMessageImage(settingsError);
+        }
+        var boardState = boardStateService.getBoardState(chatSettings);
+        var view = resolveView(boardState.getWidth(), boardState.getHeight(), null, null, null, null, null, grid, null);
+        return renderBoardImage(boardState, view);
+    }
+
+    /**
+     * Clamps the requested region to the board (the whole board if a bound is null) and picks the cell size:
+     * the requested one ({@link #PIXEL_SIZE} by default), reduced so that neither image side exceeds
+     * {@code maxSize}, which itself can't exceed {@code BOARD_IMAGE_MAX_DIMENSION}. A reduced size is rounded
+     * down to whole pixels unless it's below 1. The grid is only drawn for whole sizes of at least
+     * {@link #MIN_GRID_CELL_SIZE} pixels.
+     *
+     * @throws IllegalArgumentException if the region doesn't overlap the board or the cell size isn't positive
+     */
+    public BoardViewModel resolveView(
+            int boardWidth,
+            int boardHeight,
+            Integer minX,
+            Integer maxX,
+            Integer minY,
+            Integer maxY,
+            Double cellSize,
+            boolean grid,
+            Integer maxSize
+    ) {
+        var boardMinX = (int) -Math.ceil(boardWidth/2.0) + 1;
+        var boardMaxX = (int) Math.floor(boardWidth/2.0);
+        var boardMinY = (int) -Math.ceil(boardHeight/2.0) + 1;
+        var boardMaxY = (int) Math.floor(boardHeight/2.0);
+        var viewMinX = minX != null ? Math.max(minX, boardMinX) : boardMinX;
+        var viewMaxX = maxX != null ? Math.min(maxX, boardMaxX) : boardMaxX;
+        var viewMinY = minY != null ? Math.max(minY, boardMinY) : boardMinY;
+        var viewMaxY = maxY != null ? Math.min(maxY, boardMaxY) : boardMaxY;
+        var emptyBoard = boardWidth == 0 || boardHeight == 0;
+        if (!emptyBoard && (viewMinX > viewMaxX || viewMinY > viewMaxY)) {
+            throw new IllegalArgumentException("The region doesn't overlap the board");
+        }
+        var requestedSize = cellSize != null ? cellSize : PIXEL_SIZE;
+        if (!(requestedSize > 0) || Double.isInfinite(requestedSize)) {
+            throw new IllegalArgumentException("Cell size must be a positive number");
+        }
+        var limit = maxSize != null ? Math.max(1, Math.min(maxSize, maxDimension)) : maxDimension;
+        var columns = viewMaxX - viewMinX + 1;
+        var rows = viewMaxY - viewMinY + 1;
+
+        var size = fitCellSize(requestedSize, columns, rows, grid ? limit - PADDING * 2 : limit);
+        if (grid && (size < MIN_GRID_CELL_SIZE || size != Math.floor(size))) {
+            grid = false;
+            size = fitCellSize(requestedSize, columns, rows, limit);
+        }
+        return new BoardViewModel(viewMinX, viewMaxX, viewMinY, viewMaxY, size, grid);
+    }
+
+    public int getImageWidth(BoardViewModel view) {
+        return getDrawSize(view.columns(), view.cellSize()) + (view.grid() ? PADDING * 2 : 0);
+    }
+
+    public int getImageHeight(BoardViewModel view) {
+        return getDrawSize(view.rows(), view.cellSize()) + (view.grid() ? PADDING * 2 : 0);
+    }
+
+    public String getSettingsError(ChatSettingsModel chatSettings) {
         if (chatSettings == null) {
-            return createErrorMessageImage("[!] Settings not found");
+            return "[!] Settings not found";
         }
         if (chatSettings.getBoardWidth() < 0 || chatSettings.getBoardHeight() < 0) {
-            return createErrorMessageImage("[!] Invalid board size");
+            return "[!] Invalid board size";
         }
+        return null;
+    }
 
-        var boardDrawLogs = boardDrawLogOrmService.getDrawLogsByPeerId(peerId);
-        var imageWidth = grid ? chatSettings.getBoardWidth() * PIXEL_SIZE + PADDING * 2
-                : chatSettings.getBoardWidth() * PIXEL_SIZE;
-        var imageHeight = grid ? chatSettings.getBoardHeight() * PIXEL_SIZE + PADDING * 2
-                : chatSettings.getBoardHeight() * PIXEL_SIZE;
+    /**
+     * Draws only the cells inside the view.
+     */
+    public BufferedImage renderBoardImage(BoardStateModel boardState, BoardViewModel view) {
+        var imageWidth = getImageWidth(view);
+        var imageHeight = getImageHeight(view);
         var image = new BufferedImage(imageWidth, imageHeight, BufferedImage.TYPE_INT_RGB);
 
-        var graphics = image.createGraphics();
-        graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-        graphics.setColor(Color.WHITE);
-        graphics.fillRect(0, 0, image.getWidth(), image.getHeight());
-        if (grid) {
-            var drawWidth = imageWidth - PADDING * 2;
-            var drawHeight = imageHeight - PADDING * 2;
-            var gridMinX = (int) -Math.ceil(chatSettings.getBoardWidth()/2.0) + 1;
-            var gridMaxX = (int) Math.floor(chatSettings.getBoardWidth()/2.0) + 1;
-            var gridMinY = (int) -Math.ceil(chatSettings.getBoardHeight()/2.0) + 1;
-            var gridMaxY = (int) Math.floor(chatSettings.getBoardHeight()/2.0) + 1;
-            drawFreePixelDots(
-                    graphics,
-                    PADDING,
-                    PADDING,
-                    drawWidth,
-                    drawHeight,
-                    gridMinX,
-                    gridMaxX,
-                    gridMinY,
-                    gridMaxY
-            );
-            drawAxisLabels(
-                    graphics,
-                    PADDING,
+        var pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        if (view.grid()) {
+            boardGridLayerService.copyGridLayer(
+                    view.minX(),
+                    view.maxX(),
+                    view.minY(),
+                    view.maxY(),
+                    (int) view.cellSize(),
                     PADDING,
-                    drawWidth,
-                    drawHeight,
-                    gridMinX,
-                    gridMaxX,
-                    gridMinY,
-                    gridMaxY
+                    pixels
             );
+        } else {
+            Arrays.fill(pixels, BACKGROUND_RGB);
         }
-        for (var boardDrawLog : boardDrawLogs) {
 
-            var transform = AffineTransform.getTranslateInstance(0, 0);
-            if (grid) {
-                transform.translate(PADDING, PADDING);
-            }
-            transform.scale(PIXEL_SIZE, PIXEL_SIZE);
-            graphics.setTransform(transform);
-            graphics.setColor(boardDrawLog.getColor());
-            graphics.fillRect(
-                    (int) (boardDrawLog.getX() + Math.ceil(chatSettings.getBoardWidth()/2.0) - 1),
-                    (int) (-boardDrawLog.getY() + Math.floor(chatSettings.getBoardHeight()/2.0)),
-                    1, 1
+        var offset = view.grid() ? PADDING : 0;
+        var columnFrom = view.minX() + (int) Math.ceil(boardState.getWidth()/2.0) - 1;
+        var rowFrom = -view.maxY() + (int) Math.floor(boardState.getHeight()/2.0);
+        if (view.cellSize() == Math.floor(view.cellSize())) {
+            BoardRasterWriter.writeCells(
+                    boardState.getColors(),
+                    boardState.getWidth(),
+                    columnFrom,
+                    rowFrom,
+                    view.columns(),
+                    view.rows(),
+                    pixels,
+                    imageWidth,
+                    offset,
+                    offset,
+                    (int) view.cellSize()
+            );
+        } else {
+            BoardRasterWriter.sampleCells(
+                    boardState.getColors(),
+                    boardState.getWidth(),
+                    columnFrom,
+                    rowFrom,
+                    view.columns(),
+                    view.rows(),
+                    pixels,
+                    imageWidth,
+                    offset,
+                    offset,
+                    imageWidth - offset * 2,
+                    imageHeight - offset * 2,
+                    view.cellSize()
             );
         }
-        graphics.dispose();
         return image;
     }
 
-    private void drawAxisLabels(
-            Graphics2D graphics,
-            double drawX,
-            double drawY,
-            double drawWidth,
-            double drawHeight,
-            int gridMinX,
-            int gridMaxX,
-            int gridMinY,
-            int gridMaxY
-    ) {
-        if (gridMinX >= gridMaxX || gridMinY >= gridMaxY) {
-            return;
-        }
-        var gridWidth = gridMaxX - gridMinX;
-        var gridHeight = gridMaxY - gridMinY;
-        graphics.setTransform(AffineTransform.getTranslateInstance(0, 0));
-
-        graphics.setFont(LABEL_FONT.deriveFont(24.0f));
-        var metrics = graphics.getFontMetrics();
-
-        graphics.setColor(new Color(0f, 0f, 0.5f, 0.2f));
-        for (int columnX = 0; columnX < gridWidth; columnX++) {
-            var x = gridMinX + columnX;
-            if (x % 5 != 0 || x == 0)
-                continue;
-            var text = String.valueOf(x);
-            if (x > 0)
-                text = "+" + text;
-            var textX = (float) (drawX + drawWidth * (columnX + 0.5)/gridWidth - metrics.stringWidth(text)/2.0);
-            var textY = (float) (drawY + drawHeight + metrics.getHeight() + 0.5);
-            graphics.drawString(text, textX, textY);
-        }
-        graphics.setColor(new Color(0.5f, 0f, 0f, 0.2f));
-        for (int rowY = 0; rowY < gridHeight; rowY++) {
-            var y = gridMinY + rowY;
-            if (y % 5 != 0 || y == 0)
-                continue;
-            var text = String.valueOf(y);
-            if (y > 0)
-                text = "+" + text;
-            var textX = (float) (drawX - metrics.stringWidth(text));
-            var textY = (float) (drawY + drawHeight - drawHeight * (rowY + 0.5)/gridHeight + metrics.getAscent()/2.5);
-            graphics.drawString(text, textX, textY);
-        }
-        graphics.setColor(new Color(0f, 0f, 0.6f, 0.4f));
-        var xTextY = (float) (drawY + drawHeight - drawHeight * (-gridMinY + 0.5)/gridHeight + metrics.getAscent()/2.5);
-        graphics.drawString(
-                "-X",
-                (float) (drawX - metrics.stringWidth("-X")),
-                xTextY
-        );
-        graphics.drawString(
-                "+X",
-                (float) (drawX + drawWidth),
-                xTextY
-        );
-        graphics.setColor(new Color(0.6f, 0f, 0f, 0.4f));
-        double yTextXBase = drawX + drawWidth * (-gridMinX + 0.5) / gridWidth;
-        graphics.drawString(
-                "-Y",
-                (float) (yTextXBase - metrics.stringWidth("-Y")/2.0),
-                (float) (drawY + drawHeight + metrics.getHeight())
-        );
-        graphics.drawString(
-                "+Y",
-                (float) (yTextXBase - metrics.stringWidth("+Y")/2.0),
-                (float) drawY
-        );
+    /**
+     * Whether the view's image is drawn in strips by {@link #writeBoardPng} instead of being held whole.
+     */
+    public boolean isStreamed(BoardViewModel view) {
+        return (long) getImageWidth(view) * getImageHeight(view) >= streamingMinPixels;
     }
 
-    private void drawFreePixelDots(
-            Graphics2D graphics,
-            double drawX,
-            double drawY,
-            double drawWidth,
-            double drawHeight,
-            int gridMinX,
-            int gridMaxX,
-            int gridMinY,
-            int gridMaxY
-    ) {
-        if (gridMinX >= gridMaxX || gridMinY >= gridMaxY) {
+    /**
+     * Writes the view of the board as a PNG. Images of at least {@code BOARD_IMAGE_STREAMING_MIN_PIXELS} pixels
+     * are never held whole: they are drawn {@link #STRIP_ROWS} pixel rows at a time, grid included, and every
+     * strip goes to the PNG writer before the next one is drawn, so memory depends on the image width only.
+     * Streamed images with a grid are truecolor, as the colors of the antialiased grid aren't known up front.
+     */
+    public void writeBoardPng(
+            BoardStateModel boardState,
+            BoardViewModel view,
+            OutputStream out,
+            int deflateLevel
+    ) throws IOException {
+        var imageWidth = getImageWidth(view);
+        var imageHeight = getImageHeight(view);
+        var peerId = boardState.getPeerId();
+        if (!isStreamed(view)) {
+            var startNanos = System.nanoTime();
+            var image = renderBoardImage(boardState, view);
+            startNanos += metricsService.record(MetricsService.Stage.RASTERIZE, peerId, startNanos);
+            PngEncoder.encode(image, out, deflateLevel);
+            metricsService.record(MetricsService.Stage.ENCODE, peerId, startNanos);
             return;
         }
-        var gridWidth = gridMaxX - gridMinX;
-        var gridHeight = gridMaxY - gridMinY;
-        var transform = AffineTransform.getTranslateInstance(drawX, drawY);
-        transform.scale(drawWidth/gridWidth, drawHeight/gridHeight);
-        graphics.setTransform(transform);
-
-        for (int columnX = 0; columnX < gridWidth; columnX++) {
-            var x = gridMinX + columnX;
-            for (int rowY = 0; rowY < gridHeight; rowY++) {
-                var y = gridMinY + rowY;
-                graphics.setColor(new Color(0f, 0f, 0f, 0.05f));
-                if (x == 0 && y == 0) {
-                    graphics.setColor(new Color(0.5f, 0f, 0.5f, 0.25f));
-                } else if (x == 0) {
-                    graphics.setColor(new Color(0.5f, 0f, 0f, 0.25f));
-                } else if (y == 0) {
-                    graphics.setColor(new Color(0f, 0f, 0.5f, 0.25f));
-                } else if (x % 5 == 0 || y % 5 == 0) {
-                    graphics.setColor(new Color(0f, 0f, 0f, 0.25f));
+
+        var offset = view.grid() ? PADDING : 0;
+        var drawWidth = imageWidth - offset * 2;
+        var drawHeight = imageHeight - offset * 2;
+        var colors = boardState.getColors();
+        var columnFrom = view.minX() + (int) Math.ceil(boardState.getWidth()/2.0) - 1;
+        var rowFrom = -view.maxY() + (int) Math.floor(boardState.getHeight()/2.0);
+        var wholeCells = view.cellSize() == Math.floor(view.cellSize());
+        var cellColumns = wholeCells
+                ? null
+                : BoardRasterWriter.mapCellColumns(columnFrom, view.columns(), drawWidth, view.cellSize());
+        var palette = view.grid()
+                ? null
+                : PngEncoder.collectCellPalette(
+                        colors,
+                        boardState.getWidth(),
+                        columnFrom,
+                        rowFrom,
+                        view.columns(),
+                        view.rows(),
+                        BACKGROUND_RGB
+                );
+
+        var writer = PngWriter.start(out, imageWidth, imageHeight, palette, deflateLevel);
+        var strip = new BufferedImage(imageWidth, Math.min(STRIP_ROWS, imageHeight), BufferedImage.TYPE_INT_RGB);
+        var pixels = ((DataBufferInt) strip.getRaster().getDataBuffer()).getData();
+        var rasterizeNanos = 0L;
+        var encodeNanos = 0L;
+        for (int stripY = 0; stripY < imageHeight; stripY += strip.getHeight()) {
+            var startNanos = System.nanoTime();
+            if (view.grid()) {
+                boardGridLayerService.drawGridStrip(
+                        view.minX(),
+                        view.maxX(),
+                        view.minY(),
+                        view.maxY(),
+                        (int) view.cellSize(),
+                        PADDING,
+                        stripY,
+                        strip
+                );
+            } else {
+                Arrays.fill(pixels, BACKGROUND_RGB);
+            }
+            var stripRows = Math.min(strip.getHeight(), imageHeight - stripY);
+            for (int line = 0; line < stripRows; line++) {
+                var drawY = stripY + line - offset;
+                if (drawY < 0 || drawY >= drawHeight) {
+                    continue;
+                }
+                var pixelOffset = line * imageWidth + offset;
+                if (wholeCells) {
+                    var row = rowFrom + drawY / (int) view.cellSize();
+                    BoardRasterWriter.writeCellRow(
+                            colors,
+                            row * boardState.getWidth() + columnFrom,
+                            view.columns(),
+                            pixels,
+                            pixelOffset,
+                            (int) view.cellSize()
+                    );
+                } else {
+                    var row = rowFrom + Math.min(view.rows() - 1, (int) (drawY / view.cellSize()));
+                    BoardRasterWriter.sampleCellRow(colors, row * boardState.getWidth(), cellColumns, pixels, pixelOffset);
                 }
-                graphics.fill(new Arc2D.Double(columnX + 0.4, gridHeight - rowY - 0.6, 0.2, 0.2, 0, 360, Arc2D.OPEN));
             }
+            var drawnNanos = System.nanoTime();
+            rasterizeNanos += drawnNanos - startNanos;
+            for (int line = 0; line < stripRows; line++) {
+                writer.writeRow(pixels, line * imageWidth);
+            }
+            encodeNanos += System.nanoTime() - drawnNanos;
         }
+        var startNanos = System.nanoTime();
+        writer.finish();
+        encodeNanos += System.nanoTime() - startNanos;
+        metricsService.recordNanos(MetricsService.Stage.RASTERIZE, peerId, rasterizeNanos);
+        metricsService.recordNanos(MetricsService.Stage.ENCODE, peerId, encodeNanos);
     }
 
-    private BufferedImage createErrorMessageImage(String message) {
+    public BufferedImage createErrorMessageImage(String message) {
         var image = new BufferedImage(250, 100, BufferedImage.TYPE_INT_RGB);
         var graphics = image.createGraphics();
         graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
@@ -218,4 +312,16 @@ public class BoardImageService {
         graphics.dispose();
         return image;
     }
+
+    private static double fitCellSize(double requestedSize, int columns, int rows, int limit) {
+        var fittingSize = Math.min((double) limit / columns, (double) limit / rows);
+        if (requestedSize <= fittingSize) {
+            return requestedSize;
+        }
+        return fittingSize >= 1 ? Math.floor(fittingSize) : fittingSize;
+    }
+
+    private static int getDrawSize(int cells, double cellSize) {
+        return cells > 0 ? Math.max(1, (int) (cells * cellSize)) : 0;
+    }
 }
@@ -0,0 +1,130 @@
+package space.davids_digital.vk_pixel_battle_bot.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import space.davids_digital.vk_pixel_battle_bot.archive.BoardArchiveWriter;
+import space.davids_digital.vk_pixel_battle_bot.archive.DrawLogTextWriter;
+import space.davids_digital.vk_pixel_battle_bot.archive.DrawLogWriter;
+import space.davids_digital.vk_pixel_battle_bot.model.ChatSettingsModel;
+import space.davids_digital.vk_pixel_battle_bot.orm.service.BoardDrawLogOrmService;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.time.ZoneId;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Exports a chat's whole draw log while it is read {@code BOARD_LOG_EXPORT_FETCH_SIZE} rows per query, so memory
+ * doesn't depend on the log's length and no database connection is held while the export waits for a slow
+ * client. At most {@code BOARD_LOG_EXPORT_MAX_CONCURRENT} exports are written at once; more are rejected.
+ */
+@Service
+public class BoardLogExportService {
+    private final BoardDrawLogOrmService boardDrawLogOrmService;
+    private final BoardPixelService boardPixelService;
+    private final MetricsService metricsService;
+    private final int fetchSize;
+    private final Semaphore exports;
+
+    public BoardLogExportService(
+            BoardDrawLogOrmService boardDrawLogOrmService,
+            BoardPixelService boardPixelService,
+            MetricsService metricsService,
+            @Value("${BOARD_LOG_EXPORT_FETCH_SIZE:1000}") int fetchSize,
+            @Value("${BOARD_LOG_EXPORT_MAX_CONCURRENT:4}") int maxConcurrent
+    ) {
+        this.boardDrawLogOrmService = boardDrawLogOrmService;
+        this.boardPixelService = boardPixelService;
+        this.metricsService = metricsService;
+        this.fetchSize = fetchSize;
+        this.exports = new Semaphore(maxConcurrent);
+    }
+
+    /**
+     * Writes the export to the stream {@code target} opens, which is opened only once the export is accepted.
+     * Pixels buffered in {@code write_behind} mode are flushed first.
+     *
+     * @throws RejectedExecutionException if too many exports are being written
+     */
+    public void writeLog(ChatSettingsModel chatSettings, Format format, ExportTarget target) throws IOException {
+        if (!exports.tryAcquire()) {
+            throw new RejectedExecutionException("Too many draw logs are being exported");
+        }
+        try {
+            boardPixelService.flush(chatSettings.getPeerId());
+            writeLog(chatSettings, format, target.open());
+        } finally {
+            exports.release();
+        }
+    }
+
+    private void writeLog(ChatSettingsModel chatSettings, Format format, OutputStream out) throws IOException {
+        var writer = switch (format) {
+            case NDJSON -> DrawLogTextWriter.ndjson(out);
+            case CSV -> DrawLogTextWriter.csv(out);
+            case BINARY -> new BoardArchiveWriter(
+                    out,
+                    chatSettings.getPeerId(),
+                    chatSettings.getLastStartTime() == null ? 0 : chatSettings.getLastStartTime()
+                            .atZone(ZoneId.systemDefault())
+                            .toInstant()
+                            .toEpochMilli(),
+                    chatSettings.getBoardWidth(),
+                    chatSettings.getBoardHeight()
+            );
+        };
+        writeLog(chatSettings.getPeerId(), writer);
+    }
+
+    private void writeLog(long peerId, DrawLogWriter writer) throws IOException {
+        var rows = new long[1];
+        try {
+            boardDrawLogOrmService.forEachDrawLogInBatches(peerId, fetchSize, (orderId, userId, time, x, y, colorRgb) -> {
+                try {
+                    writer.add(orderId, userId, time, x, y, colorRgb);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                rows[0]++;
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            metricsService.increment(MetricsService.Counter.LOG_EXPORT_ROWS, peerId, rows[0]);
+        }
+        writer.finish();
+    }
+
+    @FunctionalInterface
+    public interface ExportTarget {
+        OutputStream open() throws IOException;
+    }
+
+    /**
+     * Times are epoch millis in every format. {@link #BINARY} is the board archive format, which the archive
+     * endpoints and {@code BoardArchiveReader} read.
+     */
+    public enum Format {
+        NDJSON("application/x-ndjson", "ndjson"),
+        CSV("text/csv", "csv"),
+        BINARY("application/octet-stream", "pba");
+
+        private final String contentType;
+        private final String extension;
+
+        Format(String contentType, String extension) {
+            this.contentType = contentType;
+            this.extension = extension;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        public String getExtension() {
+            return extension;
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package space.davids_digital.vk_pixel_battle_bot.service;
+
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import space.davids_digital.vk_pixel_battle_bot.model.BoardDrawLogModel;
+import space.davids_digital.vk_pixel_battle_bot.model.ChatSettingsModel;
+import space.davids_digital.vk_pixel_battle_bot.orm.service.BoardDrawLogOrmService;
+
+import java.awt.*;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Accepts pixels drawn through the backend, applies them to the in-memory board and stores them
+ * in board_draw_log. {@code BOARD_WRITE_MODE} selects how rows get to the database:
+ * <ul>
+ *     <li>{@code sync} (default): the row is inserted before the pixel is applied and the response is sent,
+ *     so an acknowledged pixel is durable and its order_id comes from the database.</li>
+ *     <li>{@code write_behind}: order_ids are reserved from the board_draw_log sequence in blocks, so pixels
+ *     are still ordered by the time they were accepted, and the next block is reserved in the background once
+ *     half of the current one is used. Rows are buffered and inserted in JDBC batches once
+ *     {@code BOARD_WRITE_BATCH_SIZE} rows are pending or every {@code BOARD_WRITE_FLUSH_INTERVAL_MS}.
+ *     Pixels accepted during the last interval are lost if the process dies, and failed batches are retried
+ *     until {@code BOARD_WRITE_MAX_PENDING} rows are pending, after which new pixels are rejected.
+ *     Rows inserted into board_draw_log directly, bypassing this service, may be missed by the in-memory
+ *     boards in this mode, since they can get an order_id below an already reserved one. Heatmaps,
+ *     timelapses, log exports and archives flush the chat's pending rows before they read the log.</li>
+ * </ul>
+ */
+@Service
+public class BoardPixelService {
+    private static final Logger log = LoggerFactory.getLogger(BoardPixelService.class);
+
+    private final BoardDrawLogOrmService boardDrawLogOrmService;
+    private final BoardStateService boardStateService;
+    private final boolean writeBehind;
+    private final int batchSize;
+    private final int maxPending;
+    private final ScheduledExecutorService flushExecutor;
+    private final Object flushLock = new Object();
+    // Held while rows are inserted, so a flush returns only after rows taken by an earlier one are written too
+    private final Object writeLock = new Object();
+    private List<BoardDrawLogModel> pending = new ArrayList<>();
+    private int[] reservedOrderIds = new int[0];
+    private int reservedOrderIdsUsed = 0;
+    private CompletableFuture<int[]> nextReservedOrderIds;
+
+    public BoardPixelService(
+            BoardDrawLogOrmService boardDrawLogOrmService,
+            BoardStateService boardStateService,
+            @Value("${BOARD_WRITE_MODE:sync}") String writeMode,
+            @Value("${BOARD_WRITE_BATCH_SIZE:100}") int batchSize,
+            @Value("${BOARD_WRITE_FLUSH_INTERVAL_MS:1000}") long flushIntervalMs,
+            @Value("${BOARD_WRITE_MAX_PENDING:100000}") int maxPending
+    ) {
+        this.boardDrawLogOrmService = boardDrawLogOrmService;
+        this.boardStateService = boardStateService;
+        this.writeBehind = switch (writeMode) {
+            case "sync" -> false;
+            case "write_behind" -> true;
+            default -> throw new IllegalArgumentException("Unknown BOARD_WRITE_MODE: " + writeMode);
+        };
+        this.batchSize = batchSize;
+        this.maxPending = maxPending;
+        if (writeBehind) {
+            flushExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                var thread = new Thread(runnable, "board-draw-log-flush");
+                thread.setDaemon(true);
+                return thread;
+            });
+            flushExecutor.scheduleWithFixedDelay(
+                    this::flushQuietly,
+                    flushIntervalMs,
+                    flushIntervalMs,
+                    TimeUnit.MILLISECONDS
+            );
+        } else {
+            flushExecutor = null;
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if the point is outside the board
+     * @throws IllegalStateException if the battle isn't running or too many rows wait to be written
+     */
+    public BoardDrawLogModel drawPixel(ChatSettingsModel chatSettings, long userId, long x, long y, int colorRgb) {
+        if (!chatSettings.isPixelBattleStarted()) {
+            throw new IllegalStateException("Battle is not started");
+        }
+        if (BoardState.cellIndex(chatSettings.getBoardWidth(), chatSettings.getBoardHeight(), x, y) < 0) {
+            throw new IllegalArgumentException("Pixel (" + x + ", " + y + ") is outside the board");
+        }
+        var rgb = colorRgb & 0xFFFFFF;
+        if (!writeBehind) {
+            return boardStateService.draw(
+                    chatSettings,
+                    () -> boardDrawLogOrmService.addDrawLog(chatSettings.getPeerId(), userId, x, y, rgb)
+            );
+        }
+        return boardStateService.draw(chatSettings, () -> {
+            synchronized (flushLock) {
+                if (pending.size() >= maxPending) {
+                    throw new IllegalStateException("Too many pixels are waiting to be written");
+                }
+                var drawLog = new BoardDrawLogModel(
+                        chatSettings.getPeerId(),
+                        userId,
+                        nextReservedOrderId(),
+                        LocalDateTime.now(),
+                        x,
+                        y,
+                        new Color(rgb)
+                );
+                pending.add(drawLog);
+                if (pending.size() >= batchSize) {
+                    flushExecutor.execute(this::flushQuietly);
+                }
+                return drawLog;
+            }
+        });
+    }
+
+    /**
+     * Writes the chat's pending rows, and waits for a batch that is being written. Pixels accepted meanwhile
+     * are left pending, so the caller holds the board's lock if it needs every accepted pixel in the log.
+     * Does nothing in {@code sync} mode.
+     */
+    public void flush(long peerId) {
+        if (!writeBehind) {
+            return;
+        }
+        synchronized (writeLock) {
+            var batch = new ArrayList<BoardDrawLogModel>();
+            synchronized (flushLock) {
+                var rest = new ArrayList<BoardDrawLogModel>(pending.size());
+                for (var drawLog : pending) {
+                    (drawLog.getPeerId() == peerId ? batch : rest).add(drawLog);
+                }
+                pending = rest;
+            }
+            write(batch);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (flushExecutor != null) {
+            flushExecutor.shutdown();
+            flush();
+        }
+    }
+
+    /**
+     * Called with the board's lock and flushLock held, so the database is only queried here when the block
+     * reserved in the background isn't ready yet.
+     */
+    private int nextReservedOrderId() {
+        if (reservedOrderIdsUsed == reservedOrderIds.length) {
+            var next = nextReservedOrderIds;
+            nextReservedOrderIds = null;
+            reservedOrderIds = next != null ? next.join() : boardDrawLogOrmService.reserveOrderIds(batchSize);
+            reservedOrderIdsUsed = 0;
+        }
+        if (nextReservedOrderIds == null && reservedOrderIdsUsed >= reservedOrderIds.length / 2) {
+            nextReservedOrderIds = CompletableFuture.supplyAsync(
+                    () -> boardDrawLogOrmService.reserveOrderIds(batchSize),
+                    flushExecutor
+            );
+        }
+        return reservedOrderIds[reservedOrderIdsUsed++];
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (Exception e) {
+            log.error("Can't write draw logs, will retry", e);
+        }
+    }
+
+    private void flush() {
+        synchronized (writeLock) {
+            List<BoardDrawLogModel> batch;
+            synchronized (flushLock) {
+                if (pending.isEmpty()) {
+                    return;
+                }
+                batch = pending;
+                pending = new ArrayList<>();
+            }
+            write(batch);
+        }
+    }
+
+    private void write(List<BoardDrawLogModel> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            boardDrawLogOrmService.addDrawLogs(batch);
+        } catch (RuntimeException e) {
+            synchronized (flushLock) {
+                batch.addAll(pending);
+                pending = batch;
+            }
+            throw e;
+        }
+    }
+}
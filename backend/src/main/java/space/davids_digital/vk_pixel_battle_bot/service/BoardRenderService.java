@@ -0,0 +1,285 @@
+package space.davids_digital.vk_pixel_battle_bot.service;
+
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import space.davids_digital.vk_pixel_battle_bot.model.BoardImageKey;
+import space.davids_digital.vk_pixel_battle_bot.model.BoardStateModel;
+import space.davids_digital.vk_pixel_battle_bot.model.BoardViewModel;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Renders and encodes board PNGs on a pool of {@code BOARD_RENDER_THREADS} threads (one per CPU by default)
+ * instead of request threads, so a burst of requests can't run more renders at once than there are cores.
+ * At most {@code BOARD_RENDER_QUEUE_SIZE} renders wait for a thread; more are rejected. Requests for an
+ * image that is already being rendered wait for that render instead of starting their own.
+ * <p>
+ * Rendered PNGs are kept in the memory cache and in the disk cache, which is looked up before rendering. The
+ * board is only asked for once a PNG has to be rendered, so a cached one is served without copying the board's
+ * cells. If the board was drawn on after the key was taken, the PNG shows the newer board under the older key,
+ * which no later request asks for.
+ * <p>
+ * Images {@link BoardImageService#isStreamed streamed} in strips are neither coalesced nor cached: the request
+ * thread draws them straight to the response, so memory stays proportional to their width. At most
+ * {@code BOARD_RENDER_THREADS} of them are written at once; more are rejected.
+ */
+@Service
+public class BoardRenderService {
+    private final BoardImageService boardImageService;
+    private final BoardImageCacheService boardImageCacheService;
+    private final BoardDiskCacheService boardDiskCacheService;
+    private final MetricsService metricsService;
+    private final ThreadPoolExecutor renderExecutor;
+    private final Semaphore streamedRenders;
+    private final Map<BoardImageKey, CompletableFuture<byte[]>> inFlight = new ConcurrentHashMap<>();
+
+    public BoardRenderService(
+            BoardImageService boardImageService,
+            BoardImageCacheService boardImageCacheService,
+            BoardDiskCacheService boardDiskCacheService,
+            MetricsService metricsService,
+            @Value("${BOARD_RENDER_THREADS:0}") int threads,
+            @Value("${BOARD_RENDER_QUEUE_SIZE:64}") int queueSize
+    ) {
+        this.boardImageService = boardImageService;
+        this.boardImageCacheService = boardImageCacheService;
+        this.boardDiskCacheService = boardDiskCacheService;
+        this.metricsService = metricsService;
+        var poolSize = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        this.streamedRenders = new Semaphore(poolSize);
+        var threadNumber = new AtomicInteger();
+        this.renderExecutor = new ThreadPoolExecutor(
+                poolSize,
+                poolSize,
+                0,
+                TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueSize)),
+                runnable -> {
+                    var thread = new Thread(runnable, "board-render-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+        );
+        metricsService.registerGauge(
+                "board_render_queue_size",
+                "Renders waiting for a render thread",
+                () -> renderExecutor.getQueue().size()
+        );
+        metricsService.registerGauge(
+                "board_render_active_threads",
+                "Render threads that are rendering",
+                renderExecutor::getActiveCount
+        );
+    }
+
+    /**
+     * Writes the board PNG to the channel {@code target} opens. A PNG from the disk cache is read from the mapped
+     * file into the channel in small chunks, so it's never held whole on the heap, but it is copied: the
+     * response's channel wraps a servlet stream, and the cache's regions can be reused once the lease is closed,
+     * so they can't be handed to Tomcat's sendfile, which runs after the request returns.
+     *
+     * @throws RejectedExecutionException if too many renders are already waiting
+     */
+    public void writeBoardPng(
+            Supplier<BoardStateModel> boardState,
+            BoardViewModel view,
+            BoardImageKey key,
+            int deflateLevel,
+            PngTarget target
+    ) throws IOException {
+        var png = boardImageCacheService.get(key);
+        if (png == null) {
+            try (var cached = boardDiskCacheService.openBoardPng(key)) {
+                if (cached != null) {
+                    write(cached.buffer(), target.open(cached.size()));
+                    return;
+                }
+            }
+            if (boardImageService.isStreamed(view)) {
+                renderStreamed(boardState, view, key, deflateLevel, target);
+                return;
+            }
+            png = renderCoalesced(boardState, view, key, deflateLevel);
+        } else {
+            metricsService.increment(MetricsService.Counter.IMAGE_CACHE_HITS);
+        }
+        write(ByteBuffer.wrap(png), target.open(png.length));
+    }
+
+    /**
+     * Returns the board PNG from the memory or the disk cache, or renders it and puts it in both.
+     *
+     * @throws RejectedExecutionException if too many renders are already waiting
+     */
+    public byte[] getBoardPng(
+            Supplier<BoardStateModel> boardState,
+            BoardViewModel view,
+            BoardImageKey key,
+            int deflateLevel
+    ) {
+        var png = boardImageCacheService.get(key);
+        if (png != null) {
+            metricsService.increment(MetricsService.Counter.IMAGE_CACHE_HITS);
+            return png;
+        }
+        try (var cached = boardDiskCacheService.openBoardPng(key)) {
+            if (cached != null) {
+                png = new byte[cached.size()];
+                cached.buffer().get(png);
+                boardImageCacheService.put(key, png);
+                return png;
+            }
+        }
+        return renderCoalesced(boardState, view, key, deflateLevel);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        renderExecutor.shutdown();
+    }
+
+    private static void write(ByteBuffer png, WritableByteChannel channel) throws IOException {
+        while (png.hasRemaining()) {
+            channel.write(png);
+        }
+    }
+
+    private void renderStreamed(
+            Supplier<BoardStateModel> boardState,
+            BoardViewModel view,
+            BoardImageKey key,
+            int deflateLevel,
+            PngTarget target
+    ) throws IOException {
+        if (!streamedRenders.tryAcquire()) {
+            metricsService.increment(MetricsService.Counter.RENDERS_REJECTED);
+            throw new RejectedExecutionException("Too many board images are being rendered");
+        }
+        try {
+            var board = boardState.get();
+            var startNanos = System.nanoTime();
+            boardImageService.writeBoardPng(board, view, Channels.newOutputStream(target.open(-1)), deflateLevel);
+            metricsService.record(MetricsService.Stage.RENDER, key.peerId(), startNanos);
+            metricsService.increment(MetricsService.Counter.IMAGES_RENDERED, key.peerId(), 1);
+        } finally {
+            streamedRenders.release();
+        }
+    }
+
+    /**
+     * Renders the PNG on a render thread, or waits for the render of the same image if one is running.
+     */
+    private byte[] renderCoalesced(
+            Supplier<BoardStateModel> boardState,
+            BoardViewModel view,
+            BoardImageKey key,
+            int deflateLevel
+    ) {
+        var render = new CompletableFuture<byte[]>();
+        var existing = inFlight.putIfAbsent(key, render);
+        if (existing == null) {
+            BoardStateModel board;
+            try {
+                board = boardState.get();
+            } catch (RuntimeException e) {
+                inFlight.remove(key, render);
+                render.completeExceptionally(e);
+                throw e;
+            }
+            var queuedNanos = System.nanoTime();
+            try {
+                renderExecutor.execute(() -> {
+                    metricsService.record(MetricsService.Stage.RENDER_QUEUE, key.peerId(), queuedNanos);
+                    render(board, view, key, deflateLevel, render);
+                });
+            } catch (RejectedExecutionException e) {
+                metricsService.increment(MetricsService.Counter.RENDERS_REJECTED);
+                inFlight.remove(key, render);
+                render.completeExceptionally(e);
+                throw e;
+            }
+            existing = render;
+        } else {
+            metricsService.increment(MetricsService.Counter.RENDERS_COALESCED);
+        }
+        try {
+            return existing.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            if (e.getCause() instanceof Error cause) {
+                throw cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Leaves {@code inFlight} before completing, so the map only ever holds renders that are still running.
+     */
+    private void render(
+            BoardStateModel boardState,
+            BoardViewModel view,
+            BoardImageKey key,
+            int deflateLevel,
+            CompletableFuture<byte[]> render
+    ) {
+        byte[] png;
+        try {
+            var startNanos = System.nanoTime();
+            var allocatedBefore = metricsService.getAllocatedBytes();
+            var stream = new ByteArrayOutputStream();
+            boardImageService.writeBoardPng(boardState, view, stream, deflateLevel);
+            png = stream.toByteArray();
+            var allocatedAfter = metricsService.getAllocatedBytes();
+            metricsService.record(MetricsService.Stage.RENDER, key.peerId(), startNanos);
+            metricsService.increment(MetricsService.Counter.IMAGES_RENDERED, key.peerId(), 1);
+            metricsService.increment(MetricsService.Counter.IMAGE_BYTES, key.peerId(), png.length);
+            if (allocatedBefore >= 0 && allocatedAfter >= 0) {
+                metricsService.increment(
+                        MetricsService.Counter.RENDER_ALLOCATED_BYTES,
+                        key.peerId(),
+                        allocatedAfter - allocatedBefore
+                );
+            }
+            boardImageCacheService.put(key, png);
+        } catch (IOException e) {
+            inFlight.remove(key, render);
+            render.completeExceptionally(new UncheckedIOException(e));
+            return;
+        } catch (Throwable e) {
+            inFlight.remove(key, render);
+            render.completeExceptionally(e);
+            return;
+        }
+        inFlight.remove(key, render);
+        render.complete(png);
+        boardDiskCacheService.putBoardPng(key, png);
+    }
+
+    @FunctionalInterface
+    public interface PngTarget {
+        /**
+         * Returns the channel to write a PNG of {@code length} bytes to, or of an unknown length if it's -1.
+         */
+        WritableByteChannel open(int length) throws IOException;
+    }
+}
@@ -0,0 +1,418 @@
+package space.davids_digital.vk_pixel_battle_bot.service;
+
+import space.davids_digital.vk_pixel_battle_bot.model.BoardSnapshotModel;
+import space.davids_digital.vk_pixel_battle_bot.model.BoardStateModel;
+import space.davids_digital.vk_pixel_battle_bot.model.ChatSettingsModel;
+import space.davids_digital.vk_pixel_battle_bot.model.DrawLogBatch;
+import space.davids_digital.vk_pixel_battle_bot.util.LongLongHashMap;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Objects;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+class BoardState {
+    private static final int SNAPSHOT_VERSION = 1;
+
+    private final long peerId;
+    private final int width;
+    private final int height;
+    private final LocalDateTime startTime;
+    private final int[] colors;
+    private final int[] cellOrderIds;
+    private final BitSet paintedCells;
+    private final long[] cellOwners;
+    private final LongLongHashMap lastDrawTimes = new LongLongHashMap();
+    private final LongLongHashMap drawCounts = new LongLongHashMap();
+    private final LongLongHashMap ownedCellCounts = new LongLongHashMap();
+    private int paintedCellCount = 0;
+    private long totalDrawCount = 0;
+    private long drawsSinceSnapshot = 0;
+    private int lastOrderId = 0;
+    // The highest order_id read from the log, which refreshes read after. It stays behind the backend's own
+    // draws, since other writers may still commit rows with lower order_ids
+    private int logOrderId = 0;
+    // order_ids of the backend's own draws that haven't been read back from the log yet, ascending
+    private int[] ownOrderIds = new int[16];
+    private int ownOrderIdsStart = 0;
+    private int ownOrderIdsEnd = 0;
+    private long checkedNanos;
+    private boolean loaded = false;
+
+    BoardState(ChatSettingsModel chatSettings) {
+        this.peerId = chatSettings.getPeerId();
+        this.width = chatSettings.getBoardWidth();
+        this.height = chatSettings.getBoardHeight();
+        this.startTime = chatSettings.getLastStartTime();
+        this.colors = new int[width * height];
+        this.cellOrderIds = new int[width * height];
+        this.cellOwners = new long[width * height];
+        this.paintedCells = new BitSet(width * height);
+        Arrays.fill(colors, BoardStateModel.EMPTY);
+    }
+
+    /**
+     * Converts the bot's centered coordinates into an index in the cell arrays, or returns -1 if the
+     * point is outside the board.
+     */
+    static int cellIndex(int width, int height, long x, long y) {
+        var column = x + (long) Math.ceil(width/2.0) - 1;
+        var row = -y + (long) Math.floor(height/2.0);
+        if (column < 0 || column >= width || row < 0 || row >= height) {
+            return -1;
+        }
+        return (int) row * width + (int) column;
+    }
+
+    /**
+     * The bot clears the draw log and saves a new start time when a battle restarts,
+     * so a state built for another battle or board size can't be updated incrementally.
+     */
+    boolean matches(ChatSettingsModel chatSettings) {
+        return width == chatSettings.getBoardWidth()
+                && height == chatSettings.getBoardHeight()
+                && Objects.equals(startTime, chatSettings.getLastStartTime());
+    }
+
+    long getPeerId() {
+        return peerId;
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    int getLastOrderId() {
+        return lastOrderId;
+    }
+
+    int getLogOrderId() {
+        return logOrderId;
+    }
+
+    /**
+     * Whether every draw the backend applied itself has been read back from the log, so the state holds
+     * nothing past {@link #getLogOrderId()}.
+     */
+    boolean isCaughtUp() {
+        return ownOrderIdsStart == ownOrderIdsEnd;
+    }
+
+    /**
+     * The {@code System.nanoTime()} of when the state was last brought up to date with the log.
+     */
+    long getCheckedNanos() {
+        return checkedNanos;
+    }
+
+    void setCheckedNanos(long checkedNanos) {
+        this.checkedNanos = checkedNanos;
+    }
+
+    boolean isLoaded() {
+        return loaded;
+    }
+
+    void setLoaded(boolean loaded) {
+        this.loaded = loaded;
+    }
+
+    int getCellCount() {
+        return width * height;
+    }
+
+    int getPaintedCellCount() {
+        return paintedCellCount;
+    }
+
+    /**
+     * Returns the epoch millis of the user's last draw, or -1 if they haven't drawn in this battle.
+     */
+    long getLastDrawTime(long userId) {
+        return lastDrawTimes.get(userId, -1);
+    }
+
+    long getTotalDrawCount() {
+        return totalDrawCount;
+    }
+
+    /**
+     * Counts the draws applied since the state was restored from a snapshot or last captured into one.
+     */
+    long getDrawsSinceSnapshot() {
+        return drawsSinceSnapshot;
+    }
+
+    /**
+     * Passes every user who has drawn with their draw count and the number of cells that currently show their color.
+     */
+    void forEachUserStats(UserStatsConsumer consumer) {
+        drawCounts.forEach((userId, drawCount) -> consumer.accept(userId, drawCount, ownedCellCounts.get(userId, 0)));
+    }
+
+    /**
+     * Adds what the log already held for a user when the state is built: how many times they drew and when they last did.
+     */
+    void applyUserSummary(long userId, long drawCount, long lastDrawTime) {
+        drawCounts.addTo(userId, drawCount);
+        totalDrawCount += drawCount;
+        drawsSinceSnapshot += drawCount;
+        applyLastDrawTime(userId, lastDrawTime);
+    }
+
+    private void applyLastDrawTime(long userId, long epochMillis) {
+        if (epochMillis > lastDrawTimes.get(userId, Long.MIN_VALUE)) {
+            lastDrawTimes.put(userId, epochMillis);
+        }
+    }
+
+    /**
+     * Applies rows read from the log after {@link #getLogOrderId()} in order_id order, skipping the backend's
+     * own draws that were already applied with {@link #applyOwn}. Returns the rows that were applied.
+     */
+    DrawLogBatch applyFromLog(DrawLogBatch drawLogs) {
+        var applied = drawLogs;
+        for (int i = 0; i < drawLogs.size(); i++) {
+            var orderId = drawLogs.getOrderId(i);
+            // An own draw below a row that was read wasn't committed yet, and won't be read once it is
+            while (ownOrderIdsStart < ownOrderIdsEnd && ownOrderIds[ownOrderIdsStart] < orderId) {
+                ownOrderIdsStart++;
+            }
+            if (ownOrderIdsStart < ownOrderIdsEnd && ownOrderIds[ownOrderIdsStart] == orderId) {
+                ownOrderIdsStart++;
+                if (applied == drawLogs) {
+                    applied = new DrawLogBatch(drawLogs.size() - 1);
+                    for (int j = 0; j < i; j++) {
+                        copyRow(drawLogs, j, applied);
+                    }
+                }
+            } else if (applied != drawLogs) {
+                copyRow(drawLogs, i, applied);
+            }
+        }
+        if (!drawLogs.isEmpty()) {
+            logOrderId = Math.max(logOrderId, drawLogs.getOrderId(drawLogs.size() - 1));
+        }
+        apply(applied);
+        return applied;
+    }
+
+    /**
+     * Applies the backend's own draw, whose order_id it assigned itself. The log stays read only up to
+     * {@link #getLogOrderId()}, so a row another writer commits later with a lower order_id isn't skipped.
+     */
+    void applyOwn(DrawLogBatch drawLogs) {
+        for (int i = 0; i < drawLogs.size(); i++) {
+            if (ownOrderIdsEnd == ownOrderIds.length) {
+                var count = ownOrderIdsEnd - ownOrderIdsStart;
+                var target = count * 2 > ownOrderIds.length ? new int[ownOrderIds.length * 2] : ownOrderIds;
+                System.arraycopy(ownOrderIds, ownOrderIdsStart, target, 0, count);
+                ownOrderIds = target;
+                ownOrderIdsStart = 0;
+                ownOrderIdsEnd = count;
+            }
+            ownOrderIds[ownOrderIdsEnd++] = drawLogs.getOrderId(i);
+        }
+        apply(drawLogs);
+    }
+
+    private static void copyRow(DrawLogBatch from, int i, DrawLogBatch to) {
+        to.add(from.getOrderId(i), from.getUserId(i), from.getTime(i), from.getX(i), from.getY(i), from.getColorRgb(i));
+    }
+
+    /**
+     * Each row must be applied once, as it also counts towards the user's stats.
+     */
+    private void apply(DrawLogBatch drawLogs) {
+        for (int i = 0; i < drawLogs.size(); i++) {
+            var userId = drawLogs.getUserId(i);
+            apply(drawLogs.getX(i), drawLogs.getY(i), drawLogs.getColorRgb(i), drawLogs.getOrderId(i), userId);
+            drawCounts.addTo(userId, 1);
+            applyLastDrawTime(userId, drawLogs.getTime(i));
+        }
+        totalDrawCount += drawLogs.size();
+        drawsSinceSnapshot += drawLogs.size();
+    }
+
+    /**
+     * Applies the latest draw of every cell, which only sets their colors and owners.
+     */
+    void applyLatestPixels(DrawLogBatch pixels) {
+        for (int i = 0; i < pixels.size(); i++) {
+            apply(pixels.getX(i), pixels.getY(i), pixels.getColorRgb(i), pixels.getOrderId(i), pixels.getUserId(i));
+        }
+        logOrderId = Math.max(logOrderId, lastOrderId);
+    }
+
+    /**
+     * Rows aren't guaranteed to arrive in order_id order, so a cell only takes a color and an owner
+     * from a draw newer than the one it already shows.
+     */
+    private void apply(long x, long y, int colorRgb, int orderId, long userId) {
+        lastOrderId = Math.max(lastOrderId, orderId);
+        var index = cellIndex(width, height, x, y);
+        if (index < 0) {
+            return;
+        }
+        if (!paintedCells.get(index)) {
+            paintedCells.set(index);
+            paintedCellCount++;
+        } else if (orderId >= cellOrderIds[index]) {
+            ownedCellCounts.addTo(cellOwners[index], -1);
+        } else {
+            return;
+        }
+        colors[index] = colorRgb & 0xFFFFFF;
+        cellOrderIds[index] = orderId;
+        cellOwners[index] = userId;
+        ownedCellCounts.addTo(userId, 1);
+    }
+
+    /**
+     * Passes every cell whose color comes from a draw newer than {@code orderId}, in the bot's coordinates.
+     */
+    void forEachCellDrawnAfter(int orderId, CellConsumer consumer) {
+        var columnOffset = (long) Math.ceil(width/2.0) - 1;
+        var rowOffset = (long) Math.floor(height/2.0);
+        for (int i = paintedCells.nextSetBit(0); i >= 0; i = paintedCells.nextSetBit(i + 1)) {
+            if (cellOrderIds[i] > orderId) {
+                consumer.accept(i % width - columnOffset, rowOffset - i / width, colors[i], cellOrderIds[i]);
+            }
+        }
+    }
+
+    /**
+     * Serializes everything a rebuild needs up to {@link #getLastOrderId()}: painted cells with their color,
+     * order_id and owner, and every user's draw count and last draw time. Only a state that
+     * {@link #isCaughtUp() is caught up} matches the log up to that order_id. The result is uncompressed, so the
+     * caller can hold the state's lock only for the copy and compress it with {@link #compressSnapshot} later.
+     */
+    BoardSnapshotModel captureSnapshot() {
+        var buffer = ByteBuffer.allocate(32 + paintedCellCount * 20 + drawCounts.size() * 24);
+        buffer.putInt(SNAPSHOT_VERSION);
+        buffer.putInt(width);
+        buffer.putInt(height);
+        buffer.putInt(lastOrderId);
+        buffer.putLong(totalDrawCount);
+        buffer.putInt(paintedCellCount);
+        for (int i = paintedCells.nextSetBit(0); i >= 0; i = paintedCells.nextSetBit(i + 1)) {
+            buffer.putInt(i);
+            buffer.putInt(colors[i]);
+            buffer.putInt(cellOrderIds[i]);
+            buffer.putLong(cellOwners[i]);
+        }
+        buffer.putInt(drawCounts.size());
+        drawCounts.forEach((userId, drawCount) -> {
+            buffer.putLong(userId);
+            buffer.putLong(drawCount);
+            buffer.putLong(lastDrawTimes.get(userId, -1));
+        });
+        drawsSinceSnapshot = 0;
+        return new BoardSnapshotModel(peerId, startTime, width, height, lastOrderId, buffer.array());
+    }
+
+    static BoardSnapshotModel compressSnapshot(BoardSnapshotModel snapshot) {
+        var data = snapshot.data();
+        var out = new ByteArrayOutputStream(data.length / 4 + 64);
+        var deflater = new Deflater(Deflater.BEST_SPEED);
+        try (var deflaterOut = new DeflaterOutputStream(out, deflater)) {
+            deflaterOut.write(data);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            deflater.end();
+        }
+        return new BoardSnapshotModel(
+                snapshot.peerId(),
+                snapshot.startTime(),
+                snapshot.width(),
+                snapshot.height(),
+                snapshot.orderId(),
+                out.toByteArray()
+        );
+    }
+
+    /**
+     * Loads a compressed snapshot into a state nothing has been applied to yet. The snapshot is checked
+     * before anything is changed, so the state stays empty if it's rejected.
+     *
+     * @throws IllegalArgumentException if the snapshot was taken of a board of another size or is corrupted
+     */
+    void restoreSnapshot(byte[] compressedSnapshot) {
+        ByteBuffer buffer;
+        try (var in = new InflaterInputStream(new ByteArrayInputStream(compressedSnapshot))) {
+            buffer = ByteBuffer.wrap(in.readAllBytes());
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Snapshot is corrupted", e);
+        }
+        if (buffer.remaining() < 32
+                || buffer.getInt(0) != SNAPSHOT_VERSION
+                || buffer.getInt(4) != width
+                || buffer.getInt(8) != height) {
+            throw new IllegalArgumentException("Snapshot doesn't match the board");
+        }
+        var cellCount = buffer.getInt(24);
+        var usersOffset = 28 + (long) cellCount * 20;
+        if (cellCount < 0
+                || cellCount > colors.length
+                || usersOffset + 4 > buffer.limit()
+                || usersOffset + 4 + buffer.getInt((int) usersOffset) * 24L != buffer.limit()) {
+            throw new IllegalArgumentException("Snapshot is corrupted");
+        }
+        var previousIndex = -1;
+        for (int n = 0; n < cellCount; n++) {
+            var index = buffer.getInt(28 + n * 20);
+            if (index <= previousIndex || index >= colors.length) {
+                throw new IllegalArgumentException("Snapshot has an invalid cell " + index);
+            }
+            previousIndex = index;
+        }
+
+        buffer.position(12);
+        lastOrderId = buffer.getInt();
+        logOrderId = lastOrderId;
+        totalDrawCount = buffer.getLong();
+        paintedCellCount = buffer.getInt();
+        for (int n = 0; n < cellCount; n++) {
+            var index = buffer.getInt();
+            paintedCells.set(index);
+            colors[index] = buffer.getInt();
+            cellOrderIds[index] = buffer.getInt();
+            cellOwners[index] = buffer.getLong();
+            ownedCellCounts.addTo(cellOwners[index], 1);
+        }
+        var userCount = buffer.getInt();
+        for (int n = 0; n < userCount; n++) {
+            var userId = buffer.getLong();
+            drawCounts.put(userId, buffer.getLong());
+            lastDrawTimes.put(userId, buffer.getLong());
+        }
+        drawsSinceSnapshot = 0;
+    }
+
+    BoardStateModel toModel() {
+        return new BoardStateModel(peerId, width, height, lastOrderId, colors.clone());
+    }
+
+    @FunctionalInterface
+    interface CellConsumer {
+        void accept(long x, long y, int colorRgb, int orderId);
+    }
+
+    @FunctionalInterface
+    interface UserStatsConsumer {
+        void accept(long userId, long drawCount, long ownedCellCount);
+    }
+}
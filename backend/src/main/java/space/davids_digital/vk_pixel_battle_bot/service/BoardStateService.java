@@ -0,0 +1,355 @@
+package space.davids_digital.vk_pixel_battle_bot.service;
+
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import space.davids_digital.vk_pixel_battle_bot.model.BoardDrawLogModel;
+import space.davids_digital.vk_pixel_battle_bot.model.BoardFillModel;
+import space.davids_digital.vk_pixel_battle_bot.model.BoardSnapshotModel;
+import space.davids_digital.vk_pixel_battle_bot.model.BoardStatsModel;
+import space.davids_digital.vk_pixel_battle_bot.model.BoardStateModel;
+import space.davids_digital.vk_pixel_battle_bot.model.BoardVersionModel;
+import space.davids_digital.vk_pixel_battle_bot.model.ChatSettingsModel;
+import space.davids_digital.vk_pixel_battle_bot.model.CooldownModel;
+import space.davids_digital.vk_pixel_battle_bot.model.DrawLogBatch;
+import space.davids_digital.vk_pixel_battle_bot.model.UserStatsModel;
+import space.davids_digital.vk_pixel_battle_bot.orm.service.BoardDrawLogOrmService;
+import space.davids_digital.vk_pixel_battle_bot.orm.service.BoardSnapshotOrmService;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Keeps every chat's board in memory and reads the log rows newer than it when {@link BoardChangeFeedService}
+ * reports the chat got some or can't tell. A board is built from the chat's latest snapshot in board_snapshot
+ * and the log rows after it, so a rebuild doesn't depend on how long the battle has run. Once
+ * {@code BOARD_SNAPSHOT_INTERVAL_DRAWS} draws have been applied to a board since it was restored or last
+ * snapshotted, a new snapshot is compressed and saved on a background thread. With an interval of 0
+ * snapshots are neither read nor written and boards are built from the whole log.
+ */
+@Service
+public class BoardStateService {
+    private static final Logger log = LoggerFactory.getLogger(BoardStateService.class);
+
+    private final BoardDrawLogOrmService boardDrawLogOrmService;
+    private final BoardSnapshotOrmService boardSnapshotOrmService;
+    private final BoardChangeFeedService boardChangeFeedService;
+    private final MetricsService metricsService;
+    private final long snapshotIntervalDraws;
+    private final ExecutorService snapshotExecutor;
+    private final Map<Long, BoardState> states = new ConcurrentHashMap<>();
+    private final List<DrawListener> drawListeners = new CopyOnWriteArrayList<>();
+
+    public BoardStateService(
+            BoardDrawLogOrmService boardDrawLogOrmService,
+            BoardSnapshotOrmService boardSnapshotOrmService,
+            BoardChangeFeedService boardChangeFeedService,
+            MetricsService metricsService,
+            @Value("${BOARD_SNAPSHOT_INTERVAL_DRAWS:10000}") long snapshotIntervalDraws
+    ) {
+        this.boardDrawLogOrmService = boardDrawLogOrmService;
+        this.boardSnapshotOrmService = boardSnapshotOrmService;
+        this.boardChangeFeedService = boardChangeFeedService;
+        this.metricsService = metricsService;
+        this.snapshotIntervalDraws = snapshotIntervalDraws;
+        if (snapshotIntervalDraws > 0) {
+            snapshotExecutor = Executors.newSingleThreadExecutor(runnable -> {
+                var thread = new Thread(runnable, "board-snapshot");
+                thread.setDaemon(true);
+                return thread;
+            });
+        } else {
+            snapshotExecutor = null;
+        }
+    }
+
+    public BoardStateModel getBoardState(ChatSettingsModel chatSettings) {
+        var state = getState(chatSettings);
+        synchronized (state) {
+            refresh(state, chatSettings);
+            return state.toModel();
+        }
+    }
+
+    /**
+     * Refreshes the chat's board and returns its order_id and size without copying its cells, which is all an
+     * image's ETag needs.
+     */
+    public BoardVersionModel getBoardVersion(ChatSettingsModel chatSettings) {
+        var state = getState(chatSettings);
+        synchronized (state) {
+            refresh(state, chatSettings);
+            return new BoardVersionModel(
+                    state.getPeerId(),
+                    state.getLastOrderId(),
+                    state.getWidth(),
+                    state.getHeight()
+            );
+        }
+    }
+
+    /**
+     * Writes a draw to the log and applies it to the in-memory board while holding the board's lock. The board is
+     * refreshed first, and a later refresh skips the new row when it reads it back, but still reads rows other
+     * writers commit with lower order_ids. Like any read of the log, a refresh skips a row whose insert is still
+     * in flight once it reads a row with a higher order_id.
+     */
+    public BoardDrawLogModel draw(ChatSettingsModel chatSettings, Supplier<BoardDrawLogModel> writer) {
+        var startNanos = System.nanoTime();
+        var state = getState(chatSettings);
+        synchronized (state) {
+            refresh(state, chatSettings);
+            var drawLog = writer.get();
+            var drawLogs = DrawLogBatch.of(drawLog);
+            state.applyOwn(drawLogs);
+            notifyDrawListeners(state, drawLogs);
+            scheduleSnapshot(state);
+            metricsService.record(MetricsService.Stage.DRAW, chatSettings.getPeerId(), startNanos);
+            return drawLog;
+        }
+    }
+
+    /**
+     * Answered from memory: draws reach the in-memory board through the pixel API and board refreshes, and the
+     * board is refreshed first, which only reads the log if the change feed can't vouch for it.
+     */
+    public CooldownModel getCooldown(ChatSettingsModel chatSettings, long userId) {
+        var state = getState(chatSettings);
+        long lastDrawTime;
+        synchronized (state) {
+            refresh(state, chatSettings);
+            lastDrawTime = state.getLastDrawTime(userId);
+        }
+        if (lastDrawTime < 0) {
+            return new CooldownModel(userId, null, chatSettings.getPixelSetIntervalSeconds(), 0);
+        }
+        var millisLeft = lastDrawTime + chatSettings.getPixelSetIntervalSeconds() * 1000L - System.currentTimeMillis();
+        return new CooldownModel(
+                userId,
+                lastDrawTime,
+                chatSettings.getPixelSetIntervalSeconds(),
+                Math.max(0, (millisLeft + 999) / 1000)
+        );
+    }
+
+    public BoardFillModel getFill(ChatSettingsModel chatSettings) {
+        var state = getState(chatSettings);
+        synchronized (state) {
+            refresh(state, chatSettings);
+            return new BoardFillModel(
+                    state.getPaintedCellCount(),
+                    state.getCellCount(),
+                    state.getPaintedCellCount() == state.getCellCount()
+            );
+        }
+    }
+
+    /**
+     * Lists everyone who has drawn in the battle with their draw and owned cell counts, most draws first.
+     */
+    public BoardStatsModel getStats(ChatSettingsModel chatSettings, int top) {
+        var state = getState(chatSettings);
+        var users = new ArrayList<UserStatsModel>();
+        long totalDraws;
+        synchronized (state) {
+            refresh(state, chatSettings);
+            state.forEachUserStats((userId, drawCount, ownedCellCount) ->
+                    users.add(new UserStatsModel(userId, drawCount, ownedCellCount))
+            );
+            totalDraws = state.getTotalDrawCount();
+        }
+        users.sort(
+                Comparator.comparingLong(UserStatsModel::draws).reversed()
+                        .thenComparing(Comparator.comparingLong(UserStatsModel::ownedCells).reversed())
+                        .thenComparingLong(UserStatsModel::userId)
+        );
+        return new BoardStatsModel(totalDraws, users, users.subList(0, Math.min(top, users.size())));
+    }
+
+    /**
+     * Saves a snapshot of the chat's board right away, on the calling thread.
+     */
+    public void saveSnapshot(ChatSettingsModel chatSettings) {
+        var state = getState(chatSettings);
+        BoardSnapshotModel snapshot;
+        synchronized (state) {
+            refresh(state, chatSettings);
+            if (!state.isCaughtUp()) {
+                log.warn(
+                        "Not saving the board snapshot of chat {}, some of its draws aren't in the log yet",
+                        state.getPeerId()
+                );
+                return;
+            }
+            snapshot = state.captureSnapshot();
+        }
+        boardSnapshotOrmService.saveSnapshot(BoardState.compressSnapshot(snapshot));
+    }
+
+    /**
+     * Refreshes the chat's board and passes it to {@code reader} while holding its lock, so no draw can be
+     * applied or reported to the draw listeners in between.
+     */
+    <T> T readState(ChatSettingsModel chatSettings, Function<BoardState, T> reader) {
+        var state = getState(chatSettings);
+        synchronized (state) {
+            refresh(state, chatSettings);
+            return reader.apply(state);
+        }
+    }
+
+    /**
+     * Runs {@code action} while holding the chat's board lock. Pixels are accepted under that lock, so none is
+     * accepted while the action runs.
+     */
+    <T> T withLock(ChatSettingsModel chatSettings, Supplier<T> action) {
+        var state = getState(chatSettings);
+        synchronized (state) {
+            return action.get();
+        }
+    }
+
+    /**
+     * The listener is called with the board's lock held for every batch of new log rows applied after the
+     * board was loaded, in order_id order, so it must not block.
+     */
+    void addDrawListener(DrawListener listener) {
+        drawListeners.add(listener);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (snapshotExecutor != null) {
+            snapshotExecutor.shutdown();
+        }
+    }
+
+    private BoardState getState(ChatSettingsModel chatSettings) {
+        return states.compute(
+                chatSettings.getPeerId(),
+                (peerId, existing) -> existing != null && existing.matches(chatSettings)
+                        ? existing
+                        : new BoardState(chatSettings)
+        );
+    }
+
+    private void load(BoardState state, ChatSettingsModel chatSettings) {
+        if (state.isLoaded()) {
+            return;
+        }
+        var startNanos = System.nanoTime();
+        boardChangeFeedService.watch(chatSettings.getPeerId());
+        state.setCheckedNanos(startNanos);
+        long rows;
+        if (restoreSnapshot(state, chatSettings)) {
+            var newDrawLogs = boardDrawLogOrmService.getDrawLogBatchByPeerIdAfterOrderId(
+                    chatSettings.getPeerId(),
+                    state.getLogOrderId()
+            );
+            state.applyFromLog(newDrawLogs);
+            rows = newDrawLogs.size();
+        } else {
+            var pixels = boardDrawLogOrmService.getLatestPixelBatchAndUserSummaries(
+                    chatSettings.getPeerId(),
+                    state::applyUserSummary
+            );
+            state.applyLatestPixels(pixels);
+            rows = pixels.size();
+        }
+        state.setLoaded(true);
+        metricsService.record(MetricsService.Stage.STATE_LOAD, chatSettings.getPeerId(), startNanos);
+        metricsService.increment(MetricsService.Counter.DRAW_LOG_ROWS, chatSettings.getPeerId(), rows);
+        scheduleSnapshot(state);
+    }
+
+    private boolean restoreSnapshot(BoardState state, ChatSettingsModel chatSettings) {
+        if (snapshotExecutor == null) {
+            return false;
+        }
+        var snapshot = boardSnapshotOrmService.getSnapshot(chatSettings.getPeerId());
+        if (snapshot == null
+                || snapshot.width() != chatSettings.getBoardWidth()
+                || snapshot.height() != chatSettings.getBoardHeight()
+                || !Objects.equals(snapshot.startTime(), chatSettings.getLastStartTime())) {
+            return false;
+        }
+        try {
+            state.restoreSnapshot(snapshot.data());
+            return true;
+        } catch (IllegalArgumentException e) {
+            log.warn(
+                    "Can't restore the board of chat {} from its snapshot, reading the whole log",
+                    chatSettings.getPeerId(),
+                    e
+            );
+            return false;
+        }
+    }
+
+    /**
+     * Only the copy of the board is taken under its lock; compression and the insert happen in the background.
+     */
+    private void scheduleSnapshot(BoardState state) {
+        if (snapshotExecutor == null
+                || state.getDrawsSinceSnapshot() < snapshotIntervalDraws
+                || !state.isCaughtUp()) {
+            return;
+        }
+        var snapshot = state.captureSnapshot();
+        snapshotExecutor.execute(() -> {
+            try {
+                boardSnapshotOrmService.saveSnapshot(BoardState.compressSnapshot(snapshot));
+            } catch (Exception e) {
+                log.error("Can't save the board snapshot of chat {}", snapshot.peerId(), e);
+            }
+        });
+    }
+
+    /**
+     * Reads the log only if the change feed can't vouch that the board is current.
+     */
+    private void refresh(BoardState state, ChatSettingsModel chatSettings) {
+        load(state, chatSettings);
+        var peerId = chatSettings.getPeerId();
+        if (boardChangeFeedService.isUpToDate(peerId, state.getLogOrderId(), state.getCheckedNanos())) {
+            metricsService.increment(MetricsService.Counter.DRAW_LOG_QUERIES_SKIPPED);
+            return;
+        }
+        var startNanos = System.nanoTime();
+        state.setCheckedNanos(startNanos);
+        var newDrawLogs = boardDrawLogOrmService.getDrawLogBatchByPeerIdAfterOrderId(peerId, state.getLogOrderId());
+        metricsService.record(MetricsService.Stage.DRAW_LOG_QUERY, peerId, startNanos);
+        metricsService.increment(MetricsService.Counter.DRAW_LOG_ROWS, peerId, newDrawLogs.size());
+        var appliedDrawLogs = state.applyFromLog(newDrawLogs);
+        if (!appliedDrawLogs.isEmpty()) {
+            notifyDrawListeners(state, appliedDrawLogs);
+        }
+        scheduleSnapshot(state);
+    }
+
+    private void notifyDrawListeners(BoardState state, DrawLogBatch drawLogs) {
+        for (var listener : drawListeners) {
+            try {
+                listener.onDraws(state, drawLogs);
+            } catch (RuntimeException e) {
+                log.error("Draw listener failed for chat {}", state.getPeerId(), e);
+            }
+        }
+    }
+
+    @FunctionalInterface
+    interface DrawListener {
+        void onDraws(BoardState state, DrawLogBatch drawLogs);
+    }
+}
@@ -0,0 +1,244 @@
+package space.davids_digital.vk_pixel_battle_bot.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import space.davids_digital.vk_pixel_battle_bot.archive.BoardArchiveReader;
+import space.davids_digital.vk_pixel_battle_bot.model.ChatSettingsModel;
+import space.davids_digital.vk_pixel_battle_bot.orm.service.BoardDrawLogOrmService;
+import space.davids_digital.vk_pixel_battle_bot.render.BoardTimelapseWriter;
+import space.davids_digital.vk_pixel_battle_bot.render.GifWriter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+import static space.davids_digital.vk_pixel_battle_bot.service.BoardImageService.BACKGROUND_RGB;
+import static space.davids_digital.vk_pixel_battle_bot.service.BoardImageService.PADDING;
+
+/**
+ * Replays a chat's draw log, or an archived battle, into an animated GIF that is written while the draws
+ * are read, with the same layout as the whole board image. A frame is cut every {@code frameDraws} draws
+ * and/or whenever the draws cross a {@code frameSeconds} boundary of battle time, whichever comes first.
+ * <p>
+ * The log is read {@code BOARD_TIMELAPSE_FETCH_SIZE} rows per query, so no database connection is held while
+ * the GIF waits for a slow client. At most {@code BOARD_TIMELAPSE_MAX_CONCURRENT} timelapses are written at
+ * once; more are rejected.
+ */
+@Service
+public class BoardTimelapseService {
+    private static final int FINAL_FRAME_DELAY_MS = 3000;
+
+    private final BoardDrawLogOrmService boardDrawLogOrmService;
+    private final BoardPixelService boardPixelService;
+    private final BoardGridLayerService boardGridLayerService;
+    private final BoardImageService boardImageService;
+    private final int fetchSize;
+    private final Semaphore timelapses;
+
+    public BoardTimelapseService(
+            BoardDrawLogOrmService boardDrawLogOrmService,
+            BoardPixelService boardPixelService,
+            BoardGridLayerService boardGridLayerService,
+            BoardImageService boardImageService,
+            @Value("${BOARD_TIMELAPSE_FETCH_SIZE:1000}") int fetchSize,
+            @Value("${BOARD_TIMELAPSE_MAX_CONCURRENT:4}") int maxConcurrent
+    ) {
+        this.boardDrawLogOrmService = boardDrawLogOrmService;
+        this.boardPixelService = boardPixelService;
+        this.boardGridLayerService = boardGridLayerService;
+        this.boardImageService = boardImageService;
+        this.fetchSize = fetchSize;
+        this.timelapses = new Semaphore(maxConcurrent);
+    }
+
+    /**
+     * Pixels buffered in {@code write_behind} mode are flushed before the log is read.
+     *
+     * @throws IllegalArgumentException if neither frame interval is set or the image would be too large for a GIF
+     * @throws RejectedExecutionException if too many timelapses are being written
+     */
+    public void writeTimelapse(
+            ChatSettingsModel chatSettings,
+            boolean grid,
+            int frameDraws,
+            int frameSeconds,
+            int frameDelayMs,
+            OutputStream out
+    ) throws IOException {
+        writeTimelapse(
+                chatSettings.getBoardWidth(),
+                chatSettings.getBoardHeight(),
+                consumer -> {
+                    boardPixelService.flush(chatSettings.getPeerId());
+                    boardDrawLogOrmService.forEachDrawLogInBatches(chatSettings.getPeerId(), fetchSize, consumer);
+                },
+                grid,
+                frameDraws,
+                frameSeconds,
+                frameDelayMs,
+                out
+        );
+    }
+
+    /**
+     * Same as the timelapse of a running battle, but replays an archived one.
+     *
+     * @throws IllegalArgumentException if neither frame interval is set or the image would be too large for a GIF
+     * @throws RejectedExecutionException if too many timelapses are being written
+     */
+    public void writeTimelapse(
+            BoardArchiveReader archive,
+            boolean grid,
+            int frameDraws,
+            int frameSeconds,
+            int frameDelayMs,
+            OutputStream out
+    ) throws IOException {
+        writeTimelapse(
+                archive.getWidth(),
+                archive.getHeight(),
+                archive::forEachDraw,
+                grid,
+                frameDraws,
+                frameSeconds,
+                frameDelayMs,
+                out
+        );
+    }
+
+    private void writeTimelapse(
+            int boardWidth,
+            int boardHeight,
+            DrawSource draws,
+            boolean grid,
+            int frameDraws,
+            int frameSeconds,
+            int frameDelayMs,
+            OutputStream out
+    ) throws IOException {
+        if (frameDraws <= 0 && frameSeconds <= 0) {
+            throw new IllegalArgumentException("Either the draws or the seconds per frame must be positive");
+        }
+        if (boardWidth < 1 || boardHeight < 1) {
+            throw new IllegalArgumentException("Board of " + boardWidth + "x" + boardHeight + " can't be a GIF");
+        }
+        // Same size limit as the board image, but frames are drawn with whole pixels per cell
+        var view = boardImageService.resolveView(boardWidth, boardHeight, null, null, null, null, null, grid, null);
+        var cellSize = Math.max(1, (int) view.cellSize());
+        var offset = view.grid() ? PADDING : 0;
+        var imageWidth = (long) boardWidth * cellSize + offset * 2L;
+        var imageHeight = (long) boardHeight * cellSize + offset * 2L;
+        if (imageWidth > GifWriter.MAX_DIMENSION || imageHeight > GifWriter.MAX_DIMENSION) {
+            throw new IllegalArgumentException("Board of " + boardWidth + "x" + boardHeight + " can't be a GIF");
+        }
+        if (!timelapses.tryAcquire()) {
+            throw new RejectedExecutionException("Too many timelapses are being written");
+        }
+        try {
+            var background = new int[(int) (imageWidth * imageHeight)];
+            if (view.grid()) {
+                boardGridLayerService.copyGridLayer(
+                        view.minX(),
+                        view.maxX(),
+                        view.minY(),
+                        view.maxY(),
+                        cellSize,
+                        PADDING,
+                        background
+                );
+            } else {
+                Arrays.fill(background, BACKGROUND_RGB);
+            }
+            var delayCentis = Math.max(2, Math.min(0xFFFF, (frameDelayMs + 5) / 10));
+            var writer = BoardTimelapseWriter.start(
+                    out,
+                    background,
+                    (int) imageWidth,
+                    (int) imageHeight,
+                    boardWidth,
+                    boardHeight,
+                    offset,
+                    offset,
+                    cellSize,
+                    delayCentis
+            );
+
+            try {
+                draws.forEachDraw(
+                        new Replay(writer, boardWidth, boardHeight, frameDraws, frameSeconds * 1000L, delayCentis)
+                );
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            writer.finish(Math.max(delayCentis, FINAL_FRAME_DELAY_MS / 10));
+        } finally {
+            timelapses.release();
+        }
+    }
+
+    @FunctionalInterface
+    private interface DrawSource {
+        void forEachDraw(BoardDrawLogOrmService.DrawLogRowConsumer consumer) throws IOException;
+    }
+
+    private static class Replay implements BoardDrawLogOrmService.DrawLogRowConsumer {
+        private final BoardTimelapseWriter writer;
+        private final int boardWidth;
+        private final int boardHeight;
+        private final int frameDraws;
+        private final long frameMillis;
+        private final int delayCentis;
+        private long firstTime = -1;
+        private long nextFrameTime = Long.MAX_VALUE;
+        private int draws = 0;
+
+        Replay(
+                BoardTimelapseWriter writer,
+                int boardWidth,
+                int boardHeight,
+                int frameDraws,
+                long frameMillis,
+                int delayCentis
+        ) {
+            this.writer = writer;
+            this.boardWidth = boardWidth;
+            this.boardHeight = boardHeight;
+            this.frameDraws = frameDraws;
+            this.frameMillis = frameMillis;
+            this.delayCentis = delayCentis;
+        }
+
+        @Override
+        public void accept(int orderId, long userId, long time, long x, long y, int colorRgb) {
+            try {
+                if (frameMillis > 0) {
+                    if (firstTime < 0) {
+                        firstTime = time;
+                        nextFrameTime = time + frameMillis;
+                    } else if (time >= nextFrameTime) {
+                        writeFrame();
+                        nextFrameTime = firstTime + ((time - firstTime) / frameMillis + 1) * frameMillis;
+                    }
+                }
+                var index = BoardState.cellIndex(boardWidth, boardHeight, x, y);
+                if (index < 0) {
+                    return;
+                }
+                writer.setCell(index, colorRgb);
+                if (frameDraws > 0 && ++draws >= frameDraws) {
+                    writeFrame();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void writeFrame() throws IOException {
+            writer.writeFrame(delayCentis);
+            draws = 0;
+        }
+    }
+}
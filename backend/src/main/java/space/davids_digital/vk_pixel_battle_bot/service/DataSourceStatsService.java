@@ -0,0 +1,79 @@
+package space.davids_digital.vk_pixel_battle_bot.service;
+
+import com.zaxxer.hikari.metrics.IMetricsTracker;
+import com.zaxxer.hikari.metrics.MetricsTrackerFactory;
+import com.zaxxer.hikari.metrics.PoolStats;
+import org.springframework.stereotype.Service;
+import space.davids_digital.vk_pixel_battle_bot.model.DataSourceStatsModel;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects connection pool statistics. Hikari calls the tracker on every connection checkout,
+ * so everything here is a lock-free counter.
+ */
+@Service
+public class DataSourceStatsService implements MetricsTrackerFactory {
+    private final LongAdder acquiredCount = new LongAdder();
+    private final LongAdder acquiredNanos = new LongAdder();
+    private final AtomicLong acquiredMaxNanos = new AtomicLong();
+    private final LongAdder timeoutCount = new LongAdder();
+    private final LongAdder usageCount = new LongAdder();
+    private final LongAdder usageMillis = new LongAdder();
+    private final LongAdder createdCount = new LongAdder();
+    private final LongAdder createdMillis = new LongAdder();
+    private volatile PoolStats poolStats;
+
+    @Override
+    public IMetricsTracker create(String poolName, PoolStats poolStats) {
+        this.poolStats = poolStats;
+        return new IMetricsTracker() {
+            @Override
+            public void recordConnectionCreatedMillis(long connectionCreatedMillis) {
+                createdCount.increment();
+                createdMillis.add(connectionCreatedMillis);
+            }
+
+            @Override
+            public void recordConnectionAcquiredNanos(long elapsedAcquiredNanos) {
+                acquiredCount.increment();
+                acquiredNanos.add(elapsedAcquiredNanos);
+                acquiredMaxNanos.accumulateAndGet(elapsedAcquiredNanos, Math::max);
+            }
+
+            @Override
+            public void recordConnectionUsageMillis(long elapsedBorrowedMillis) {
+                usageCount.increment();
+                usageMillis.add(elapsedBorrowedMillis);
+            }
+
+            @Override
+            public void recordConnectionTimeout() {
+                timeoutCount.increment();
+            }
+        };
+    }
+
+    public DataSourceStatsModel getStats() {
+        var pool = poolStats;
+        var acquired = acquiredCount.sum();
+        var used = usageCount.sum();
+        var created = createdCount.sum();
+        return new DataSourceStatsModel(
+                pool != null ? pool.getTotalConnections() : 0,
+                pool != null ? pool.getActiveConnections() : 0,
+                pool != null ? pool.getIdleConnections() : 0,
+                pool != null ? pool.getPendingThreads() : 0,
+                pool != null ? pool.getMaxConnections() : 0,
+                pool != null ? pool.getMinConnections() : 0,
+                acquired,
+                acquired > 0 ? acquiredNanos.sum() / 1e6 / acquired : 0,
+                acquiredMaxNanos.get() / 1e6,
+                timeoutCount.sum(),
+                used > 0 ? (double) usageMillis.sum() / used : 0,
+                created,
+                created > 0 ? (double) createdMillis.sum() / created : 0
+        );
+    }
+}
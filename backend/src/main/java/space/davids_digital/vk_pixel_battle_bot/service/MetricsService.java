@@ -0,0 +1,304 @@
+package space.davids_digital.vk_pixel_battle_bot.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+/**
+ * Timers and counters for the way from a board request to the PNG, written out in the Prometheus text format.
+ * Like {@link DataSourceStatsService}, everything is a lock-free counter, so recording costs a
+ * {@code System.nanoTime()} call and a few adds. Per-chat totals are kept for every chat, but only the
+ * {@code METRICS_TOP_PEERS} heaviest ones by work time are exported, to keep the label set small.
+ */
+@Service
+public class MetricsService {
+    /**
+     * Upper bounds of the latency histogram buckets, in seconds.
+     */
+    private static final double[] BUCKETS = {
+            0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10
+    };
+
+    private final int topPeers;
+    private final Map<Stage, Histogram> stages = new EnumMap<>(Stage.class);
+    private final Map<Counter, LongAdder> counters = new EnumMap<>(Counter.class);
+    private final Map<String, Gauge> gauges = new ConcurrentHashMap<>();
+    private final Map<Long, PeerTotals> peers = new ConcurrentHashMap<>();
+    private final com.sun.management.ThreadMXBean threadMXBean;
+
+    public MetricsService(@Value("${METRICS_TOP_PEERS:10}") int topPeers) {
+        this.topPeers = topPeers;
+        for (var stage : Stage.values()) {
+            stages.put(stage, new Histogram());
+        }
+        for (var counter : Counter.values()) {
+            counters.put(counter, new LongAdder());
+        }
+        var bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean sunBean && sunBean.isThreadAllocatedMemorySupported()) {
+            sunBean.setThreadAllocatedMemoryEnabled(true);
+            threadMXBean = sunBean;
+        } else {
+            threadMXBean = null;
+        }
+    }
+
+    /**
+     * Records the time since {@code startNanos}, a {@code System.nanoTime()} reading, and returns the duration.
+     */
+    public long record(Stage stage, long peerId, long startNanos) {
+        var nanos = System.nanoTime() - startNanos;
+        recordNanos(stage, peerId, nanos);
+        return nanos;
+    }
+
+    /**
+     * Records a stage that isn't attributed to a chat, for example because the chat may not exist.
+     */
+    public long record(Stage stage, long startNanos) {
+        var nanos = System.nanoTime() - startNanos;
+        stages.get(stage).record(nanos);
+        return nanos;
+    }
+
+    public void recordNanos(Stage stage, long peerId, long nanos) {
+        stages.get(stage).record(nanos);
+        if (stage.peerWork) {
+            peer(peerId).nanos.add(nanos);
+        }
+    }
+
+    public void increment(Counter counter, long peerId, long delta) {
+        counters.get(counter).add(delta);
+        var totals = peer(peerId);
+        switch (counter) {
+            case DRAW_LOG_ROWS -> totals.drawLogRows.add(delta);
+            case IMAGES_RENDERED -> totals.imagesRendered.add(delta);
+            case IMAGE_BYTES -> totals.imageBytes.add(delta);
+            case RENDER_ALLOCATED_BYTES -> totals.allocatedBytes.add(delta);
+            default -> {}
+        }
+    }
+
+    public void increment(Counter counter) {
+        counters.get(counter).increment();
+    }
+
+    public void registerGauge(String name, String help, LongSupplier value) {
+        gauges.put(name, new Gauge(help, value));
+    }
+
+    /**
+     * Returns the bytes the current thread has allocated so far, or -1 if the JVM can't tell.
+     * The difference of two readings on the same thread estimates what the code between them allocated.
+     */
+    public long getAllocatedBytes() {
+        return threadMXBean != null ? threadMXBean.getCurrentThreadAllocatedBytes() : -1;
+    }
+
+    public String toPrometheusText() {
+        var out = new StringBuilder(8192);
+        out.append("# HELP board_stage_seconds Time spent in each stage of serving boards\n");
+        out.append("# TYPE board_stage_seconds histogram\n");
+        for (var entry : stages.entrySet()) {
+            var label = "stage=\"" + entry.getKey().label + "\"";
+            var histogram = entry.getValue();
+            var cumulative = 0L;
+            for (int i = 0; i < BUCKETS.length; i++) {
+                cumulative += histogram.buckets[i].sum();
+                out.append("board_stage_seconds_bucket{").append(label).append(",le=\"")
+                        .append(format(BUCKETS[i])).append("\"} ").append(cumulative).append('\n');
+            }
+            cumulative += histogram.buckets[BUCKETS.length].sum();
+            out.append("board_stage_seconds_bucket{").append(label).append(",le=\"+Inf\"} ")
+                    .append(cumulative).append('\n');
+            out.append("board_stage_seconds_sum{").append(label).append("} ")
+                    .append(format(histogram.nanos.sum() / 1e9)).append('\n');
+            out.append("board_stage_seconds_count{").append(label).append("} ").append(cumulative).append('\n');
+        }
+
+        for (var entry : counters.entrySet()) {
+            var counter = entry.getKey();
+            out.append("# HELP ").append(counter.metricName).append(' ').append(counter.help).append('\n');
+            out.append("# TYPE ").append(counter.metricName).append(" counter\n");
+            out.append(counter.metricName).append(' ').append(entry.getValue().sum()).append('\n');
+        }
+
+        for (var entry : new TreeMap<>(gauges).entrySet()) {
+            out.append("# HELP ").append(entry.getKey()).append(' ').append(entry.getValue().help).append('\n');
+            out.append("# TYPE ").append(entry.getKey()).append(" gauge\n");
+            out.append(entry.getKey()).append(' ').append(entry.getValue().value.getAsLong()).append('\n');
+        }
+
+        writePeers(out);
+        return out.toString();
+    }
+
+    /**
+     * Totals are read once before sorting, as they keep changing while the chats are ranked.
+     */
+    private void writePeers(StringBuilder out) {
+        var heaviest = new ArrayList<PeerSnapshot>(peers.size());
+        peers.forEach((peerId, totals) -> heaviest.add(new PeerSnapshot(
+                peerId,
+                totals.nanos.sum(),
+                totals.drawLogRows.sum(),
+                totals.imagesRendered.sum(),
+                totals.imageBytes.sum(),
+                totals.allocatedBytes.sum()
+        )));
+        heaviest.sort(Comparator.comparingLong(PeerSnapshot::nanos).reversed());
+        var top = heaviest.subList(0, Math.min(topPeers, heaviest.size()));
+        writePeerMetric(out, top, "board_peer_work_seconds_total", "Time spent on the boards of the heaviest chats",
+                peer -> format(peer.nanos() / 1e9));
+        writePeerMetric(out, top, "board_peer_draw_log_rows_total", "Draw log rows read for the heaviest chats",
+                peer -> Long.toString(peer.drawLogRows()));
+        writePeerMetric(out, top, "board_peer_images_rendered_total", "Board images rendered for the heaviest chats",
+                peer -> Long.toString(peer.imagesRendered()));
+        writePeerMetric(out, top, "board_peer_image_bytes_total", "Bytes of rendered PNGs for the heaviest chats",
+                peer -> Long.toString(peer.imageBytes()));
+        writePeerMetric(out, top, "board_peer_render_allocated_bytes_total",
+                "Estimated bytes allocated by renders for the heaviest chats",
+                peer -> Long.toString(peer.allocatedBytes()));
+    }
+
+    private static void writePeerMetric(
+            StringBuilder out,
+            List<PeerSnapshot> peers,
+            String name,
+            String help,
+            Function<PeerSnapshot, String> value
+    ) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" counter\n");
+        for (var peer : peers) {
+            out.append(name).append("{peer_id=\"").append(peer.peerId()).append("\"} ")
+                    .append(value.apply(peer)).append('\n');
+        }
+    }
+
+    private PeerTotals peer(long peerId) {
+        return peers.computeIfAbsent(peerId, id -> new PeerTotals());
+    }
+
+    private static String format(double value) {
+        return Double.toString(value);
+    }
+
+    public enum Stage {
+        /** Reading the chat settings. */
+        SETTINGS("settings", false),
+        /** Building a board that isn't in memory, from a snapshot or the log. */
+        STATE_LOAD("state_load", true),
+        /** Reading the log rows newer than the in-memory board. */
+        DRAW_LOG_QUERY("draw_log_query", true),
+        /** From a row's insert to the change feed announcing it. */
+        CHANGE_FEED_LAG("change_feed_lag", false),
+        /** Writing a draw to the log and the in-memory board. */
+        DRAW("draw", true),
+        /** Waiting for a render thread. */
+        RENDER_QUEUE("render_queue", false),
+        /** Drawing the grid and the cells. */
+        RASTERIZE("rasterize", false),
+        /** Filtering and compressing PNG rows. */
+        ENCODE("encode", false),
+        /** A whole render on a render thread, rasterization and encoding included. */
+        RENDER("render", true),
+        /** A whole board image request. */
+        IMAGE_REQUEST("image_request", false),
+        /** Reading the log and aggregating it into a heatmap. */
+        HEATMAP("heatmap", true);
+
+        private final String label;
+        /**
+         * Whether the stage counts towards a chat's work time. Stages that wait or are part of another one don't.
+         */
+        private final boolean peerWork;
+
+        Stage(String label, boolean peerWork) {
+            this.label = label;
+            this.peerWork = peerWork;
+        }
+    }
+
+    public enum Counter {
+        DRAW_LOG_ROWS("board_draw_log_rows_total", "Draw log rows read to build and refresh boards"),
+        DRAW_LOG_QUERIES_SKIPPED(
+                "board_draw_log_queries_skipped_total",
+                "Board refreshes answered from memory as the change feed had no new rows"
+        ),
+        IMAGES_RENDERED("board_images_rendered_total", "Board images rendered"),
+        IMAGE_BYTES("board_image_bytes_total", "Bytes of rendered board PNGs"),
+        RENDER_ALLOCATED_BYTES("board_render_allocated_bytes_total", "Estimated bytes allocated by renders"),
+        IMAGE_CACHE_HITS("board_image_cache_hits_total", "Board image requests answered from the cache"),
+        DISK_CACHE_HITS("board_disk_cache_hits_total", "Images and grid layers read from the disk cache"),
+        DISK_CACHE_MISSES(
+                "board_disk_cache_misses_total",
+                "Images and grid layers looked up in the disk cache but missing"
+        ),
+        RENDERS_COALESCED("board_renders_coalesced_total", "Board image requests that waited for another render"),
+        RENDERS_REJECTED("board_renders_rejected_total", "Board image requests rejected as the render queue was full"),
+        BOARD_EVENT_SNAPSHOTS("board_event_snapshots_total", "Whole boards sent to event streams"),
+        BOARD_EVENT_DRAWS("board_event_draws_total", "Draws sent to event streams"),
+        LOG_EXPORT_ROWS("board_log_export_rows_total", "Draw log rows exported");
+
+        private final String metricName;
+        private final String help;
+
+        Counter(String metricName, String help) {
+            this.metricName = metricName;
+            this.help = help;
+        }
+    }
+
+    private static class Histogram {
+        private final LongAdder[] buckets = new LongAdder[BUCKETS.length + 1];
+        private final LongAdder nanos = new LongAdder();
+
+        Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long nanos) {
+            var seconds = nanos / 1e9;
+            var bucket = 0;
+            while (bucket < BUCKETS.length && seconds > BUCKETS[bucket]) {
+                bucket++;
+            }
+            buckets[bucket].increment();
+            this.nanos.add(nanos);
+        }
+    }
+
+    private static class PeerTotals {
+        private final LongAdder nanos = new LongAdder();
+        private final LongAdder drawLogRows = new LongAdder();
+        private final LongAdder imagesRendered = new LongAdder();
+        private final LongAdder imageBytes = new LongAdder();
+        private final LongAdder allocatedBytes = new LongAdder();
+    }
+
+    private record PeerSnapshot(
+            long peerId,
+            long nanos,
+            long drawLogRows,
+            long imagesRendered,
+            long imageBytes,
+            long allocatedBytes
+    ) {}
+
+    private record Gauge(String help, LongSupplier value) {}
+}
@@ -0,0 +1,179 @@
+package space.davids_digital.vk_pixel_battle_bot.service;
+
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+import space.davids_digital.vk_pixel_battle_bot.model.BoardImageKey;
+import space.davids_digital.vk_pixel_battle_bot.model.BoardStateModel;
+import space.davids_digital.vk_pixel_battle_bot.model.ChatSettingsModel;
+import space.davids_digital.vk_pixel_battle_bot.orm.service.ChatSettingsOrmService;
+import space.davids_digital.vk_pixel_battle_bot.render.PngEncoder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Gets the backend ready for fast renders once it has started. First the headless graphics stack (toolkit,
+ * fonts, Java2D loops) and the PNG encoder are initialized by rendering a small board on the startup thread.
+ * Then the board of every started battle is loaded and rendered with the default view, so its state, grid
+ * layer and image are in memory before the first request. That runs in the background on
+ * {@code BOARD_WARMUP_THREADS} threads (0 skips it), and the backend reports itself ready when it's done,
+ * whether or not every board could be loaded.
+ */
+@Service
+public class WarmupService {
+    private static final Logger log = LoggerFactory.getLogger(WarmupService.class);
+
+    private final ChatSettingsOrmService chatSettingsOrmService;
+    private final BoardStateService boardStateService;
+    private final BoardImageService boardImageService;
+    private final BoardRenderService boardRenderService;
+    private final int threads;
+    private final int pngDeflateLevel;
+    private final CountDownLatch ready = new CountDownLatch(1);
+    private volatile ExecutorService preloadExecutor;
+
+    public WarmupService(
+            ChatSettingsOrmService chatSettingsOrmService,
+            BoardStateService boardStateService,
+            BoardImageService boardImageService,
+            BoardRenderService boardRenderService,
+            MetricsService metricsService,
+            @Value("${BOARD_WARMUP_THREADS:4}") int threads,
+            @Value("${PNG_DEFLATE_LEVEL:6}") int pngDeflateLevel
+    ) {
+        this.chatSettingsOrmService = chatSettingsOrmService;
+        this.boardStateService = boardStateService;
+        this.boardImageService = boardImageService;
+        this.boardRenderService = boardRenderService;
+        this.threads = threads;
+        this.pngDeflateLevel = pngDeflateLevel;
+        metricsService.registerGauge("backend_ready", "1 once the startup warm-up has finished", () -> isReady() ? 1 : 0);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void warmUp() {
+        var startNanos = System.nanoTime();
+        try {
+            initGraphics();
+            log.info("Initialized graphics in {} ms", (System.nanoTime() - startNanos) / 1_000_000);
+        } catch (IOException | RuntimeException e) {
+            log.warn("Can't initialize graphics", e);
+        }
+        if (threads <= 0) {
+            ready.countDown();
+            return;
+        }
+        preloadBoards();
+    }
+
+    public boolean isReady() {
+        return ready.getCount() == 0;
+    }
+
+    public boolean awaitReady(long timeout, TimeUnit unit) throws InterruptedException {
+        return ready.await(timeout, unit);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        var executor = preloadExecutor;
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    private void initGraphics() throws IOException {
+        var colors = new int[10 * 10];
+        Arrays.fill(colors, BoardStateModel.EMPTY);
+        colors[0] = 0xFF0000;
+        var boardState = new BoardStateModel(0, 10, 10, 0, colors);
+        for (var grid : new boolean[] {true, false}) {
+            var view = boardImageService.resolveView(10, 10, null, null, null, null, null, grid, null);
+            boardImageService.writeBoardPng(boardState, view, OutputStream.nullOutputStream(), pngDeflateLevel);
+        }
+        var errorImage = boardImageService.createErrorMessageImage("[!] Warm-up");
+        PngEncoder.encode(errorImage, OutputStream.nullOutputStream(), pngDeflateLevel);
+    }
+
+    private void preloadBoards() {
+        var startNanos = System.nanoTime();
+        List<ChatSettingsModel> chats;
+        try {
+            chats = chatSettingsOrmService.getStartedChatSettings();
+        } catch (RuntimeException e) {
+            log.warn("Can't list started battles, nothing is preloaded", e);
+            ready.countDown();
+            return;
+        }
+        var threadNumber = new AtomicInteger();
+        var executor = Executors.newFixedThreadPool(Math.min(threads, Math.max(1, chats.size())), runnable -> {
+            var thread = new Thread(runnable, "board-warmup-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        preloadExecutor = executor;
+        var loaded = new AtomicInteger();
+        var preloads = chats.stream()
+                .map(chatSettings -> CompletableFuture.runAsync(() -> {
+                    if (preloadBoard(chatSettings)) {
+                        loaded.incrementAndGet();
+                    }
+                }, executor))
+                .toArray(CompletableFuture[]::new);
+        CompletableFuture.allOf(preloads).whenComplete((result, e) -> {
+            executor.shutdown();
+            log.info(
+                    "Preloaded {} of {} started boards in {} ms",
+                    loaded.get(),
+                    chats.size(),
+                    (System.nanoTime() - startNanos) / 1_000_000
+            );
+            ready.countDown();
+        });
+    }
+
+    private boolean preloadBoard(ChatSettingsModel chatSettings) {
+        if (boardImageService.getSettingsError(chatSettings) != null) {
+            return false;
+        }
+        try {
+            var boardState = boardStateService.getBoardState(chatSettings);
+            var view = boardImageService.resolveView(
+                    boardState.getWidth(),
+                    boardState.getHeight(),
+                    null,
+                    null,
+                    null,
+                    null,
+                    null,
+                    true,
+                    null
+            );
+            var key = new BoardImageKey(
+                    boardState.getPeerId(),
+                    boardState.getLastOrderId(),
+                    boardState.getWidth(),
+                    boardState.getHeight(),
+                    view
+            );
+            boardRenderService.getBoardPng(() -> boardState, view, key, pngDeflateLevel);
+            return true;
+        } catch (RuntimeException e) {
+            log.warn("Can't preload the board of chat {}", chatSettings.getPeerId(), e);
+            return false;
+        }
+    }
+}
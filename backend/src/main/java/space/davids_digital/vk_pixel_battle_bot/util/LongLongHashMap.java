@@ -0,0 +1,114 @@
+package space.davids_digital.vk_pixel_battle_bot.util;
+
+/**
+ * Open-addressing hash map with primitive {@code long} keys and values, so per-user counters
+ * don't box anything. Not thread-safe.
+ */
+public class LongLongHashMap {
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] keys;
+    private long[] values;
+    private boolean[] used;
+    private int size = 0;
+
+    public LongLongHashMap() {
+        this(MIN_CAPACITY);
+    }
+
+    public LongLongHashMap(int expectedSize) {
+        var capacity = Integer.highestOneBit(Math.max(expectedSize, MIN_CAPACITY / 2) * 2 - 1) << 1;
+        keys = new long[capacity];
+        values = new long[capacity];
+        used = new boolean[capacity];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean containsKey(long key) {
+        return used[findSlot(key)];
+    }
+
+    public long get(long key, long defaultValue) {
+        var slot = findSlot(key);
+        return used[slot] ? values[slot] : defaultValue;
+    }
+
+    public void put(long key, long value) {
+        var slot = findSlot(key);
+        if (!used[slot]) {
+            if ((size + 1) * 2 > keys.length) {
+                grow();
+                slot = findSlot(key);
+            }
+            used[slot] = true;
+            keys[slot] = key;
+            size++;
+        }
+        values[slot] = value;
+    }
+
+    /**
+     * Adds {@code delta} to the value of the key (zero if absent) and returns the new value.
+     */
+    public long addTo(long key, long delta) {
+        var value = get(key, 0) + delta;
+        put(key, value);
+        return value;
+    }
+
+    public void forEach(Consumer consumer) {
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (used[slot]) {
+                consumer.accept(keys[slot], values[slot]);
+            }
+        }
+    }
+
+    public LongLongHashMap copy() {
+        var copy = new LongLongHashMap(0);
+        copy.keys = keys.clone();
+        copy.values = values.clone();
+        copy.used = used.clone();
+        copy.size = size;
+        return copy;
+    }
+
+    private int findSlot(long key) {
+        var mask = keys.length - 1;
+        var slot = mix(key) & mask;
+        while (used[slot] && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void grow() {
+        var oldKeys = keys;
+        var oldValues = values;
+        var oldUsed = used;
+        keys = new long[oldKeys.length * 2];
+        values = new long[oldKeys.length * 2];
+        used = new boolean[oldKeys.length * 2];
+        for (int slot = 0; slot < oldKeys.length; slot++) {
+            if (oldUsed[slot]) {
+                var newSlot = findSlot(oldKeys[slot]);
+                used[newSlot] = true;
+                keys[newSlot] = oldKeys[slot];
+                values[newSlot] = oldValues[slot];
+            }
+        }
+    }
+
+    private static int mix(long key) {
+        var hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    @FunctionalInterface
+    public interface Consumer {
+        void accept(long key, long value);
+    }
+}
@@ -0,0 +1,408 @@
+package space.davids_digital.vk_pixel_battle_bot.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * A size-capped cache of byte values by string key, kept in one memory-mapped file so it outlives the process.
+ * Values are read through {@link Lease}s, views of the mapped file that stay valid until they're closed, so
+ * they can be sent without being copied to the heap first.
+ * <p>
+ * The data file is as large as the cap and holds records (header, key, value) at 8-byte aligned offsets, placed
+ * first-fit; when nothing fits, the least recently used records are evicted. Where the records are is kept in
+ * memory and written to a separate index file by {@link #flush()}: the mapped file is forced to disk, then the
+ * index is written to a temporary file and moved over the old one. A crash may leave an index older than the
+ * data, so every indexed record is checked against its header and CRC when the cache is opened, and the ones
+ * that were overwritten or half-written since are dropped.
+ */
+public class MappedFileCache implements AutoCloseable {
+    private static final int RECORD_MAGIC = 0x42444331;
+    private static final long INDEX_MAGIC = 0x424f415244494458L;
+    private static final int HEADER_BYTES = 16;
+    private static final int ALIGNMENT = 8;
+
+    private final Path indexPath;
+    private final String version;
+    private final FileChannel channel;
+    private final MappedByteBuffer data;
+    private final int capacity;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    /**
+     * Free ranges of the data file by offset, coalesced with their neighbours.
+     */
+    private final TreeMap<Integer, Integer> free = new TreeMap<>();
+    private long usedBytes = 0;
+    private boolean dirty = false;
+
+    /**
+     * Opens the cache in {@code directory}, creating its files if needed. Records written under another
+     * {@code version} or with another {@code capacity} are discarded.
+     */
+    public MappedFileCache(Path directory, String name, int capacity, String version) throws IOException {
+        Files.createDirectories(directory);
+        this.indexPath = directory.resolve(name + ".index");
+        this.version = version;
+        this.capacity = capacity & -ALIGNMENT;
+        this.channel = FileChannel.open(
+                directory.resolve(name + ".data"),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE
+        );
+        var reuse = channel.size() == this.capacity;
+        if (!reuse) {
+            channel.truncate(0);
+            // Extends the file without writing it, so it stays sparse until records are put
+            channel.write(ByteBuffer.allocate(1), this.capacity - 1);
+        }
+        this.data = channel.map(FileChannel.MapMode.READ_WRITE, 0, this.capacity);
+        free.put(0, this.capacity);
+        if (reuse) {
+            loadIndex();
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns a lease on the value, which must be closed, or null if the key isn't cached.
+     */
+    public synchronized Lease open(String key) {
+        var entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        entry.readers++;
+        return new Lease(entry);
+    }
+
+    public synchronized boolean contains(String key) {
+        return entries.containsKey(key);
+    }
+
+    /**
+     * Stores a value of {@code length} bytes that {@code writer} puts into the buffer it's given, unless the
+     * key is already cached or the value can't get space, which is the case for values over a quarter of the
+     * capacity. The writer runs without the cache's lock, so large values don't hold up readers.
+     *
+     * @return whether the value was stored
+     */
+    public boolean put(String key, int length, Consumer<ByteBuffer> writer) {
+        var keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        var recordLength = align((long) HEADER_BYTES + keyBytes.length + length);
+        if (recordLength > capacity / 4) {
+            return false;
+        }
+        int offset;
+        synchronized (this) {
+            if (entries.containsKey(key)) {
+                return false;
+            }
+            offset = allocate((int) recordLength);
+            if (offset < 0) {
+                return false;
+            }
+        }
+        var value = data.slice(offset + HEADER_BYTES + keyBytes.length, length);
+        try {
+            writer.accept(value.duplicate());
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                release(offset, (int) recordLength);
+            }
+            throw e;
+        }
+        var crc = new CRC32();
+        crc.update(keyBytes);
+        crc.update(value);
+        var record = data.slice(offset, HEADER_BYTES + keyBytes.length);
+        record.putInt(RECORD_MAGIC).putInt(keyBytes.length).putInt(length).putInt((int) crc.getValue());
+        record.put(keyBytes);
+        synchronized (this) {
+            if (entries.containsKey(key)) {
+                release(offset, (int) recordLength);
+                return false;
+            }
+            entries.put(key, new Entry(offset, (int) recordLength, offset + HEADER_BYTES + keyBytes.length, length));
+            usedBytes += recordLength;
+            dirty = true;
+        }
+        return true;
+    }
+
+    /**
+     * Makes everything put so far survive a crash. Does nothing if nothing changed since the last flush.
+     */
+    public void flush() throws IOException {
+        ArrayList<Entry> snapshot;
+        synchronized (this) {
+            if (!dirty) {
+                return;
+            }
+            dirty = false;
+            snapshot = new ArrayList<>(entries.values());
+        }
+        try {
+            data.force();
+            var tmpPath = indexPath.resolveSibling(indexPath.getFileName() + ".tmp");
+            try (var tmpChannel = FileChannel.open(
+                    tmpPath,
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING
+            )) {
+                var out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(tmpChannel)));
+                out.writeLong(INDEX_MAGIC);
+                out.writeUTF(version);
+                out.writeInt(capacity);
+                out.writeInt(snapshot.size());
+                for (var entry : snapshot) {
+                    out.writeInt(entry.offset);
+                    out.writeInt(entry.recordLength);
+                }
+                out.flush();
+                tmpChannel.force(true);
+            }
+            Files.move(tmpPath, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            synchronized (this) {
+                dirty = true;
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Entries are listed from the least to the most recently used, so putting them back in that order restores
+     * the LRU order too.
+     */
+    private void loadIndex() throws IOException {
+        var records = new ArrayList<IndexRecord>();
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexPath)))) {
+            if (in.readLong() != INDEX_MAGIC || !in.readUTF().equals(version) || in.readInt() != capacity) {
+                return;
+            }
+            var count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                records.add(new IndexRecord(i, in.readInt(), in.readInt()));
+            }
+        } catch (NoSuchFileException e) {
+            return;
+        } catch (IOException e) {
+            // A torn index is as good as none, the next flush replaces it
+            return;
+        }
+        records.sort(Comparator.comparingInt(IndexRecord::offset));
+        var intact = new TreeMap<Integer, IndexRecord>();
+        var end = 0;
+        for (var record : records) {
+            var offset = record.offset();
+            var recordLength = record.recordLength();
+            if (offset < end || recordLength < HEADER_BYTES || offset > capacity - recordLength) {
+                continue;
+            }
+            var key = readRecordKey(offset, recordLength);
+            if (key != null) {
+                intact.put(record.rank(), record.withKey(key));
+                end = offset + recordLength;
+            }
+        }
+        for (var record : intact.values()) {
+            var offset = record.offset();
+            take(offset, record.recordLength());
+            entries.put(record.key(), new Entry(
+                    offset,
+                    record.recordLength(),
+                    offset + HEADER_BYTES + data.getInt(offset + 4),
+                    data.getInt(offset + 8)
+            ));
+            usedBytes += record.recordLength();
+        }
+    }
+
+    /**
+     * Returns the key of the record at the offset, or null if it isn't an intact record of that length.
+     */
+    private String readRecordKey(int offset, int recordLength) {
+        if (data.getInt(offset) != RECORD_MAGIC) {
+            return null;
+        }
+        var keyLength = data.getInt(offset + 4);
+        var valueLength = data.getInt(offset + 8);
+        if (keyLength < 0 || valueLength < 0
+                || align((long) HEADER_BYTES + keyLength + valueLength) != recordLength) {
+            return null;
+        }
+        var crc = new CRC32();
+        crc.update(data.slice(offset + HEADER_BYTES, keyLength + valueLength));
+        if ((int) crc.getValue() != data.getInt(offset + 12)) {
+            return null;
+        }
+        var keyBytes = new byte[keyLength];
+        data.get(offset + HEADER_BYTES, keyBytes);
+        return new String(keyBytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Finds room for a record, evicting the least recently used ones until there is some. Evicted records that
+     * are still being read only become free when their last lease is closed.
+     *
+     * @return the offset, or -1 if there's no room
+     */
+    private int allocate(int length) {
+        while (true) {
+            for (var range : free.entrySet()) {
+                if (range.getValue() >= length) {
+                    var offset = range.getKey();
+                    take(offset, length);
+                    return offset;
+                }
+            }
+            var eldest = entries.entrySet().iterator();
+            if (!eldest.hasNext()) {
+                return -1;
+            }
+            var entry = eldest.next().getValue();
+            eldest.remove();
+            usedBytes -= entry.recordLength;
+            dirty = true;
+            entry.evicted = true;
+            if (entry.readers == 0) {
+                release(entry.offset, entry.recordLength);
+            }
+        }
+    }
+
+    /**
+     * Removes the range from the free range that contains it.
+     */
+    private void take(int offset, int length) {
+        var range = free.floorEntry(offset);
+        free.remove(range.getKey());
+        if (range.getKey() < offset) {
+            free.put(range.getKey(), offset - range.getKey());
+        }
+        var rangeEnd = range.getKey() + range.getValue();
+        if (offset + length < rangeEnd) {
+            free.put(offset + length, rangeEnd - offset - length);
+        }
+    }
+
+    private void release(int offset, int length) {
+        var end = offset + length;
+        var next = free.get(end);
+        if (next != null) {
+            free.remove(end);
+            length += next;
+        }
+        var previous = free.lowerEntry(offset);
+        if (previous != null && previous.getKey() + previous.getValue() == offset) {
+            offset = previous.getKey();
+            length += previous.getValue();
+        }
+        free.put(offset, length);
+    }
+
+    private synchronized void close(Entry entry) {
+        entry.readers--;
+        if (entry.evicted && entry.readers == 0) {
+            release(entry.offset, entry.recordLength);
+        }
+    }
+
+    private static long align(long length) {
+        return (length + ALIGNMENT - 1) & -ALIGNMENT;
+    }
+
+    private record IndexRecord(int rank, int offset, int recordLength, String key) {
+        IndexRecord(int rank, int offset, int recordLength) {
+            this(rank, offset, recordLength, null);
+        }
+
+        IndexRecord withKey(String key) {
+            return new IndexRecord(rank, offset, recordLength, key);
+        }
+    }
+
+    private static class Entry {
+        private final int offset;
+        private final int recordLength;
+        private final int valueOffset;
+        private final int valueLength;
+        private int readers = 0;
+        private boolean evicted = false;
+
+        Entry(int offset, int recordLength, int valueOffset, int valueLength) {
+            this.offset = offset;
+            this.recordLength = recordLength;
+            this.valueOffset = valueOffset;
+            this.valueLength = valueLength;
+        }
+    }
+
+    public class Lease implements AutoCloseable {
+        private final Entry entry;
+        private boolean closed = false;
+
+        private Lease(Entry entry) {
+            this.entry = entry;
+        }
+
+        public int size() {
+            return entry.valueLength;
+        }
+
+        /**
+         * Returns a new read-only view of the value, positioned at its start.
+         */
+        public ByteBuffer buffer() {
+            return data.slice(entry.valueOffset, entry.valueLength).asReadOnlyBuffer();
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                MappedFileCache.this.close(entry);
+            }
+        }
+    }
+}
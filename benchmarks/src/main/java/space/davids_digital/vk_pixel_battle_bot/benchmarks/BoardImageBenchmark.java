@@ -0,0 +1,183 @@
+package space.davids_digital.vk_pixel_battle_bot.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import space.davids_digital.vk_pixel_battle_bot.orm.service.BoardDrawLogOrmService;
+import space.davids_digital.vk_pixel_battle_bot.orm.service.ChatSettingsOrmService;
+import space.davids_digital.vk_pixel_battle_bot.service.BoardChangeFeedService;
+import space.davids_digital.vk_pixel_battle_bot.service.BoardDiskCacheService;
+import space.davids_digital.vk_pixel_battle_bot.service.BoardGridLayerService;
+import space.davids_digital.vk_pixel_battle_bot.service.BoardImageService;
+import space.davids_digital.vk_pixel_battle_bot.service.BoardStateService;
+import space.davids_digital.vk_pixel_battle_bot.service.MetricsService;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@code getBoardImage} measures a render of a board whose state is already in memory,
+ * {@code getBoardImageColdState} also rebuilds the state from the whole draw log and
+ * {@code getBoardImageColdStateFromSnapshot} from a snapshot taken at the end of the log.
+ * {@code writeBoardPngBuffered} and {@code writeBoardPngStreamed} render and encode the board as a whole
+ * image and strip by strip; run them with the GC profiler to compare allocation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g", "-Djava.awt.headless=true"})
+public class BoardImageBenchmark {
+    private static final long STREAMING_MIN_PIXELS = 4194304;
+
+    @Param({"10", "100", "200", "500"})
+    int boardSize;
+
+    @Param({"1000", "100000", "1000000"})
+    int logLength;
+
+    @Param({"true", "false"})
+    boolean grid;
+
+    /**
+     * Defaults to the backend's BOARD_IMAGE_MAX_DIMENSION, so large boards are rendered downscaled.
+     */
+    @Param({"4096"})
+    int maxDimension;
+
+    private BoardDrawLogOrmService boardDrawLogOrmService;
+    private ChatSettingsOrmService chatSettingsOrmService;
+    private BoardGridLayerService boardGridLayerService;
+    private BoardImageService boardImageService;
+    private BoardImageService bufferedBoardImageService;
+    private BoardImageService streamingBoardImageService;
+    private BoardStateService boardStateService;
+    private InMemoryBoardSnapshotOrmService boardSnapshotOrmService;
+    private MetricsService metricsService;
+    private BoardChangeFeedService changeFeed;
+
+    @Setup
+    public void setUp() {
+        var chatSettingsRepository = new InMemoryChatSettingsRepository();
+        chatSettingsRepository.save(SyntheticBoards.chatSettings(boardSize, boardSize));
+        var boardDrawLogRepository = new InMemoryBoardDrawLogRepository();
+        boardDrawLogRepository.saveAll(SyntheticBoards.drawLogs(boardSize, boardSize, logLength, 42));
+
+        boardDrawLogOrmService = new InMemoryBoardDrawLogOrmService(boardDrawLogRepository);
+        chatSettingsOrmService = new ChatSettingsOrmService(chatSettingsRepository);
+        boardSnapshotOrmService = new InMemoryBoardSnapshotOrmService();
+        metricsService = new MetricsService(10);
+        // Without a directory, so that layers are only cached in memory
+        boardGridLayerService = new BoardGridLayerService(
+                new BoardDiskCacheService(metricsService, "", 0, 0),
+                Long.MAX_VALUE
+        );
+        // Off, so that every refresh reads the log
+        changeFeed = new BoardChangeFeedService(null, null, metricsService, "off", 0, 0, 0);
+        boardStateService = new BoardStateService(
+                boardDrawLogOrmService,
+                boardSnapshotOrmService,
+                changeFeed,
+                metricsService,
+                0
+        );
+        boardStateService.saveSnapshot(chatSettingsOrmService.getChatSettingsByPeerId(SyntheticBoards.PEER_ID));
+        boardImageService = new BoardImageService(
+                boardStateService,
+                boardGridLayerService,
+                chatSettingsOrmService,
+                metricsService,
+                maxDimension,
+                STREAMING_MIN_PIXELS
+        );
+        bufferedBoardImageService = new BoardImageService(
+                boardStateService,
+                boardGridLayerService,
+                chatSettingsOrmService,
+                metricsService,
+                maxDimension,
+                Long.MAX_VALUE
+        );
+        streamingBoardImageService = new BoardImageService(
+                boardStateService,
+                boardGridLayerService,
+                chatSettingsOrmService,
+                metricsService,
+                maxDimension,
+                0
+        );
+    }
+
+    @Benchmark
+    public BufferedImage getBoardImage() {
+        return boardImageService.getBoardImage(SyntheticBoards.PEER_ID, grid);
+    }
+
+    @Benchmark
+    public BufferedImage getBoardImageColdState() {
+        var coldBoardImageService = new BoardImageService(
+                new BoardStateService(
+                        boardDrawLogOrmService,
+                        new InMemoryBoardSnapshotOrmService(),
+                        changeFeed,
+                        metricsService,
+                        0
+                ),
+                boardGridLayerService,
+                chatSettingsOrmService,
+                metricsService,
+                maxDimension,
+                STREAMING_MIN_PIXELS
+        );
+        return coldBoardImageService.getBoardImage(SyntheticBoards.PEER_ID, grid);
+    }
+
+    @Benchmark
+    public BufferedImage getBoardImageColdStateFromSnapshot() {
+        // Snapshots are read, but the interval is never reached, so none are written
+        var coldBoardImageService = new BoardImageService(
+                new BoardStateService(
+                        boardDrawLogOrmService,
+                        boardSnapshotOrmService,
+                        changeFeed,
+                        metricsService,
+                        Long.MAX_VALUE
+                ),
+                boardGridLayerService,
+                chatSettingsOrmService,
+                metricsService,
+                maxDimension,
+                STREAMING_MIN_PIXELS
+        );
+        return coldBoardImageService.getBoardImage(SyntheticBoards.PEER_ID, grid);
+    }
+
+    @Benchmark
+    public void writeBoardPngBuffered() throws IOException {
+        writeBoardPng(bufferedBoardImageService);
+    }
+
+    @Benchmark
+    public void writeBoardPngStreamed() throws IOException {
+        writeBoardPng(streamingBoardImageService);
+    }
+
+    private void writeBoardPng(BoardImageService service) throws IOException {
+        var boardState = boardStateService.getBoardState(
+                chatSettingsOrmService.getChatSettingsByPeerId(SyntheticBoards.PEER_ID)
+        );
+        var view = service.resolveView(
+                boardState.getWidth(),
+                boardState.getHeight(),
+                null,
+                null,
+                null,
+                null,
+                null,
+                grid,
+                null
+        );
+        service.writeBoardPng(boardState, view, OutputStream.nullOutputStream(), 6);
+    }
+}
@@ -0,0 +1,119 @@
+package space.davids_digital.vk_pixel_battle_bot.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import space.davids_digital.vk_pixel_battle_bot.model.BoardImageKey;
+import space.davids_digital.vk_pixel_battle_bot.model.BoardStateModel;
+import space.davids_digital.vk_pixel_battle_bot.model.BoardViewModel;
+import space.davids_digital.vk_pixel_battle_bot.orm.service.ChatSettingsOrmService;
+import space.davids_digital.vk_pixel_battle_bot.service.BoardChangeFeedService;
+import space.davids_digital.vk_pixel_battle_bot.service.BoardDiskCacheService;
+import space.davids_digital.vk_pixel_battle_bot.service.BoardGridLayerService;
+import space.davids_digital.vk_pixel_battle_bot.service.BoardImageCacheService;
+import space.davids_digital.vk_pixel_battle_bot.service.BoardImageService;
+import space.davids_digital.vk_pixel_battle_bot.service.BoardRenderService;
+import space.davids_digital.vk_pixel_battle_bot.service.BoardStateService;
+import space.davids_digital.vk_pixel_battle_bot.service.MetricsService;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A burst of identical board requests from 16 threads with the image cache turned off, so every request
+ * misses it. {@code renderPerRequest} renders on every request thread, as the controller did before
+ * {@code BoardRenderService}; {@code renderCoalesced} goes through it. Compare the latency percentiles.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(16)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g", "-Djava.awt.headless=true"})
+public class BoardRenderBenchmark {
+    @Param({"100", "500"})
+    int boardSize;
+
+    @Param({"100000"})
+    int logLength;
+
+    @Param({"true", "false"})
+    boolean grid;
+
+    private BoardImageService boardImageService;
+    private BoardRenderService boardRenderService;
+    private BoardStateModel boardState;
+    private BoardViewModel view;
+    private BoardImageKey key;
+
+    @Setup
+    public void setUp() {
+        var chatSettingsRepository = new InMemoryChatSettingsRepository();
+        chatSettingsRepository.save(SyntheticBoards.chatSettings(boardSize, boardSize));
+        var boardDrawLogRepository = new InMemoryBoardDrawLogRepository();
+        boardDrawLogRepository.saveAll(SyntheticBoards.drawLogs(boardSize, boardSize, logLength, 42));
+        var chatSettingsOrmService = new ChatSettingsOrmService(chatSettingsRepository);
+        var metricsService = new MetricsService(10);
+        var boardStateService = new BoardStateService(
+                new InMemoryBoardDrawLogOrmService(boardDrawLogRepository),
+                new InMemoryBoardSnapshotOrmService(),
+                new BoardChangeFeedService(null, null, metricsService, "off", 0, 0, 0),
+                metricsService,
+                0
+        );
+        boardImageService = new BoardImageService(
+                boardStateService,
+                new BoardGridLayerService(new BoardDiskCacheService(metricsService, "", 0, 0), Long.MAX_VALUE),
+                chatSettingsOrmService,
+                metricsService,
+                4096,
+                4194304
+        );
+        boardRenderService = new BoardRenderService(
+                boardImageService,
+                new BoardImageCacheService(0),
+                new BoardDiskCacheService(metricsService, "", 0, 0),
+                metricsService,
+                0,
+                64
+        );
+        boardState = boardStateService.getBoardState(
+                chatSettingsOrmService.getChatSettingsByPeerId(SyntheticBoards.PEER_ID)
+        );
+        view = boardImageService.resolveView(
+                boardState.getWidth(),
+                boardState.getHeight(),
+                null,
+                null,
+                null,
+                null,
+                null,
+                grid,
+                null
+        );
+        key = new BoardImageKey(
+                boardState.getPeerId(),
+                boardState.getLastOrderId(),
+                boardState.getWidth(),
+                boardState.getHeight(),
+                view
+        );
+    }
+
+    @TearDown
+    public void tearDown() {
+        boardRenderService.shutdown();
+    }
+
+    @Benchmark
+    public byte[] renderPerRequest() throws IOException {
+        var stream = new ByteArrayOutputStream();
+        boardImageService.writeBoardPng(boardState, view, stream, 6);
+        return stream.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] renderCoalesced() {
+        return boardRenderService.getBoardPng(() -> boardState, view, key, 6);
+    }
+}
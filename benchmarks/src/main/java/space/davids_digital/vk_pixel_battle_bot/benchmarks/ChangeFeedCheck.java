@@ -0,0 +1,294 @@
+package space.davids_digital.vk_pixel_battle_bot.benchmarks;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import org.postgresql.PGConnection;
+import org.springframework.jdbc.core.JdbcTemplate;
+import space.davids_digital.vk_pixel_battle_bot.orm.service.BoardDrawLogOrmService;
+import space.davids_digital.vk_pixel_battle_bot.service.BoardChangeFeedService;
+import space.davids_digital.vk_pixel_battle_bot.service.MetricsService;
+
+import java.sql.DriverManager;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Checks the board change feed against a real Postgres, configured with the backend's {@code DB_*} variables:
+ * <ol>
+ *     <li>installs the bot's board_draw_log_notify trigger and checks that one insert of several rows sends
+ *     one {@code peer_id:max_order_id:epoch_millis} notification for the chat;</li>
+ *     <li>checks that {@code BoardChangeFeedService} listens and announces a new row long before it would
+ *     have polled;</li>
+ *     <li>drops the trigger and checks that a new feed falls back to polling and still announces new rows.</li>
+ * </ol>
+ * The trigger is installed again at the end and the rows of the check's chat are deleted. Run it against a
+ * scratch database, since other listeners miss notifications while the trigger is dropped:
+ * <pre>
+ * DB_NAME=... DB_USER=... DB_PASSWORD=... java -cp benchmarks/target/benchmarks.jar \
+ *         space.davids_digital.vk_pixel_battle_bot.benchmarks.ChangeFeedCheck
+ * </pre>
+ * Exits with 1 if a check fails.
+ */
+public class ChangeFeedCheck {
+    // No chat has a negative peer_id
+    private static final long PEER_ID = -2000000001L;
+    private static final long LISTEN_POLL_MS = 10000;
+    private static final long FALLBACK_POLL_MS = 200;
+    private static final long TIMEOUT_MS = 5000;
+
+    // Same as the bot's DrawLogOrmService.start()
+    private static final String CREATE_TABLE = """
+            create table if not exists board_draw_log (
+                peer_id bigint,
+                user_id bigint,
+                order_id serial,
+                time timestamp,
+                x bigint,
+                y bigint,
+                color_rgb bigint,
+                primary key (peer_id, user_id, order_id)
+            )
+            """;
+    private static final String CREATE_NOTIFY_FUNCTION = """
+            create or replace function board_draw_log_notify() returns trigger as $$
+            begin
+                perform pg_notify(
+                    'board_draw_log',
+                    changes.peer_id || ':' || changes.order_id || ':'
+                        || (extract(epoch from clock_timestamp()) * 1000)::bigint
+                )
+                from (select peer_id, max(order_id) as order_id from inserted group by peer_id) as changes;
+                return null;
+            end;
+            $$ language plpgsql
+            """;
+    private static final String CREATE_NOTIFY_TRIGGER = """
+            drop trigger if exists board_draw_log_notify on board_draw_log;
+            create trigger board_draw_log_notify
+            after insert on board_draw_log
+            referencing new table as inserted
+            for each statement execute function board_draw_log_notify()
+            """;
+
+    private static int failures = 0;
+
+    public static void main(String[] args) throws Exception {
+        var config = new HikariConfig();
+        config.setPoolName("change-feed-check");
+        config.setJdbcUrl(String.format(
+                "jdbc:postgresql://%s:%s/%s",
+                System.getenv().getOrDefault("DB_HOST", "localhost"),
+                System.getenv().getOrDefault("DB_PORT", "5432"),
+                System.getenv("DB_NAME")
+        ));
+        config.setUsername(System.getenv("DB_USER"));
+        config.setPassword(System.getenv().getOrDefault("DB_PASSWORD", ""));
+        config.setMaximumPoolSize(4);
+        try (var dataSource = new HikariDataSource(config)) {
+            var jdbcTemplate = new JdbcTemplate(dataSource);
+            var boardDrawLogOrmService = new BoardDrawLogOrmService(jdbcTemplate);
+            jdbcTemplate.execute(CREATE_TABLE);
+            installTrigger(jdbcTemplate);
+            try {
+                checkNotifications(dataSource, jdbcTemplate, boardDrawLogOrmService);
+                checkListening(dataSource, jdbcTemplate, boardDrawLogOrmService);
+                jdbcTemplate.execute("drop trigger board_draw_log_notify on board_draw_log");
+                checkPollingFallback(dataSource, jdbcTemplate, boardDrawLogOrmService);
+            } finally {
+                installTrigger(jdbcTemplate);
+                jdbcTemplate.update("delete from board_draw_log where peer_id = ?", PEER_ID);
+            }
+        }
+        System.out.println(failures == 0 ? "All checks passed" : failures + " checks failed");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    private static void checkNotifications(
+            HikariDataSource dataSource,
+            JdbcTemplate jdbcTemplate,
+            BoardDrawLogOrmService boardDrawLogOrmService
+    ) throws Exception {
+        check("the trigger is reported as installed", boardDrawLogOrmService.isNotifyTriggerInstalled());
+        try (var connection = DriverManager.getConnection(
+                dataSource.getJdbcUrl(),
+                dataSource.getUsername(),
+                dataSource.getPassword()
+        )) {
+            try (var statement = connection.createStatement()) {
+                statement.execute("listen board_draw_log");
+            }
+            var startMillis = System.currentTimeMillis();
+            var orderId = insertRows(jdbcTemplate, 3);
+            var notifications = connection.unwrap(PGConnection.class).getNotifications((int) TIMEOUT_MS);
+            var payloads = new StringBuilder();
+            var matching = 0;
+            if (notifications != null) {
+                for (var notification : notifications) {
+                    var parts = notification.getParameter().split(":");
+                    if (!notification.getName().equals("board_draw_log") || parts.length != 3
+                            || Long.parseLong(parts[0]) != PEER_ID) {
+                        continue;
+                    }
+                    matching++;
+                    payloads.append(notification.getParameter()).append(' ');
+                    check("the notified order_id is the insert's latest", Integer.parseInt(parts[1]) == orderId);
+                    var millis = Long.parseLong(parts[2]);
+                    check(
+                            "the notified time is the insert's",
+                            millis >= startMillis - 1000 && millis <= System.currentTimeMillis() + 1000
+                    );
+                }
+            }
+            check("one insert of 3 rows sends one notification, got: " + payloads, matching == 1);
+        }
+    }
+
+    private static void checkListening(
+            HikariDataSource dataSource,
+            JdbcTemplate jdbcTemplate,
+            BoardDrawLogOrmService boardDrawLogOrmService
+    ) throws Exception {
+        var metricsService = new GaugeMetricsService();
+        var boardChangeFeedService = new BoardChangeFeedService(
+                dataSource,
+                boardDrawLogOrmService,
+                metricsService,
+                "listen",
+                LISTEN_POLL_MS,
+                TIMEOUT_MS,
+                60000
+        );
+        try {
+            var announcements = watch(boardChangeFeedService);
+            check(
+                    "the feed listens",
+                    waitFor(() -> metricsService.getGauge("board_change_feed_listening") == 1)
+            );
+            // Listening starts with a poll, which announces the rows inserted so far
+            announcements.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            announcements.clear();
+            var startNanos = System.nanoTime();
+            var orderId = insertRows(jdbcTemplate, 1);
+            var announced = announcements.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            var millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+            check("the listening feed announces the new row", announced != null && announced == orderId);
+            check("the listening feed announces it in " + millis + " ms, before polling", millis < LISTEN_POLL_MS / 2);
+        } finally {
+            boardChangeFeedService.shutdown();
+        }
+    }
+
+    private static void checkPollingFallback(
+            HikariDataSource dataSource,
+            JdbcTemplate jdbcTemplate,
+            BoardDrawLogOrmService boardDrawLogOrmService
+    ) throws Exception {
+        check("the trigger is reported as missing", !boardDrawLogOrmService.isNotifyTriggerInstalled());
+        var metricsService = new GaugeMetricsService();
+        var boardChangeFeedService = new BoardChangeFeedService(
+                dataSource,
+                boardDrawLogOrmService,
+                metricsService,
+                "listen",
+                FALLBACK_POLL_MS,
+                60000,
+                60000
+        );
+        try {
+            var announcements = watch(boardChangeFeedService);
+            check(
+                    "the feed polls without the trigger",
+                    waitFor(() -> metricsService.getGauge("board_change_feed_healthy") == 1)
+                            && metricsService.getGauge("board_change_feed_listening") == 0
+            );
+            Thread.sleep(FALLBACK_POLL_MS * 2);
+            announcements.clear();
+            var orderId = insertRows(jdbcTemplate, 1);
+            var announced = announcements.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            check("the polling feed announces the new row", announced != null && announced == orderId);
+            check("the feed still doesn't listen", metricsService.getGauge("board_change_feed_listening") == 0);
+        } finally {
+            boardChangeFeedService.shutdown();
+        }
+    }
+
+    private static BlockingQueue<Integer> watch(BoardChangeFeedService boardChangeFeedService) {
+        var announcements = new LinkedBlockingQueue<Integer>();
+        boardChangeFeedService.addListener((peerId, orderId) -> {
+            if (peerId == PEER_ID) {
+                announcements.add(orderId);
+            }
+        });
+        boardChangeFeedService.watch(PEER_ID);
+        return announcements;
+    }
+
+    /**
+     * Inserts the rows in one statement and returns the last order_id.
+     */
+    private static int insertRows(JdbcTemplate jdbcTemplate, int count) {
+        var orderIds = jdbcTemplate.queryForList("""
+                insert into board_draw_log (peer_id, user_id, time, x, y, color_rgb)
+                select ?, i, now(), i, 0, 0 from generate_series(1, ?) as i
+                returning order_id
+                """,
+                Integer.class,
+                PEER_ID,
+                count
+        );
+        return orderIds.stream().mapToInt(Integer::intValue).max().orElseThrow();
+    }
+
+    private static void installTrigger(JdbcTemplate jdbcTemplate) {
+        jdbcTemplate.execute(CREATE_NOTIFY_FUNCTION);
+        jdbcTemplate.execute(CREATE_NOTIFY_TRIGGER);
+    }
+
+    private static boolean waitFor(Condition condition) throws InterruptedException {
+        var deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS);
+        while (!condition.isMet()) {
+            if (System.nanoTime() - deadlineNanos > 0) {
+                return false;
+            }
+            Thread.sleep(50);
+        }
+        return true;
+    }
+
+    private static void check(String description, boolean passed) {
+        System.out.println((passed ? "[ok]   " : "[FAIL] ") + description);
+        if (!passed) {
+            failures++;
+        }
+    }
+
+    @FunctionalInterface
+    private interface Condition {
+        boolean isMet();
+    }
+
+    /**
+     * Keeps the feed's gauges, so the check can tell whether it listens or polls.
+     */
+    private static class GaugeMetricsService extends MetricsService {
+        private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+        GaugeMetricsService() {
+            super(10);
+        }
+
+        @Override
+        public void registerGauge(String name, String help, LongSupplier value) {
+            super.registerGauge(name, help, value);
+            gauges.put(name, value);
+        }
+
+        long getGauge(String name) {
+            return gauges.get(name).getAsLong();
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package space.davids_digital.vk_pixel_battle_bot.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import space.davids_digital.vk_pixel_battle_bot.model.BoardDrawLogModel;
+import space.davids_digital.vk_pixel_battle_bot.model.DrawLogBatch;
+import space.davids_digital.vk_pixel_battle_bot.orm.entity.BoardDrawLogEntity;
+import space.davids_digital.vk_pixel_battle_bot.orm.service.BoardDrawLogOrmService;
+
+import java.awt.*;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading a chat's whole log on top of an in-memory repository: into a {@link DrawLogBatch}, as the backend does,
+ * and as the baseline, into a {@link BoardDrawLogModel} per entity, as it did before.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class DrawLogMappingBenchmark {
+    @Param({"10", "100", "200", "500"})
+    int boardSize;
+
+    @Param({"1000", "100000", "1000000"})
+    int logLength;
+
+    private InMemoryBoardDrawLogRepository boardDrawLogRepository;
+    private BoardDrawLogOrmService boardDrawLogOrmService;
+
+    @Setup
+    public void setUp() {
+        boardDrawLogRepository = new InMemoryBoardDrawLogRepository();
+        boardDrawLogRepository.saveAll(SyntheticBoards.drawLogs(boardSize, boardSize, logLength, 42));
+        boardDrawLogOrmService = new InMemoryBoardDrawLogOrmService(boardDrawLogRepository);
+    }
+
+    @Benchmark
+    public List<BoardDrawLogModel> getDrawLogsByPeerId() {
+        return boardDrawLogRepository.findAllByPeerIdOrderByOrderId(SyntheticBoards.PEER_ID)
+                .stream()
+                .map(DrawLogMappingBenchmark::toModel)
+                .toList();
+    }
+
+    @Benchmark
+    public DrawLogBatch getDrawLogBatchByPeerId() {
+        return boardDrawLogOrmService.getDrawLogBatchByPeerIdAfterOrderId(SyntheticBoards.PEER_ID, Integer.MIN_VALUE);
+    }
+
+    private static BoardDrawLogModel toModel(BoardDrawLogEntity e) {
+        return new BoardDrawLogModel(e.peerId, e.userId, e.orderId, e.time, e.x, e.y, new Color((int) e.colorRgb));
+    }
+}
@@ -0,0 +1,69 @@
+package space.davids_digital.vk_pixel_battle_bot.benchmarks;
+
+import space.davids_digital.vk_pixel_battle_bot.model.DrawLogBatch;
+import space.davids_digital.vk_pixel_battle_bot.orm.entity.BoardDrawLogEntity;
+import space.davids_digital.vk_pixel_battle_bot.orm.service.BoardDrawLogOrmService;
+import space.davids_digital.vk_pixel_battle_bot.util.LongLongHashMap;
+
+import java.time.ZoneId;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Answers the queries {@code BoardDrawLogOrmService} runs through JDBC from the in-memory repository.
+ */
+class InMemoryBoardDrawLogOrmService extends BoardDrawLogOrmService {
+    private final InMemoryBoardDrawLogRepository repository;
+
+    InMemoryBoardDrawLogOrmService(InMemoryBoardDrawLogRepository repository) {
+        super(null);
+        this.repository = repository;
+    }
+
+    @Override
+    public DrawLogBatch getDrawLogBatchByPeerIdAfterOrderId(long peerId, int orderId) {
+        var batch = new DrawLogBatch(64);
+        for (var entity : repository.findAllByPeerIdOrderByOrderId(peerId)) {
+            if (entity.orderId > orderId) {
+                add(batch, entity);
+            }
+        }
+        return batch;
+    }
+
+    @Override
+    public DrawLogBatch getLatestPixelBatchByPeerId(long peerId) {
+        var latest = new LinkedHashMap<List<Long>, BoardDrawLogEntity>();
+        for (var entity : repository.findAllByPeerIdOrderByOrderId(peerId)) {
+            latest.put(List.of(entity.x, entity.y), entity);
+        }
+        var batch = new DrawLogBatch(latest.size());
+        for (var entity : latest.values()) {
+            add(batch, entity);
+        }
+        return batch;
+    }
+
+    @Override
+    public void forEachUserDrawSummary(long peerId, UserDrawSummaryConsumer consumer) {
+        var drawCounts = new LongLongHashMap();
+        var lastDrawTimes = new LongLongHashMap();
+        for (var entity : repository.findAllByPeerIdOrderByOrderId(peerId)) {
+            var epochMillis = entity.time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+            drawCounts.addTo(entity.userId, 1);
+            lastDrawTimes.put(entity.userId, Math.max(epochMillis, lastDrawTimes.get(entity.userId, Long.MIN_VALUE)));
+        }
+        drawCounts.forEach((userId, drawCount) -> consumer.accept(userId, drawCount, lastDrawTimes.get(userId, 0)));
+    }
+
+    private static void add(DrawLogBatch batch, BoardDrawLogEntity entity) {
+        batch.add(
+                entity.orderId,
+                entity.userId,
+                entity.time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli(),
+                entity.x,
+                entity.y,
+                (int) entity.colorRgb
+        );
+    }
+}
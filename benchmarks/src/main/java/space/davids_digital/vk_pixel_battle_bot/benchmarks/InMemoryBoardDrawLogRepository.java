@@ -0,0 +1,94 @@
+package space.davids_digital.vk_pixel_battle_bot.benchmarks;
+
+import space.davids_digital.vk_pixel_battle_bot.orm.entity.BoardDrawLogEntity;
+import space.davids_digital.vk_pixel_battle_bot.orm.entity.BoardDrawLogEntityId;
+import space.davids_digital.vk_pixel_battle_bot.orm.repository.BoardDrawLogRepository;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Keeps draw logs ordered by order_id, the way they come out of board_draw_log.
+ * Every query returns a fresh list, like Hibernate does.
+ */
+class InMemoryBoardDrawLogRepository implements BoardDrawLogRepository {
+    private final List<BoardDrawLogEntity> entities = new ArrayList<>();
+
+    @Override
+    public List<BoardDrawLogEntity> findAllByPeerIdOrderByOrderId(long peerId) {
+        return entities.stream().filter(e -> e.peerId == peerId).toList();
+    }
+
+    @Override
+    public <S extends BoardDrawLogEntity> S save(S entity) {
+        entities.removeIf(e -> idOf(e).equals(idOf(entity)));
+        entities.add(entity);
+        entities.sort(Comparator.comparingInt(e -> e.orderId));
+        return entity;
+    }
+
+    @Override
+    public <S extends BoardDrawLogEntity> Iterable<S> saveAll(Iterable<S> newEntities) {
+        newEntities.forEach(entities::add);
+        entities.sort(Comparator.comparingInt(e -> e.orderId));
+        return newEntities;
+    }
+
+    @Override
+    public Optional<BoardDrawLogEntity> findById(BoardDrawLogEntityId id) {
+        return entities.stream().filter(e -> idOf(e).equals(id)).findFirst();
+    }
+
+    @Override
+    public boolean existsById(BoardDrawLogEntityId id) {
+        return findById(id).isPresent();
+    }
+
+    @Override
+    public Iterable<BoardDrawLogEntity> findAll() {
+        return new ArrayList<>(entities);
+    }
+
+    @Override
+    public Iterable<BoardDrawLogEntity> findAllById(Iterable<BoardDrawLogEntityId> ids) {
+        var result = new ArrayList<BoardDrawLogEntity>();
+        ids.forEach(id -> findById(id).ifPresent(result::add));
+        return result;
+    }
+
+    @Override
+    public long count() {
+        return entities.size();
+    }
+
+    @Override
+    public void deleteById(BoardDrawLogEntityId id) {
+        entities.removeIf(e -> idOf(e).equals(id));
+    }
+
+    @Override
+    public void delete(BoardDrawLogEntity entity) {
+        deleteById(idOf(entity));
+    }
+
+    @Override
+    public void deleteAllById(Iterable<? extends BoardDrawLogEntityId> ids) {
+        ids.forEach(this::deleteById);
+    }
+
+    @Override
+    public void deleteAll(Iterable<? extends BoardDrawLogEntity> entities) {
+        entities.forEach(this::delete);
+    }
+
+    @Override
+    public void deleteAll() {
+        entities.clear();
+    }
+
+    private static BoardDrawLogEntityId idOf(BoardDrawLogEntity entity) {
+        return new BoardDrawLogEntityId(entity.peerId, entity.userId, entity.orderId);
+    }
+}
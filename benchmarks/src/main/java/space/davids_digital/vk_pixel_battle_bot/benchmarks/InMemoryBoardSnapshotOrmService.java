@@ -0,0 +1,28 @@
+package space.davids_digital.vk_pixel_battle_bot.benchmarks;
+
+import space.davids_digital.vk_pixel_battle_bot.model.BoardSnapshotModel;
+import space.davids_digital.vk_pixel_battle_bot.orm.service.BoardSnapshotOrmService;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the snapshots {@code BoardSnapshotOrmService} would store in board_snapshot in a map.
+ */
+class InMemoryBoardSnapshotOrmService extends BoardSnapshotOrmService {
+    private final Map<Long, BoardSnapshotModel> snapshots = new ConcurrentHashMap<>();
+
+    InMemoryBoardSnapshotOrmService() {
+        super(null);
+    }
+
+    @Override
+    public BoardSnapshotModel getSnapshot(long peerId) {
+        return snapshots.get(peerId);
+    }
+
+    @Override
+    public void saveSnapshot(BoardSnapshotModel snapshot) {
+        snapshots.put(snapshot.peerId(), snapshot);
+    }
+}
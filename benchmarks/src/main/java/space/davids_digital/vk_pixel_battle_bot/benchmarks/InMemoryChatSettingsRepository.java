@@ -0,0 +1,83 @@
+package space.davids_digital.vk_pixel_battle_bot.benchmarks;
+
+import space.davids_digital.vk_pixel_battle_bot.orm.entity.ChatSettingsEntity;
+import space.davids_digital.vk_pixel_battle_bot.orm.repository.ChatSettingsRepository;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+class InMemoryChatSettingsRepository implements ChatSettingsRepository {
+    private final Map<Long, ChatSettingsEntity> entities = new HashMap<>();
+
+    @Override
+    public <S extends ChatSettingsEntity> S save(S entity) {
+        entities.put(entity.peerId, entity);
+        return entity;
+    }
+
+    @Override
+    public <S extends ChatSettingsEntity> Iterable<S> saveAll(Iterable<S> entities) {
+        entities.forEach(this::save);
+        return entities;
+    }
+
+    @Override
+    public Optional<ChatSettingsEntity> findById(Long peerId) {
+        return Optional.ofNullable(entities.get(peerId));
+    }
+
+    @Override
+    public boolean existsById(Long peerId) {
+        return entities.containsKey(peerId);
+    }
+
+    @Override
+    public List<ChatSettingsEntity> findAllByPixelBattleStartedTrue() {
+        return entities.values().stream().filter(entity -> entity.pixelBattleStarted).toList();
+    }
+
+    @Override
+    public Iterable<ChatSettingsEntity> findAll() {
+        return new ArrayList<>(entities.values());
+    }
+
+    @Override
+    public Iterable<ChatSettingsEntity> findAllById(Iterable<Long> peerIds) {
+        var result = new ArrayList<ChatSettingsEntity>();
+        peerIds.forEach(peerId -> findById(peerId).ifPresent(result::add));
+        return result;
+    }
+
+    @Override
+    public long count() {
+        return entities.size();
+    }
+
+    @Override
+    public void deleteById(Long peerId) {
+        entities.remove(peerId);
+    }
+
+    @Override
+    public void delete(ChatSettingsEntity entity) {
+        entities.remove(entity.peerId);
+    }
+
+    @Override
+    public void deleteAllById(Iterable<? extends Long> peerIds) {
+        peerIds.forEach(entities::remove);
+    }
+
+    @Override
+    public void deleteAll(Iterable<? extends ChatSettingsEntity> entities) {
+        entities.forEach(this::delete);
+    }
+
+    @Override
+    public void deleteAll() {
+        entities.clear();
+    }
+}
@@ -0,0 +1,82 @@
+package space.davids_digital.vk_pixel_battle_bot.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import space.davids_digital.vk_pixel_battle_bot.orm.service.ChatSettingsOrmService;
+import space.davids_digital.vk_pixel_battle_bot.render.PngEncoder;
+import space.davids_digital.vk_pixel_battle_bot.service.BoardChangeFeedService;
+import space.davids_digital.vk_pixel_battle_bot.service.BoardDiskCacheService;
+import space.davids_digital.vk_pixel_battle_bot.service.BoardGridLayerService;
+import space.davids_digital.vk_pixel_battle_bot.service.BoardImageService;
+import space.davids_digital.vk_pixel_battle_bot.service.BoardStateService;
+import space.davids_digital.vk_pixel_battle_bot.service.MetricsService;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The encode step of {@code BoardController}, with {@code ImageIO} as the baseline it replaced.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g", "-Djava.awt.headless=true"})
+public class PngEncodeBenchmark {
+    @Param({"10", "100", "200", "500"})
+    int boardSize;
+
+    @Param({"1000", "100000", "1000000"})
+    int logLength;
+
+    @Param({"true", "false"})
+    boolean grid;
+
+    /**
+     * Defaults to the backend's BOARD_IMAGE_MAX_DIMENSION, so large boards are rendered downscaled.
+     */
+    @Param({"4096"})
+    int maxDimension;
+
+    @Param({"6"})
+    int deflateLevel;
+
+    private BufferedImage image;
+
+    @Setup
+    public void setUp() {
+        var chatSettingsRepository = new InMemoryChatSettingsRepository();
+        chatSettingsRepository.save(SyntheticBoards.chatSettings(boardSize, boardSize));
+        var boardDrawLogRepository = new InMemoryBoardDrawLogRepository();
+        boardDrawLogRepository.saveAll(SyntheticBoards.drawLogs(boardSize, boardSize, logLength, 42));
+        var metricsService = new MetricsService(10);
+        var boardImageService = new BoardImageService(
+                new BoardStateService(
+                        new InMemoryBoardDrawLogOrmService(boardDrawLogRepository),
+                        new InMemoryBoardSnapshotOrmService(),
+                        new BoardChangeFeedService(null, null, metricsService, "off", 0, 0, 0),
+                        metricsService,
+                        0
+                ),
+                new BoardGridLayerService(new BoardDiskCacheService(metricsService, "", 0, 0), Long.MAX_VALUE),
+                new ChatSettingsOrmService(chatSettingsRepository),
+                metricsService,
+                maxDimension,
+                Long.MAX_VALUE
+        );
+        image = boardImageService.getBoardImage(SyntheticBoards.PEER_ID, grid);
+    }
+
+    @Benchmark
+    public void encodePng() throws IOException {
+        PngEncoder.encode(image, OutputStream.nullOutputStream(), deflateLevel);
+    }
+
+    @Benchmark
+    public void encodePngImageIo() throws IOException {
+        ImageIO.write(image, "png", OutputStream.nullOutputStream());
+    }
+}
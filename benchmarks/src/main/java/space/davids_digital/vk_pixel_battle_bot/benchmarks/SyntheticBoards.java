@@ -0,0 +1,55 @@
+package space.davids_digital.vk_pixel_battle_bot.benchmarks;
+
+import space.davids_digital.vk_pixel_battle_bot.orm.entity.BoardDrawLogEntity;
+import space.davids_digital.vk_pixel_battle_bot.orm.entity.ChatSettingsEntity;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+final class SyntheticBoards {
+    static final long PEER_ID = 2000000001L;
+
+    // A few of the bot's named colors, the kind of palette real boards end up with
+    private static final int[] COLORS = {
+            0x000000, 0xffffff, 0xff0000, 0x008000, 0x0000ff, 0xffff00, 0xffa500, 0x800080,
+            0xffc0cb, 0xa52a2a, 0x808080, 0x00ffff, 0xff00ff, 0x00ff00, 0x000080, 0x8b0000
+    };
+
+    private SyntheticBoards() {}
+
+    static ChatSettingsEntity chatSettings(int width, int height) {
+        var entity = new ChatSettingsEntity();
+        entity.peerId = PEER_ID;
+        entity.name = "benchmark";
+        entity.botEnabled = true;
+        entity.pixelBattleStarted = true;
+        entity.boardWidth = width;
+        entity.boardHeight = height;
+        entity.pixelSetIntervalSeconds = 60;
+        entity.lastStartTime = LocalDateTime.of(2023, 1, 1, 0, 0);
+        entity.autoRestartMode = "none";
+        return entity;
+    }
+
+    static List<BoardDrawLogEntity> drawLogs(int width, int height, int count, long seed) {
+        var random = new Random(seed);
+        var minX = (int) -Math.ceil(width/2.0) + 1;
+        var minY = (int) -Math.ceil(height/2.0) + 1;
+        var startTime = LocalDateTime.of(2023, 1, 1, 0, 0);
+        var result = new ArrayList<BoardDrawLogEntity>(count);
+        for (int i = 0; i < count; i++) {
+            var entity = new BoardDrawLogEntity();
+            entity.peerId = PEER_ID;
+            entity.userId = 1 + random.nextInt(500);
+            entity.orderId = i + 1;
+            entity.time = startTime.plusSeconds(i);
+            entity.x = minX + random.nextInt(width);
+            entity.y = minY + random.nextInt(height);
+            entity.colorRgb = COLORS[random.nextInt(COLORS.length)];
+            result.add(entity);
+        }
+        return result;
+    }
+}
@@ -26,7 +26,7 @@ export default class SetPixelCommand extends Command {
     }
 
     async handle(command: string, restArgs: string, message: VkMessage): Promise<void> {
-        const { vkMessagesService, drawLogOrmService, boardService } = this.context;
+        const { vkMessagesService, boardService } = this.context;
         restArgs = restArgs || '';
         if (restArgs.length === 0)
             return this.handleWrongFormat(message.peerId);
@@ -47,19 +47,16 @@ export default class SetPixelCommand extends Command {
             await vkMessagesService.send(message.peerId, `Баттл еще не начался`);
             return;
         }
-        const lastPixelSetTime = await drawLogOrmService.getUserLastDrawLogTime(message.peerId, message.fromId);
-        if (lastPixelSetTime != null) {
-            const secondsLeft = Math.ceil((lastPixelSetTime.getTime() + chatSettings.pixelSetIntervalSeconds * 1000 - Date.now()) / 1000);
-            if (secondsLeft > 0) {
-                await vkMessagesService.send(
-                    message.peerId,
-                    `Красить можно раз в ${secondsToHumanReadable(chatSettings.pixelSetIntervalSeconds)}, ` +
-                    `подожди еще ${secondsToHumanReadable(secondsLeft)}`,
-                    [],
-                    false
-                );
-                return;
-            }
+        const secondsLeft = await boardService.getCooldownSecondsLeft(message.peerId, message.fromId);
+        if (secondsLeft > 0) {
+            await vkMessagesService.send(
+                message.peerId,
+                `Красить можно раз в ${secondsToHumanReadable(chatSettings.pixelSetIntervalSeconds)}, ` +
+                `подожди еще ${secondsToHumanReadable(secondsLeft)}`,
+                [],
+                false
+            );
+            return;
         }
         const minX = -Math.ceil(chatSettings.boardWidth/2.0) + 1;
         const maxX = Math.floor(chatSettings.boardWidth/2.0) + 1;
@@ -75,7 +72,7 @@ export default class SetPixelCommand extends Command {
             return;
         }
         const colorHex = (color.r << 16) + (color.g << 8) + color.b;
-        await drawLogOrmService.addDrawLog(message.peerId, message.fromId, x, y, colorHex);
+        await boardService.drawPixel(message.peerId, message.fromId, x, y, colorHex);
         if (await boardService.isBoardFilled(message.peerId)) {
             await boardService.endBattle(message.peerId);
             await vkMessagesService.send(message.peerId, `Перезапускаю баттл...`);
@@ -87,7 +84,7 @@ export default class SetPixelCommand extends Command {
                 chatSettings.autoRestartMode
             );
         } else {
-            const image = await this.context.boardService.createBoardImage(message.peerId);
+            const image = await boardService.createBoardImage(message.peerId);
             const attachment = await vkMessagesService.uploadPhotoAttachments(message.peerId, [image]);
             await vkMessagesService.sendDisposable(message.peerId, ``, attachment);
         }
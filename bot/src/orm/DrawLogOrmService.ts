@@ -25,6 +25,45 @@ export default class DrawLogOrmService {
         `);
         await q(`create index if not exists board_draw_log__peer_id_idx on board_draw_log (peer_id)`);
         await q(`create index if not exists board_draw_log__peer_id_user_id_idx on board_draw_log (peer_id, user_id)`);
+        await q(`create index if not exists board_draw_log__peer_id_order_id_idx on board_draw_log (peer_id, order_id)`);
+        await q(`
+            create index if not exists board_draw_log__peer_id_x_y_order_id_idx
+            on board_draw_log (peer_id, x, y, order_id desc)
+        `);
+        // Tells the backend which boards got new rows, see BoardChangeFeedService.
+        // The payload is "peer_id:max_order_id:epoch_millis", one notification per chat and statement
+        await q(`
+            create or replace function board_draw_log_notify() returns trigger as $$
+            begin
+                perform pg_notify(
+                    'board_draw_log',
+                    changes.peer_id || ':' || changes.order_id || ':'
+                        || (extract(epoch from clock_timestamp()) * 1000)::bigint
+                )
+                from (select peer_id, max(order_id) as order_id from inserted group by peer_id) as changes;
+                return null;
+            end;
+            $$ language plpgsql;
+        `);
+        await q(`
+            drop trigger if exists board_draw_log_notify on board_draw_log;
+            create trigger board_draw_log_notify
+            after insert on board_draw_log
+            referencing new table as inserted
+            for each statement execute function board_draw_log_notify();
+        `);
+        // Written by the backend, see BoardSnapshotOrmService
+        await q(`
+            create table if not exists board_snapshot (
+                peer_id bigint primary key,
+                start_time timestamp,
+                width integer,
+                height integer,
+                order_id integer,
+                time timestamp,
+                data bytea
+            );
+        `);
     }
 
     async getDrawLogs(peerId: number): Promise<DrawLogModel[]> {
@@ -61,20 +100,16 @@ export default class DrawLogOrmService {
         return new Date(result.rows[0].time);
     }
 
-    async addDrawLog(peerId: number, userId: number, x: number, y: number, colorRgb: number): Promise<void> {
-        const q = this.client.query.bind(this.client);
-        await q(`
-            insert into board_draw_log (peer_id, user_id, time, x, y, color_rgb)
-            values ($1, $2, now(), $3, $4, $5);
-        `, [peerId, userId, x, y, colorRgb]);
-    }
-
     async clearDrawLog(peerId: number): Promise<void> {
         const q = this.client.query.bind(this.client);
         await q(`
             delete from board_draw_log
             where peer_id = $1;
         `, [peerId]);
+        await q(`
+            delete from board_snapshot
+            where peer_id = $1;
+        `, [peerId]);
     }
 
     async countDrawLogs(peerId: number): Promise<number> {
@@ -1,6 +1,5 @@
 import axios from "axios";
 import {Context} from "../Context";
-import DrawLogOrmService from "../orm/DrawLogOrmService";
 import {AutoRestartMode, ChatSettingsModel} from "./ChatSettingsService";
 import ServiceError from "../ServiceError";
 
@@ -14,9 +13,20 @@ export type DrawLogModel = {
     colorRgb: number,
 }
 
+export type UserStatsModel = {
+    userId: number,
+    draws: number,
+    ownedCells: number,
+}
+
+export type BoardStatsModel = {
+    totalDraws: number,
+    users: UserStatsModel[],
+    top: UserStatsModel[],
+}
+
 export default class BoardService {
     private backendUrl!: string
-    private orm!: DrawLogOrmService;
 
     constructor(private context: Context) {
         context.onReady(async () => {
@@ -26,7 +36,6 @@ export default class BoardService {
 
     private async init() {
         this.backendUrl = this.context.configService.getAppConfig().backendUrl;
-        this.orm = this.context.drawLogOrmService;
         await this.intervalRoutine();
     }
 
@@ -98,40 +107,41 @@ export default class BoardService {
         throw new ServiceError(`Can't get board image`);
     }
 
-    async getStats(peerId: number): Promise<Map<number, number>> {
-        const stats: Map<number, number> = new Map();
-        const drawLogs = await this.orm.getDrawLogs(peerId);
-        for (const drawLog of drawLogs) {
-            if (!stats.has(drawLog.userId)) {
-                stats.set(drawLog.userId, 0);
-            }
-            stats.set(drawLog.userId, stats.get(drawLog.userId)! + 1);
-        }
-        return stats;
+    /**
+     * Stores the pixel through the backend. Not retried, since a retry could store the pixel twice.
+     */
+    async drawPixel(peerId: number, userId: number, x: number, y: number, colorRgb: number): Promise<void> {
+        await axios.post(`http://${this.backendUrl}/board/${peerId}/pixels`, {userId, x, y, colorRgb});
+    }
+
+    /**
+     * Returns the battle's draw counts kept by the backend, with the top users sorted by drawn pixels.
+     */
+    async getStats(peerId: number, top: number = 10): Promise<BoardStatsModel> {
+        const response = await axios.get(`http://${this.backendUrl}/board/${peerId}/stats?top=${top}`);
+        return response.data;
     }
 
     async endBattle(peerId: number, showFinalPicture: boolean = true) {
         const { vkMessagesService, boardService, chatSettingsService, vkUsersService } = this.context;
         const chatSettings = await chatSettingsService.getSettingsOrCreateDefault(peerId);
-        const stats = await boardService.getStats(peerId);
-        const relatedUsers = await vkUsersService.getUsers([...stats.keys()]);
-        const sortedStats = [...stats.entries()].sort((a, b) => b[1] - a[1]).slice(0, 10);
+        const stats = await boardService.getStats(peerId, 10);
+        const relatedUsers = await vkUsersService.getUsers(stats.top.map(u => u.userId));
 
         let text = `Баттл закончен!\n`;
-        if (sortedStats.length > 0) {
-            text += `Топ ${sortedStats.length}:\n`;
-            for (const i in sortedStats) {
-                const [userId, count] = sortedStats[i];
+        if (stats.top.length > 0) {
+            text += `Топ ${stats.top.length}:\n`;
+            for (const i in stats.top) {
+                const {userId, draws} = stats.top[i];
                 const user = relatedUsers.get(userId);
                 const fname = user?.firstName ?? "???";
                 const lname = user?.lastName ?? "???";
-                text += `${+i+1}. ${fname} ${lname} - ${count}px\n`;
+                text += `${+i+1}. ${fname} ${lname} - ${draws}px\n`;
             }
         }
 
         text += `\n`;
-        const totalPixelsDrawn = [...stats.values()].reduce((a, b) => a+b, 0);
-        text += `Всего было нарисовано ${totalPixelsDrawn} пикселей\n`;
+        text += `Всего было нарисовано ${stats.totalDraws} пикселей\n`;
 
         let attachments: string[] = [];
         if (showFinalPicture) {
@@ -167,29 +177,38 @@ export default class BoardService {
         } else if (autoRestartMode == "weekly") {
             chatSettings.battleStopTime = new Date(Date.now() + 7 * 24 * 60 * 60 * 1000);
         }
+        // The backend rebuilds its in-memory board when the start time changes, so the old log must be gone by then
+        try {
+            await this.archiveAndClearBattle(peerId);
+        } catch (e) {
+            console.error(`[${peerId}] Error archiving the battle: ${e}`);
+            await drawLogOrmService.clearDrawLog(peerId);
+        }
         await chatSettingsService.saveSettings(peerId, chatSettings);
-        await drawLogOrmService.clearDrawLog(peerId);
         let text = `Баттл начался!\n`;
         text += `Рисуй пиксели на доске так:\n`;
         text += `+пиксель X Y цвет\n`;
         await vkMessagesService.send(peerId, text);
     }
 
+    /**
+     * Has the backend archive the current battle and delete its draw log. The backend writes the pixels it still
+     * buffers first and accepts none until the log is gone, so the archive misses none and none outlives the log.
+     */
+    async archiveAndClearBattle(peerId: number): Promise<void> {
+        await axios.delete(`http://${this.backendUrl}/board/${peerId}/log`);
+    }
+
     async isBoardFilled(peerId: number): Promise<boolean> {
-        const { drawLogOrmService } = this.context;
-        const chatSettings = await this.context.chatSettingsService.getSettingsOrCreateDefault(peerId);
-        const drawLogs = await drawLogOrmService.getDrawLogs(chatSettings.peerId);
-        const fillSet = new Set<string>();
-        for (const drawLog of drawLogs) {
-            fillSet.add(drawLog.x + ":" + drawLog.y);
-        }
-        for (let x = 0; x < chatSettings.boardWidth; x++) {
-            for (let y = 0; y < chatSettings.boardHeight; y++) {
-                if (!fillSet.has(x + ":" + y)) {
-                    return false;
-                }
-            }
-        }
-        return true;
+        const response = await axios.get(`http://${this.backendUrl}/board/${peerId}/fill`);
+        return response.data.filled;
+    }
+
+    /**
+     * Returns how many seconds the user has to wait before drawing again, 0 if they can draw now.
+     */
+    async getCooldownSecondsLeft(peerId: number, userId: number): Promise<number> {
+        const response = await axios.get(`http://${this.backendUrl}/board/${peerId}/cooldown/${userId}`);
+        return response.data.secondsLeft;
     }
 }
\ No newline at end of file